@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2006-2010 Berlin Brown. All Rights Reserved
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+
+ * All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * * Neither the name of the Botnode.com (Berlin Brown) nor
+ * the names of its contributors may be used to endorse or promote
+ * products derived from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.berlin.octane.lexer1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the batch runner with 1 to N threads in the ForkJoinPool, a batch
+ * is 1000 small Euler scripts (sources) or 1000 inputs to one compiled program.
+ * The scripts per second scale with the threads up to the number of cores.
+ * ploop runs one Euler program over range 100000 with the chunks on the pool.
+ * 
+ * <pre>
+ * mvn -Pbench compile exec:exec -Djmh.args="BatchBenchmark -p threads=1,2,4,8"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    private ForkJoinPool executor;
+    private OctaneLangOneSourceFile.BatchRunner runner;
+    private final List<String> sources = new ArrayList<String>();
+    private final List<List<Object>> inputs = new ArrayList<List<Object>>();
+    private OctaneLangOneSourceFile interp;
+    private OctaneLangOneSourceFile.CompiledProgram program;
+    private OctaneLangOneSourceFile ploopInterp;
+    private OctaneLangOneSourceFile.CompiledProgram ploopProgram;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.executor = new ForkJoinPool(this.threads);
+        this.runner = new OctaneLangOneSourceFile.BatchRunner(this.executor,
+            new OctaneLangOneSourceFile.InterpreterPool(this.threads * 2));
+        for (int i = 0; i < BATCH; i++) {
+            this.sources.add(" sumstk , x loop range " + (100 + i % 10) + "," + BlockInvocationBenchmark.EULER_BODY);
+            this.inputs.add(Arrays.<Object>asList((double) (100 + i % 10)));
+        }
+        this.interp = new OctaneLangOneSourceFile();
+        this.program = this.interp.compile(" sumstk , x loop range ," + BlockInvocationBenchmark.EULER_BODY);
+        this.ploopInterp = new OctaneLangOneSourceFile();
+        this.ploopInterp.setParallelExecutor(this.executor);
+        this.ploopProgram = this.ploopInterp.compile(" sumstk x ploop range 100000 ," + BlockInvocationBenchmark.EULER_BODY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.executor.shutdown();
+    }
+
+    @Benchmark
+    public int sources() throws InterruptedException {
+        return this.runner.runAll(this.sources).size();
+    }
+
+    @Benchmark
+    public int program() throws InterruptedException {
+        return this.runner.runAll(this.interp, this.program, this.inputs).size();
+    }
+
+    @Benchmark
+    public Object ploop() {
+        final OctaneLangOneSourceFile.ExecutionContext ctx = new OctaneLangOneSourceFile.ExecutionContext();
+        this.ploopInterp.execute(this.ploopProgram, ctx);
+        return ctx.getDataStack().peek();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2006-2010 Berlin Brown. All Rights Reserved
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+
+ * All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * * Neither the name of the Botnode.com (Berlin Brown) nor
+ * the names of its contributors may be used to endorse or promote
+ * products derived from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.berlin.octane.lexer1;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of running a block of code, for the loop body of the Euler problem from
+ * OctaneLangOneSourceFileTest.testEulerProblem1.
+ * 
+ * Run with the gc profiler to see the bytes allocated per operation:
+ * <pre>
+ * mvn -Pbench compile exec:exec -Djmh.args="BlockInvocation -prof gc"
+ * </pre>
+ * 
+ * copyBlock runs the body the way the string engine did before blocks were walked
+ * in place, a copy of the block for each call.  walkBlock runs the same body with a
+ * cursor.  euler runs the whole program with each engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockInvocationBenchmark {
+
+    public static final String EULER_BODY = " x func ( ifstk , or norem ptrval 3 norem ptrval 5 , ptrval 0 , ptrsetstk ) ";
+
+    @Param({ "1000" })
+    public int size;
+
+    private OctaneLangOneSourceFile interp;
+    private OctaneLangOneSourceFile.CodeStack body;
+    private OctaneLangOneSourceFile.CodeCursor cursor;
+    private final OctaneLangOneSourceFile.DataStack data = new OctaneLangOneSourceFile.DataStack();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.interp = new OctaneLangOneSourceFile();
+        this.interp.setEngine(OctaneLangOneSourceFile.Engine.STRING);
+        this.interp.setInput(EULER_BODY);
+        this.interp.interpret();
+        final String funcid = this.interp.getFunctionCodeLookup().get("x");
+        this.body = this.interp.getFunctionCodeStack().get(funcid);
+        this.cursor = new OctaneLangOneSourceFile.CodeCursor(this.body, false);
+    }
+
+    @Benchmark
+    public double copyBlock() {
+        double sum = 0;
+        for (int i = 0; i < this.size; i++) {
+            this.data.clear();
+            this.data.pushNumber(i);
+            this.interp.interpret(this.interp.copy(this.body), this.data);
+            sum += this.data.peekNumber();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double walkBlock() {
+        double sum = 0;
+        for (int i = 0; i < this.size; i++) {
+            this.data.clear();
+            this.data.pushNumber(i);
+            this.interp.interpret(this.cursor.reset(), this.data);
+            sum += this.data.peekNumber();
+        }
+        return sum;
+    }
+
+    @State(Scope.Benchmark)
+    public static class EngineState {
+        @Param({ "STRING", "COMPILED" })
+        public String engine;
+    }
+
+    @Benchmark
+    public String euler(final EngineState state) {
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setEngine(OctaneLangOneSourceFile.Engine.valueOf(state.engine));
+        lexer.setInput(" sumstk , x loop range " + this.size + "," + EULER_BODY);
+        lexer.interpret();
+        return lexer.toStringStackTop();
+    }
+}
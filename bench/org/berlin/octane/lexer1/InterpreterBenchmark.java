@@ -0,0 +1,479 @@
+/**
+ * Copyright (c) 2006-2010 Berlin Brown. All Rights Reserved
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+
+ * All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * * Neither the name of the Botnode.com (Berlin Brown) nor
+ * the names of its contributors may be used to endorse or promote
+ * products derived from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.berlin.octane.lexer1;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Workloads for the interpreter, each program is lexed once in setup and then run
+ * on a new interpreter for each operation with the engine from the 'engine' param.
+ * 
+ * The results are written as JSON to target/jmh-result.json by the bench profile,
+ * keep the file from each release to follow the trend:
+ * <pre>
+ * mvn -Pbench compile exec:exec -Djmh.args="InterpreterBenchmark"
+ * mvn -Pbench compile exec:exec -Djmh.args="InterpreterBenchmark.euler -p size=1000" -Djmh.result=euler-1k.json
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class InterpreterBenchmark {
+
+    /**
+     * Program for a workload, lexed and compiled once for the trial.
+     */
+    @State(Scope.Thread)
+    public abstract static class Workload {
+        @Param({ "STRING", "COMPILED" })
+        public String engine;
+
+        private OctaneLangOneSourceFile.CodeStack tokens;
+        private OctaneLangOneSourceFile.CompiledProgram program;
+
+        protected abstract String source();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+            this.tokens = lex(lexer, this.source());
+            this.program = lexer.compile(this.tokens);
+        }
+
+        /**
+         * Run the program on a new interpreter.
+         * 
+         * @return the interpreter after the run
+         */
+        public OctaneLangOneSourceFile run() {
+            final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+            if (OctaneLangOneSourceFile.Engine.COMPILED.name().equals(this.engine)) {
+                interp.execute(this.program);
+            } else {
+                interp.setEngine(OctaneLangOneSourceFile.Engine.STRING);
+                interp.interpret(interp.copy(this.tokens), interp.getDataStack());
+            }
+            return interp;
+        }
+    }
+
+    /**
+     * Scan the source to the code stack the way interpret() does.
+     * 
+     * @param lexer
+     * @param source
+     * @return the tokens
+     */
+    static OctaneLangOneSourceFile.CodeStack lex(final OctaneLangOneSourceFile lexer, final String source) {
+        final OctaneLangOneSourceFile.CodeStack tokens = new OctaneLangOneSourceFile.CodeStack();
+        lexer.setInput(source);
+        lexer.consume();
+        Object token;
+        do {
+            token = lexer.nextToken();
+            tokens.push(token);
+        } while (!END.equals(token));
+        return tokens;
+    }
+
+    private static final Character END = Character.valueOf(OctaneLangOneSourceFile.EOF);
+
+    /**
+     * Source text with each kind of token, numbers, words, strings, chars, blocks, lists and comments.
+     */
+    @State(Scope.Thread)
+    public static class LexState {
+        @Param({ "10000", "1000000" })
+        public int chars;
+
+        public String source;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final String line = " x loop [ 1 2 3 ] , x func ( ifstk , or norem ptrval 3 norem 15 , 'c' \"str\" ) # comment\n";
+            final StringBuilder buf = new StringBuilder(this.chars + line.length());
+            while (buf.length() < this.chars) {
+                buf.append(line);
+            }
+            this.source = buf.toString();
+        }
+    }
+
+    @Benchmark
+    public int lex(final LexState state) {
+        int n = 0;
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(state.source);
+        lexer.consume();
+        while (!END.equals(lexer.nextToken())) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Straight line arithmetic, no blocks.
+     */
+    public static class Arithmetic extends Workload {
+        protected String source() {
+            final StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                buf.append(" + * 3 4 - 10 / 8 2 ,");
+            }
+            return buf.toString();
+        }
+    }
+
+    @Benchmark
+    public double arithmetic(final Arithmetic state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    /**
+     * Adds cell 0 twice to cell 1 and counts cell 0 down to zero.
+     */
+    public static class PtrWhile extends Workload {
+        protected String source() {
+            return " ptrval ptrinc , ptrwhile ( ptrdec ptrplus ptrplus ptrinc, ptrminus ) , ptrval 100000 ptrset ";
+        }
+    }
+
+    @Benchmark
+    public Object ptrwhile(final PtrWhile state) {
+        return state.run().getDataStack().peek();
+    }
+
+    /**
+     * Calls to a named function.
+     */
+    public static class Call extends Workload {
+        protected String source() {
+            final StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                buf.append(" f call ,");
+            }
+            return buf.append(" f func ( + 1 1 ) ").toString();
+        }
+    }
+
+    @Benchmark
+    public double call(final Call state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    /**
+     * Anonymous blocks run in place.
+     */
+    public static class Lambda extends Workload {
+        protected String source() {
+            final StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                buf.append(" lambda ( + 1 1 ) ,");
+            }
+            return buf.toString();
+        }
+    }
+
+    @Benchmark
+    public double lambda(final Lambda state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    /**
+     * Both branches of 'if', the condition alternates.
+     */
+    public static class If extends Workload {
+        protected String source() {
+            final StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                buf.append(" if ( eql 0 mod ").append(i).append(" 2 ) ( 1 ) ( 2 ) ,");
+            }
+            return buf.toString();
+        }
+    }
+
+    @Benchmark
+    public double ifDispatch(final If state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    /**
+     * The same script run from source each time, with and without a program cache, and
+     * from a program image file.  The script is mostly lexing, 500 short statements and
+     * a small loop.
+     */
+    @State(Scope.Thread)
+    public static class Script {
+        public String source;
+        public File image;
+        public final OctaneLangOneSourceFile.ProgramCache cache = new OctaneLangOneSourceFile.ProgramCache(16);
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            final StringBuilder buf = new StringBuilder(" sumstk , x loop range 10 ,");
+            for (int i = 0; i < 500; i++) {
+                buf.append(" + * 3 4 - 10 / 8 2 ,");
+            }
+            this.source = buf.append(BlockInvocationBenchmark.EULER_BODY).toString();
+            this.image = File.createTempFile("octane", ".ocim");
+            this.image.deleteOnExit();
+            OctaneLangOneSourceFile.ProgramImage.write(new OctaneLangOneSourceFile().compile(this.source),
+                OctaneLangOneSourceFile.ProgramCache.hash(this.source), this.image);
+        }
+    }
+
+    @Benchmark
+    public double scriptUncached(final Script state) {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        interp.setInput(state.source);
+        interp.interpret();
+        return interp.getDataStack().peekNumber();
+    }
+
+    @Benchmark
+    public double scriptCached(final Script state) {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        interp.setProgramCache(state.cache);
+        interp.setInput(state.source);
+        interp.interpret();
+        return interp.getDataStack().peekNumber();
+    }
+
+    @Benchmark
+    public double scriptImage(final Script state) throws IOException {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        interp.execute(OctaneLangOneSourceFile.ProgramImage.load(state.image, interp).getProgram());
+        return interp.getDataStack().peekNumber();
+    }
+
+    /**
+     * A short script on a new interpreter and on one borrowed from a pool.
+     */
+    @State(Scope.Thread)
+    public static class ShortScript {
+        public final String source = " ptrval ptrinc , ptrsetstk + 1 2 ";
+        public final OctaneLangOneSourceFile.InterpreterPool pool = new OctaneLangOneSourceFile.InterpreterPool(4);
+    }
+
+    @Benchmark
+    public double shortScriptNew(final ShortScript state) {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        interp.setInput(state.source);
+        interp.interpret();
+        return interp.getDataStack().peekNumber();
+    }
+
+    @Benchmark
+    public double shortScriptPooled(final ShortScript state) {
+        final OctaneLangOneSourceFile interp = state.pool.borrow();
+        try {
+            interp.setInput(state.source);
+            interp.interpret();
+            return interp.getDataStack().peekNumber();
+        } finally {
+            state.pool.release(interp);
+        }
+    }
+
+    /**
+     * A literal list of 10000 numbers, its length, one element, the sum and a loop over it.
+     */
+    public static class NumericList extends Workload {
+        protected String source() {
+            final String list = numbers(10000);
+            return " sumstk , x loop" + list + ", sumstk" + list + ", nth 5000" + list + ", len" + list + ", x func ( * 2 ) ";
+        }
+    }
+
+    @Benchmark
+    public double numericList(final NumericList state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    /**
+     * Sum of a scaled list of 10000 numbers with a loop calling a function per element.
+     */
+    public static class LoopScaleSum extends Workload {
+        protected String source() {
+            return " sumstk , x loop" + numbers(10000) + ", x func ( * 2 ) ";
+        }
+    }
+
+    /**
+     * The same sum with the bulk words, one Java loop for each word.
+     */
+    public static class VectorScaleSum extends Workload {
+        protected String source() {
+            return " vsum vscale 2" + numbers(10000);
+        }
+    }
+
+    /**
+     * @param n
+     * @return a list literal of the numbers from 0 to n - 1
+     */
+    static String numbers(final int n) {
+        final StringBuilder list = new StringBuilder(" [");
+        for (int i = 0; i < n; i++) {
+            list.append(' ').append(i);
+        }
+        return list.append(" ] ").toString();
+    }
+
+    @Benchmark
+    public double loopScaleSum(final LoopScaleSum state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    @Benchmark
+    public double vectorScaleSum(final VectorScaleSum state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    /**
+     * The Euler problem from OctaneLangOneSourceFileTest.testEulerProblem1, the sum of
+     * the multiples of 3 or 5 below size.
+     */
+    public static class Euler extends Workload {
+        @Param({ "1000", "100000", "10000000" })
+        public int size;
+
+        protected String source() {
+            return " sumstk , x loop range " + this.size + "," + BlockInvocationBenchmark.EULER_BODY;
+        }
+    }
+
+    @Benchmark
+    public double euler(final Euler state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    /**
+     * The same sum with a lazy map over the range, no list and no per element stack
+     * entries, the allocation per op does not grow with size.
+     */
+    public static class EulerLazy extends Euler {
+        protected String source() {
+            return " sumstk x map range " + this.size + "," + BlockInvocationBenchmark.EULER_BODY;
+        }
+    }
+
+    @Benchmark
+    public double eulerLazy(final EulerLazy state) {
+        return state.run().getDataStack().peekNumber();
+    }
+
+    /**
+     * The Euler sum on the compiled engine with and without the superinstructions, see
+     * OctaneLangOneSourceFile.Superinstruction.
+     */
+    @State(Scope.Thread)
+    public static class Fused {
+        @Param({ "true", "false" })
+        public boolean fused;
+
+        private OctaneLangOneSourceFile.CompiledProgram program;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+            if (!this.fused) {
+                lexer.setSuperinstructions(EnumSet.noneOf(OctaneLangOneSourceFile.Superinstruction.class));
+            }
+            this.program = lexer.compile(lex(lexer, " sumstk , x loop range 100000," + BlockInvocationBenchmark.EULER_BODY));
+        }
+    }
+
+    @Benchmark
+    public double superinstructions(final Fused state) {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        interp.execute(state.program);
+        return interp.getDataStack().peekNumber();
+    }
+
+    /**
+     * The Euler sum on the compiled engine without a profile, with the dispatch counts,
+     * with the profiler and with a trace, the cost of profiling and tracing.
+     */
+    @State(Scope.Thread)
+    public static class Profiled {
+        @Param({ "none", "dispatch", "profiler", "trace", "limits" })
+        public String profile;
+
+        private OctaneLangOneSourceFile.CompiledProgram program;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+            this.program = lexer.compile(lex(lexer, " sumstk , x loop range 100000," + BlockInvocationBenchmark.EULER_BODY));
+        }
+    }
+
+    @Benchmark
+    public double profiled(final Profiled state) {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        if ("dispatch".equals(state.profile)) {
+            interp.getContext().setProfile(new OctaneLangOneSourceFile.DispatchProfile());
+        } else if ("profiler".equals(state.profile)) {
+            interp.getContext().setProfile(new OctaneLangOneSourceFile.Profiler());
+        } else if ("trace".equals(state.profile)) {
+            interp.getContext().setTrace(new OctaneLangOneSourceFile.TraceBuffer());
+        } else if ("limits".equals(state.profile)) {
+            final OctaneLangOneSourceFile.ExecutionLimits limits = new OctaneLangOneSourceFile.ExecutionLimits();
+            limits.setMaxInstructions(Long.MAX_VALUE);
+            limits.setTimeoutMillis(60000);
+            limits.setMaxStackDepth(Integer.MAX_VALUE);
+            limits.setMaxCallDepth(1000);
+            interp.getContext().setLimits(limits);
+        }
+        interp.execute(state.program);
+        return interp.getDataStack().peekNumber();
+    }
+}
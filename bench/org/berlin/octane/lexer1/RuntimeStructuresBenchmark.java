@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2006-2010 Berlin Brown. All Rights Reserved
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+
+ * All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * * Neither the name of the Botnode.com (Berlin Brown) nor
+ * the names of its contributors may be used to endorse or promote
+ * products derived from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.berlin.octane.lexer1;
+
+import java.util.Hashtable;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The hot loop of the string engine for 'call', on the structures the interpreter
+ * used before (java.util.Stack and Hashtable, synchronized) and the ones it uses
+ * now (CodeStack and OpenHashMap).  Each step looks up the function name, looks up
+ * the block, walks the words of the block and pushes and pops them on a stack.
+ * 
+ * <pre>
+ * mvn -Pbench compile exec:exec -Djmh.args="RuntimeStructures -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuntimeStructuresBenchmark {
+
+    @Param({ "1000" })
+    public int size;
+
+    private static final String [] NAMES = { "x", "y", "z", "fizz", "buzz", "euler", "sum", "loop" };
+
+    private final Hashtable<String, String> lookupLegacy = new Hashtable<String, String>();
+    private final Hashtable<String, Stack<Object>> blocksLegacy = new Hashtable<String, Stack<Object>>();
+    private final Stack<Object> stackLegacy = new Stack<Object>();
+
+    private final OctaneLangOneSourceFile.OpenHashMap<String, String> lookup = new OctaneLangOneSourceFile.OpenHashMap<String, String>();
+    private final OctaneLangOneSourceFile.OpenHashMap<String, OctaneLangOneSourceFile.CodeStack> blocks = new OctaneLangOneSourceFile.OpenHashMap<String, OctaneLangOneSourceFile.CodeStack>();
+    private final OctaneLangOneSourceFile.CodeStack stack = new OctaneLangOneSourceFile.CodeStack();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        interp.setEngine(OctaneLangOneSourceFile.Engine.STRING);
+        interp.setInput(BlockInvocationBenchmark.EULER_BODY);
+        interp.interpret();
+        final OctaneLangOneSourceFile.CodeStack body = interp.getFunctionCodeStack().get(interp.getFunctionCodeLookup().get("x"));
+        for (int i = 0; i < NAMES.length; i++) {
+            final String funcid = "func_" + i;
+            final Stack<Object> legacy = new Stack<Object>();
+            legacy.addAll(body);
+            this.lookupLegacy.put(NAMES[i], funcid);
+            this.blocksLegacy.put(funcid, legacy);
+            this.lookup.put(NAMES[i], funcid);
+            this.blocks.put(funcid, interp.copy(body));
+        }
+    }
+
+    @Benchmark
+    public int legacy() {
+        int n = 0;
+        for (int i = 0; i < this.size; i++) {
+            final Stack<Object> block = this.blocksLegacy.get(this.lookupLegacy.get(NAMES[i & 7]));
+            for (int ip = block.size() - 1; ip >= 0; ip--) {
+                this.stackLegacy.push(block.get(ip));
+            }
+            while (!this.stackLegacy.isEmpty()) {
+                n += this.stackLegacy.pop().hashCode();
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int unsynchronized() {
+        int n = 0;
+        for (int i = 0; i < this.size; i++) {
+            final OctaneLangOneSourceFile.CodeStack block = this.blocks.get(this.lookup.get(NAMES[i & 7]));
+            for (int ip = block.size() - 1; ip >= 0; ip--) {
+                this.stack.push(block.get(ip));
+            }
+            while (!this.stack.isEmpty()) {
+                n += this.stack.pop().hashCode();
+            }
+        }
+        return n;
+    }
+}
@@ -35,20 +35,70 @@
  */
 package org.berlin.octane.lexer1;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Hashtable;
+import java.util.Comparator;
+import java.util.EmptyStackException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
-import java.util.Stack;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * OctaneMini, simple programming language in Java with one source file.  The entire implementation
@@ -89,12 +139,30 @@ public class OctaneLangOneSourceFile {
     public static final char EOF = (char) -1;
     public static final int EOF_TYPE = 1;
     
+    /** Size of the character buffer the source is read through. */
+    public static final int BUFFER_SIZE = 8192;
+
+    /** Elements of the list run by one task of a ploop. */
+    public static final int PLOOP_CHUNK = 4096;
+
+    /** reset() starts a new symbol table when there are more words than this. */
+    public static final int MAX_POOLED_SYMBOLS = 1 << 16;
+
     private String input;
 
     /**
-     * Byte position pointer during lexing. 
+     * Source being lexed, read a buffer at a time so the whole source is never
+     * held in memory.
      */
-    private int p = 0;
+    private Reader reader;
+    private final char [] buffer = new char [BUFFER_SIZE];
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+
+    /**
+     * Characters of the word or number being scanned.
+     */
+    private char [] scan = new char [64];
     
     /**
      * Active character used during lexing.
@@ -104,44 +172,28 @@ public class OctaneLangOneSourceFile {
     /**
      * Code stack tokens.
      */
-    private Stack<Object> codeStack = new Stack<Object>();
+    private CodeStack codeStack = new CodeStack(256);
    
     /**
-     * Data stack tokens.
+     * Data stack, pointer, memory and function names of this interpreter.
      */
-    private Stack<Object> dataStack = new Stack<Object>();
+    private ExecutionContext context = new ExecutionContext();
 
     /**
      * Block of code by name. Some blocks are anonymous.
      */
-    private Hashtable<String, Stack<Object>> functionCodeStack = new Hashtable<String, Stack<Object>>();
-    private Hashtable<String, String> functionCodeLookup = new Hashtable<String, String>();
+    private OpenHashMap<String, CodeStack> functionCodeStack = new OpenHashMap<String, CodeStack>(32);
     /** Variable store for named values. */
-    private Hashtable<String, Object> variables = new Hashtable<String, Object>();
+    private OpenHashMap<String, Object> variables = new OpenHashMap<String, Object>(16);
     
     /** Current list under construction when list mode is active. */
     private LangTypeList activeList = null;
     /** When true, tokens are added to the active list instead of executed. */
     private boolean modeAddingToList = false;
     
-    /**
-     * For pointer/array operations.
-     */
-    private int pointer = 0;    
-    /**
-     * Memory block for pointer operations.
-     */
-    private Object activeObjectArray = new int [3000];
-    
-    private Random random = new Random(System.currentTimeMillis());
     /** Used to generate unique anonymous function identifiers. */
     private static final int uniqid = new Random(System.currentTimeMillis()).nextInt();
     
-    /**
-     * Verbose output, this is controlled by the code stack.
-     */
-    private boolean verbose = false;
-    
     /**
      * Operations.
      */
@@ -154,7 +206,82 @@ public class OctaneLangOneSourceFile {
     public static final String OP_IDENTITY = "id";                        
     public static final String OP_TRUE = "true";
     public static final String OP_FALSE = "false";
-        
+    public static final String OP_START_BLOCK = "(";
+    public static final String OP_END_BLOCK = ")";
+    public static final String OP_START_LIST = "[";
+    public static final String OP_END_LIST = "]";
+
+    /**
+     * Engines available to run the code stack.
+     */
+    public static enum Engine {
+        /** Original interpreter, dispatch on the token string of each word. */
+        STRING,
+        /** Compile the tokens to opcodes first and dispatch on the opcode. */
+        COMPILED
+    }
+
+    /**
+     * Engine used by interpret().
+     */
+    private Engine engine = Engine.COMPILED;
+
+    /**
+     * When set interpret() runs each top level line as soon as it is lexed, see
+     * interpretIncremental().
+     */
+    private boolean incremental = false;
+
+    /**
+     * Set by the lexer when a newline was skipped before the last token.
+     */
+    private boolean lineBreak = false;
+
+    /**
+     * Compiled programs by source, used by interpret() for string input with the
+     * compiled engine.  Null for no cache.
+     */
+    private ProgramCache programCache = null;
+
+    /**
+     * Fuse pointer loops and runs when compiling, see Compiler.optimize().
+     */
+    private boolean optimize = true;
+
+    /**
+     * The trace of the context is written here when a run fails, null to not write it.
+     */
+    private File traceFile = null;
+
+    /**
+     * Program image run with '-image', or written with '-compile', see ProgramImage.
+     */
+    private File imageFile = null;
+
+    /**
+     * Only write the program image of the source, '-compile'.
+     */
+    private boolean compileOnly = false;
+
+    /**
+     * Pairs of opcodes fused when compiling, see Compiler.fuse().
+     */
+    private Set<Superinstruction> superinstructions = EnumSet.allOf(Superinstruction.class);
+
+    /**
+     * Runs the chunks of ploop, e.g. a ForkJoinPool.  Null to run the chunks on the
+     * calling thread.
+     */
+    private ExecutorService parallelExecutor = null;
+
+    /** Count of blocks created, used with uniqid for the function identifiers. */
+    private int functionCount = 0;
+
+    /**
+     * Words seen by the lexer, each distinct word is one Symbol.
+     */
+    private SymbolTable symbols = new SymbolTable();
+
     /**
      * Main entry and starting point for the application.
      * 
@@ -170,17 +297,68 @@ public class OctaneLangOneSourceFile {
      * @param codeSource
      */
     public void run(final String codeSource) {        
-        this.input = codeSource;        
+        this.setInput(codeSource);
+        this.runInput();
+    }
+
+    /**
+     * Run with source from a reader, the source is lexed as it is read.
+     * 
+     * @param reader
+     */
+    public void run(final Reader reader) {
+        this.setInput(reader);
+        this.runInput();
+    }
+
+    /**
+     * Interpret the input, errors are printed with the stacks.
+     */
+    private void runInput() {
         try {
-            if (this.verbose) {
+            if (this.context.verbose) {
                 System.out.println("Running : " + APP + "-" + VERSION);
             }
             this.interpret();
         } catch (Exception e) {
-            System.out.println(">>>> Error during interpret <<<<");
-            e.printStackTrace();
-            this.printStack();
-            this.printCodeStack();
+            this.printError(e);
+        }
+    }
+
+    /**
+     * Run a compiled program, errors are printed as with runInput().
+     *
+     * @param program
+     */
+    private void runProgram(final CompiledProgram program) {
+        try {
+            if (this.context.verbose) {
+                System.out.println("Running : " + APP + "-" + VERSION);
+            }
+            this.execute(program);
+        } catch (Exception e) {
+            this.printError(e);
+        }
+    }
+
+    /**
+     * Print an error of a run with the stacks, the trace is written if there is a trace
+     * file.
+     *
+     * @param e
+     */
+    private void printError(final Exception e) {
+        System.out.println(">>>> Error during interpret <<<<");
+        e.printStackTrace();
+        this.printStack();
+        this.printCodeStack();
+        if (this.context.trace != null && this.traceFile != null) {
+            try {
+                this.context.trace.write(this.traceFile);
+                System.out.println(">>>> Trace written to " + this.traceFile + " <<<<");
+            } catch (IOException te) {
+                System.out.println("WARN: trace not written : " + te.getMessage());
+            }
         }
     }
     
@@ -189,12 +367,118 @@ public class OctaneLangOneSourceFile {
      * Consume tokens and respond to the tokens, interpret.
      */
     public void interpret() {
+        if (this.incremental) {
+            this.interpretIncremental();
+            return;
+        }
+        if (this.programCache != null && this.input != null && this.engine == Engine.COMPILED) {
+            this.execute(this.programCache.get(this.input, this));
+            return;
+        }
         this.consume();
         do {
             final Object token = this.nextToken();
             this.codeStack.push(token);
         } while (this.c != EOF);
-        this.interpret(this.codeStack, this.dataStack);
+        this.interpretCodeStack();
+    }
+
+    /**
+     * Consume tokens a line at a time.  Each top level line is run as soon as the
+     * lexer reaches the end of the line, so the lines run in source order (top to bottom)
+     * and the words of a line run right to left.  A line break inside a block or a list
+     * does not end the line.
+     * 
+     * Commas are not used to split the source, the statements of a line depend on
+     * running right to left, e.g. a function defined at the end of the line and used
+     * at the start.  Only the tokens of the current line are held on the code stack.
+     * The lines are one run for the ExecutionLimits, the count and the deadline start
+     * with the first line.
+     */
+    public void interpretIncremental() {
+        this.context.begin();
+        this.context.continued = true;
+        try {
+            this.interpretLines();
+        } finally {
+            this.context.continued = false;
+        }
+    }
+
+    private void interpretLines() {
+        int depth = 0;
+        this.consume();
+        while (true) {
+            this.lineBreak = false;
+            final Object token = this.nextToken();
+            if (this.lineBreak && depth == 0 && !this.codeStack.isEmpty()) {
+                this.interpretCodeStack();
+                if (this.context.halted) {
+                    this.codeStack.clear();
+                    return;
+                }
+            }
+            if (this.c == EOF && (token instanceof Character)) {
+                break;
+            }
+            this.codeStack.push(token);
+            if (token == Opcode.SYMBOL_START_BLOCK || token == Opcode.SYMBOL_START_LIST) {
+                depth++;
+            } else if (token == Opcode.SYMBOL_END_BLOCK || token == Opcode.SYMBOL_END_LIST) {
+                depth--;
+            }
+        }
+        if (!this.codeStack.isEmpty()) {
+            this.interpretCodeStack();
+        }
+    }
+
+    /**
+     * Run the tokens on the code stack with the current engine, the code stack is
+     * empty after the run.
+     */
+    private void interpretCodeStack() {
+        if (this.engine == Engine.COMPILED) {
+            final CompiledProgram program = this.compile(this.codeStack);
+            this.codeStack.clear();
+            this.execute(program);
+        } else {
+            try {
+                this.interpret(this.codeStack, this.context.dataStack);
+            } finally {
+                this.context.checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Clear the stacks, functions, pointer and memory in place so the interpreter can
+     * run another source.  The engine, incremental mode and program cache are kept,
+     * as are the words in the symbol table unless the table has grown large.
+     */
+    public void reset() {
+        this.context.reset();
+        this.codeStack.clear();
+        this.functionCodeStack.clear();
+        this.variables.clear();
+        this.activeList = null;
+        this.modeAddingToList = false;
+        this.functionCount = 0;
+        this.setInput((Reader) null);
+        this.c = 0;
+        if (this.symbols.size() > MAX_POOLED_SYMBOLS) {
+            this.symbols = new SymbolTable();
+        }
+    }
+
+    /**
+     * Generate a unique identifier for a block of code.
+     *
+     * @return
+     */
+    protected String nextFunctionId() {
+        this.functionCount++;
+        return "func" + uniqid + "_" + this.functionCount;
     }
 
     /**
@@ -203,11 +487,61 @@ public class OctaneLangOneSourceFile {
      * 
      * @param currentCodeStack
      */
-    public void interpret(final Stack<Object> currentCodeStack, final Stack<Object> currentDataStack) {
+    public void interpret(final CodeStack currentCodeStack, final DataStack currentDataStack) {
+        this.context.begin();
+        try {
+            this.interpret(new CodeCursor(currentCodeStack, true), currentDataStack);
+        } catch (Halt e) {
+            this.context.halted = true;
+        }
+    }
+
+    /**
+     * Interpret a block of code by function identifier.  The block is walked in place,
+     * it is not copied or modified.
+     *
+     * @param funcid
+     * @param currentDataStack
+     */
+    protected void interpretBlock(final Object funcid, final DataStack currentDataStack) {
+        this.interpret(new CodeCursor(this.functionCodeStack.get(String.valueOf(funcid)), false), currentDataStack);
+    }
+
+    /**
+     * Interpret the words from the cursor.  With limits on the context each word is
+     * counted and the limits are checked before the word runs.
+     *
+     * @param currentCode
+     * @param currentDataStack
+     */
+    protected void interpret(final CodeCursor currentCode, final DataStack currentDataStack) {
+        final ExecutionContext ctx = this.context;
+        if (ctx.limits == null) {
+            this.interpretWords(currentCode, currentDataStack);
+            return;
+        }
+        ctx.callDepth++;
+        try {
+            this.interpretWords(currentCode, currentDataStack);
+            ctx.limits.checkStack(ctx, currentDataStack);
+        } finally {
+            ctx.callDepth--;
+        }
+    }
+
+    /**
+     * @param currentCode
+     * @param currentDataStack
+     */
+    private void interpretWords(final CodeCursor currentCode, final DataStack currentDataStack) {
 
-        while (!currentCodeStack.isEmpty()) {
+        final ExecutionLimits limits = this.context.limits;
+        while (currentCode.hasNext()) {
 
-            final Object lastValue = currentCodeStack.pop();
+            if (limits != null) {
+                limits.check(this.context, currentDataStack, 1);
+            }
+            final Object lastValue = currentCode.next();
             Object lastArg1 = -1;
             Object lastArg2 = -1;
             Object newValueForStack = -1;
@@ -215,10 +549,10 @@ public class OctaneLangOneSourceFile {
             Object lastDataStack = null;
 
             // Check for functions on data stack //
-            if (currentDataStack.size() > 0 && currentDataStack.peek() instanceof String) {
-                lastDataStack = currentDataStack.peek();
+            if (currentDataStack.peekObject() instanceof String) {
+                lastDataStack = currentDataStack.peekObject();
             }
-            if ("[".equals(String.valueOf(lastValue))) {
+            if (lastValue == Opcode.SYMBOL_START_LIST) {
                 this.modeAddingToList = false;
             }
             if ((lastDataStack != null) && OP_ADD_FUNC_BLOCK.equalsIgnoreCase(String.valueOf(lastDataStack))) {
@@ -232,8 +566,8 @@ public class OctaneLangOneSourceFile {
                 currentDataStack.push(b);
                 currentDataStack.push(a);
 
-                if (lastValue instanceof String) {
-                    if ("(".equals(lastValue)) {
+                if (lastValue == Opcode.SYMBOL_START_BLOCK) {
+                    {
                         this.functionCodeStack.get(lastFuncName).pop();
                         Collections.reverse(this.functionCodeStack.get(lastFuncName));                        
                         currentDataStack.pop();
@@ -243,7 +577,7 @@ public class OctaneLangOneSourceFile {
                     }
                 }
             } else if (this.modeAddingToList) {                              
-                this.activeList.list.add(lastValue);
+                this.activeList.add(lastValue);
             } else {
 
                 // Normal operation //
@@ -256,306 +590,402 @@ public class OctaneLangOneSourceFile {
                 } else if (lastValue instanceof LangTypeString) {
                     currentDataStack.push(lastValue);
                     
-                } else if (lastValue instanceof String) {
+                } else if (lastValue instanceof Symbol) {
 
-                    final String token = String.valueOf(lastValue);
-                    if (OP_EXIT.equalsIgnoreCase(token) || OP_QUIT.equalsIgnoreCase(token)) {
+                    // The opcode of the word was found once, when the word was first lexed //
+                    final int op = ((Symbol) lastValue).getOp();
+                    if (op == Opcode.EXIT) {
 
                         System.out.println("!!!");
                         System.out.println("!!! Exiting - output of stack at exit:");
                         this.printStack();
                         this.printCodeStack();
-                        System.exit(0);
+                        throw new Halt();
 
-                    } else if (OP_COMMA_ID.equals(token)) {                        
-                        // Token does nothing, used to breakup code block //
-                        
-                    } else if (OP_IDENTITY.equals(token)) {                        
-                        // Token does nothing, used to breakup code block //
+                    } else if (op == Opcode.NONE) {                        
+                        // Comma, id and unknown words do nothing, used to breakup code block //
                     
-                    } else if (OP_TRUE.equalsIgnoreCase(token)) {
-                        currentDataStack.push(true);
-                        
-                    } else if (OP_FALSE.equalsIgnoreCase(token)) {
-                        currentDataStack.push(false);
-                        
-                    } else if ("+".equals(token)) {
+                    } else if (op == Opcode.TRUE) {
+                        currentDataStack.pushBoolean(true);
 
-                        lastArg1 = currentDataStack.pop();
-                        lastArg2 = currentDataStack.pop();
-                        newValueForStack = (Double) lastArg1 + (Double) lastArg2;
-                        currentDataStack.push(newValueForStack);
+                    } else if (op == Opcode.FALSE) {
+                        currentDataStack.pushBoolean(false);
 
-                    } else if ("-".equals(token)) {
+                    } else if (op == Opcode.END_BLOCK) {
+                        // Code is read right to left, the end of the block is seen first.
+                        // Collect the tokens until the start of the block '('.
+                        final String funcid = this.nextFunctionId();
+                        this.functionCodeStack.put(funcid, new CodeStack(16));
+                        currentDataStack.push(funcid);
+                        currentDataStack.push(OP_ADD_FUNC_BLOCK);
 
-                        lastArg1 = currentDataStack.pop();
-                        lastArg2 = currentDataStack.pop();
-                        newValueForStack = (Double) lastArg1 - (Double) lastArg2;
-                        currentDataStack.push(newValueForStack);
+                    } else if (op == Opcode.END_LIST) {
+                        // Collect the tokens until the start of the list '['
+                        this.activeList = new LangTypeList();
+                        this.modeAddingToList = true;
 
-                    } else if ("*".equals(token)) {
+                    } else if (op == Opcode.START_LIST) {
+                        if (this.activeList != null) {
+                            this.activeList.reverse();
+                            currentDataStack.push(this.activeList);
+                            this.activeList = null;
+                        }
 
-                        lastArg1 = currentDataStack.pop();
-                        lastArg2 = currentDataStack.pop();
-                        newValueForStack = (Double) lastArg1 * (Double) lastArg2;
-                        currentDataStack.push(newValueForStack);
+                    } else if (op == Opcode.ADD) {
+
+                        final double a = currentDataStack.popNumber();
+                        final double b = currentDataStack.popNumber();
+                        currentDataStack.pushNumber(a + b);
+
+                    } else if (op == Opcode.SUB) {
+
+                        final double a = currentDataStack.popNumber();
+                        final double b = currentDataStack.popNumber();
+                        currentDataStack.pushNumber(a - b);
+
+                    } else if (op == Opcode.MUL) {
+
+                        final double a = currentDataStack.popNumber();
+                        final double b = currentDataStack.popNumber();
+                        currentDataStack.pushNumber(a * b);
                         
-                    } else if ("/".equals(token)) {
+                    } else if (op == Opcode.DIV) {
 
-                        lastArg1 = currentDataStack.pop();
-                        lastArg2 = currentDataStack.pop();
-                        newValueForStack = (Double) lastArg1 / (Double) lastArg2;
-                        currentDataStack.push(newValueForStack);
+                        final double a = currentDataStack.popNumber();
+                        final double b = currentDataStack.popNumber();
+                        currentDataStack.pushNumber(a / b);
                         
-                    } else if ("inc".equals(token)) {
+                    } else if (op == Opcode.INC) {
 
-                        lastArg1 = currentDataStack.pop();                        
-                        newValueForStack = (Double) lastArg1 + 1.0;
-                        currentDataStack.push(newValueForStack);
+                        currentDataStack.pushNumber(currentDataStack.popNumber() + 1.0);
                         
-                    } else if ("dec".equals(token)) {
+                    } else if (op == Opcode.DEC) {
 
-                        lastArg1 = currentDataStack.pop();                        
-                        newValueForStack = (Double) lastArg1 - 1.0;
-                        currentDataStack.push(newValueForStack);
+                        currentDataStack.pushNumber(currentDataStack.popNumber() - 1.0);
                         
-                    } else if ("mod".equals(token)) {
+                    } else if (op == Opcode.MOD) {
 
-                        lastArg1 = currentDataStack.pop();
-                        lastArg2 = currentDataStack.pop();
-                        newValueForStack = (Double) lastArg1 % (Double) lastArg2;
-                        currentDataStack.push(newValueForStack);
+                        final double a = currentDataStack.popNumber();
+                        final double b = currentDataStack.popNumber();
+                        currentDataStack.pushNumber(a % b);
 
-                    } else if ("norem".equals(token)) {
+                    } else if (op == Opcode.NOREM) {
 
-                        lastArg1 = currentDataStack.pop();
-                        lastArg2 = currentDataStack.pop();
-                        final Double d = ((Double) lastArg1 % (Double) lastArg2);
-                        newValueForStack = d.intValue() == 0;
-                        currentDataStack.push(newValueForStack);
+                        final double a = currentDataStack.popNumber();
+                        final double b = currentDataStack.popNumber();
+                        currentDataStack.pushBoolean((int) (a % b) == 0);
 
                         
-                    } else if ("eql".equals(token)) {
-                        
-                        lastArg1 = currentDataStack.pop();
-                        lastArg2 = currentDataStack.pop();
-                        newValueForStack = lastArg1.equals(lastArg2);
-                        currentDataStack.push(newValueForStack);
+                    } else if (op == Opcode.EQL) {
                         
-                    } else if ("or".equals(token)) {
+                        currentDataStack.pushBoolean(currentDataStack.popEquals());
                         
-                        final boolean a = (Boolean) currentDataStack.pop();
-                        final boolean b = (Boolean) currentDataStack.pop();
-                        newValueForStack = a || b; 
-                        currentDataStack.push(newValueForStack);
+                    } else if (op == Opcode.OR) {
                         
-                    } else if ("lambda".equals(token)) {                        
+                        final boolean a = currentDataStack.popBoolean();
+                        final boolean b = currentDataStack.popBoolean();
+                        currentDataStack.pushBoolean(a || b);
+
+                    } else if (op == Opcode.SWAP) {
+
+                        currentDataStack.swap();
+
+                    } else if (op == Opcode.DUP) {
+
+                        currentDataStack.dup();
+
+                    } else if (op == Opcode.IFSTK) {
+
+                        // Select between the two values under the boolean at the top of the stack
+                        if (currentDataStack.popBoolean()) {
+                            currentDataStack.nip();
+                        } else {
+                            currentDataStack.drop();
+                        }
+
+                    } else if (op == Opcode.RANGE) {
+
+                        // Lazy range of numbers from zero up to the value at the top of the stack
+                        currentDataStack.push(new LangTypeRange(0, (int) currentDataStack.popNumber(), 1));
+
+                    } else if (op == Opcode.SUMSTK || op == Opcode.MINSTK || op == Opcode.MAXSTK) {
+
+                        // Replace the numbers (or the sequence) at the top of the stack with their sum
+                        reduceStack(currentDataStack, op);
+
+                    } else if (op == Opcode.LEN) {
+
+                        // Number of elements of the list or sequence at the top of the stack
+                        currentDataStack.pushNumber(length((LangTypeSeq) currentDataStack.pop()));
+
+                    } else if (op == Opcode.NTH) {
+
+                        // 'nth INDEX LIST', the element at the index (from zero)
+                        nth(currentDataStack);
+
+                    } else if (op >= Opcode.VSUM && op <= Opcode.VMAX) {
+
+                        // Bulk numeric words over whole lists, see vector()
+                        this.vector(op, currentDataStack);
+
+                    } else if (op == Opcode.VFILTER) {
+
+                        this.vfilter(String.valueOf(currentCode.next()), currentDataStack);
+
+                    } else if (op == Opcode.MAP || op == Opcode.FILTER) {
+
+                        final String funcname = String.valueOf(currentCode.next());
+                        final LangTypeSeq seq = (LangTypeSeq) currentDataStack.pop();
+                        final CompiledBlock body = this.lookupBlock(this.context.functionCodeLookup.get(funcname), this.context);
+                        currentDataStack.push(new LangTypeMapped(seq, funcname, body, this.context, op == Opcode.FILTER));
+
+                    } else if (op == Opcode.PLOOP) {
+
+                        // Reduce the results of the function for each element, the list is
+                        // run in chunks, see ploop()
+                        final String funcname = String.valueOf(currentCode.next());
+                        final String reducer = String.valueOf(currentCode.next());
+                        final LangTypeSeq seq = (LangTypeSeq) currentDataStack.pop();
+                        final CompiledBlock body = this.lookupBlock(this.context.functionCodeLookup.get(funcname), this.context);
+                        this.ploop(this.context, body, seq, reducer, currentDataStack);
+
+                    } else if (op == Opcode.LOOP) {
+
+                        // Run the named function once for each element of the list.  Each run
+                        // starts with its own stack holding the element, the top of that stack
+                        // is pushed on to the current data stack.
+                        final String funcname = String.valueOf(currentCode.next());
+                        final String funcid = this.context.functionCodeLookup.get(funcname);
+                        final LangTypeSeq seq = (LangTypeSeq) currentDataStack.pop();
+                        final CodeCursor body = new CodeCursor(this.functionCodeStack.get(funcid), false);
+                        final DataStack s = new DataStack();
+                        if (seq instanceof LangTypeList && ((LangTypeList) seq).isNumeric()) {
+                            final LangTypeList list = (LangTypeList) seq;
+                            for (int i = 0; i < list.size(); i++) {
+                                s.clear();
+                                s.pushNumber(list.getNumber(i));
+                                this.interpret(body.reset(), s);
+                                if (s.size() > 0) {
+                                    currentDataStack.pushTopOf(s);
+                                }
+                            }
+                        } else {
+                            for (final Object o : seq) {
+                                s.clear();
+                                s.push(o);
+                                this.interpret(body.reset(), s);
+                                if (s.size() > 0) {
+                                    currentDataStack.pushTopOf(s);
+                                }
+                            }
+                        }
+
+                    } else if (op == Opcode.LAMBDA) {
                         // Pull 2 args, last op and then the function name
                         // Execute the block of code
                         lastArg1 = currentDataStack.pop();
                         lastArg2 = currentDataStack.pop();                        
-                        final Stack<Object> cpst = this.copy(this.functionCodeStack.get(String.valueOf(lastArg2)));
-                        this.interpret(cpst, currentDataStack);                                                
+                        this.interpretBlock(lastArg2, currentDataStack);                                                
                         
-                    } else if ("lambdasav".equals(token)) {                        
+                    } else if (op == Opcode.LAMBDASAV) {                        
                         // Pull 2 args, last op and then the function name
                         // Execute the block of code
                         lastArg1 = currentDataStack.pop();
                         lastArg2 = currentDataStack.pop();                        
-                        final Stack<Object> cpst = this.copy(this.functionCodeStack.get(String.valueOf(lastArg2)));
-                        final Stack<Object> s = this.copy(currentDataStack); 
-                        this.interpret(cpst, s);
+                        final DataStack s = currentDataStack.copy(); 
+                        this.interpretBlock(lastArg2, s);
                         if (s.size() > 0) {
-                            currentDataStack.push(s.pop());
+                            currentDataStack.pushTopOf(s);
                         }                                                                       
-                    } else if ("if".equals(token)) {
+                    } else if (op == Opcode.IF) {
                         // Pull 2 args, last op and then the function name
                         // Execute the block of code
                         {
                             lastArg1 = currentDataStack.pop();
                             lastArg2 = currentDataStack.pop();                                                        
-                            final Stack<Object> cpst = this.copy(this.functionCodeStack.get(String.valueOf(lastArg2)));
-                            this.interpret(cpst, currentDataStack);
+                            this.interpretBlock(lastArg2, currentDataStack);
                         }
                         // top of the stack should be a boolean
-                        final boolean iftrue = (Boolean)currentDataStack.pop();
+                        final boolean iftrue = currentDataStack.popBoolean();
                         if (iftrue) {
                             lastArg1 = currentDataStack.pop();
                             lastArg2 = currentDataStack.pop();
                             currentDataStack.pop();
                             currentDataStack.pop();
-                            final Stack<Object> cpst = this.copy(this.functionCodeStack.get(String.valueOf(lastArg2)));
-                            this.interpret(cpst, currentDataStack);                            
+                            this.interpretBlock(lastArg2, currentDataStack);                            
                         } else {
                             currentDataStack.pop();
                             currentDataStack.pop();
                             lastArg1 = currentDataStack.pop();
                             lastArg2 = currentDataStack.pop();
-                            final Stack<Object> cpst = this.copy(this.functionCodeStack.get(String.valueOf(lastArg2)));
-                            this.interpret(cpst, currentDataStack);                            
+                            this.interpretBlock(lastArg2, currentDataStack);                            
                         }
-                        if (verbose) {
+                        if (this.context.verbose) {
                             System.out.println("* DONE-" + lastArg2);
                         }
                         
-                    } else if ("func".equals(token)) {
+                    } else if (op == Opcode.FUNC) {
                         
                         // Pull 2 args, last op and then the function name
                         // Execute the block of code
                         lastArg1 = currentDataStack.pop();
                         lastArg2 = currentDataStack.pop();
-                        final Object lastArg3 = currentCodeStack.pop();
-                        this.functionCodeLookup.put(String.valueOf(lastArg3), String.valueOf(lastArg2));                        
-                        if (verbose) {
+                        final Object lastArg3 = currentCode.next();
+                        this.context.functionCodeLookup.put(String.valueOf(lastArg3), String.valueOf(lastArg2));                        
+                        if (this.context.verbose) {
                             System.out.println();
                             System.out.println("* Attempt to store block - " + lastArg2 + " as '" + lastArg3 + "'");                        
                             System.out.println("* DONE-" + lastArg2);
                         }
                         
-                    } else if ("call".equals(token)) {
+                    } else if (op == Opcode.CALL) {
                         
-                        final String funcname = String.valueOf(currentCodeStack.pop());
-                        final String funcid = this.functionCodeLookup.get(funcname);
-                        if (verbose) {
+                        final String funcname = String.valueOf(currentCode.next());
+                        final String funcid = this.context.functionCodeLookup.get(funcname);
+                        if (this.context.verbose) {
                             System.out.println("* Running function by id : " + funcid);
                         }
-                        final Stack<Object> cpst = this.copy(this.functionCodeStack.get(funcid));
-                        this.interpret(cpst, currentDataStack);                        
+                        this.interpretBlock(funcid, currentDataStack);                        
                         
-                    } else if ("callsav".equals(token)) {
+                    } else if (op == Opcode.CALLSAV) {
                         
                         // Call but operate on its own stack
                         // pop the last value on to the current data stack
-                        final String funcname = String.valueOf(currentCodeStack.pop());
-                        final String funcid = this.functionCodeLookup.get(funcname);                        
-                        final Stack<Object> cpst = this.copy(this.functionCodeStack.get(funcid));
-                        final Stack<Object> s = this.copy(currentDataStack); 
-                        this.pointer++;
-                        
-                    } else if ("ptrdec".equalsIgnoreCase(token)) {
-                        this.pointer--;
+                        final String funcname = String.valueOf(currentCode.next());
+                        final String funcid = this.context.functionCodeLookup.get(funcname);                        
+                        final DataStack s = currentDataStack.copy();
+                        this.interpretBlock(funcid, s);
+                        if (s.size() > 0) {
+                            currentDataStack.pushTopOf(s);
+                        }
+
+                    } else if (op == Opcode.PTRINC) {
+                        if (++this.context.pointer > this.context.maxPointer) {
+                            this.context.maxPointer = this.context.pointer;
+                        }
+
+                    } else if (op == Opcode.PTRDEC) {
+                        this.context.pointer--;
                         
-                    } else if ("ptr".equalsIgnoreCase(token)) {
+                    } else if (op == Opcode.PTR) {
                         // Put the pointer value on the stack (not the value at the pointer)
-                        currentDataStack.push(this.pointer);
+                        currentDataStack.pushInteger(this.context.pointer);
                         
-                    } else if ("ptrval".equalsIgnoreCase(token)) {
+                    } else if (op == Opcode.PTRVAL) {
                         // Put value at the pointer on the stack
-                        final int [] active = (int [])this.activeObjectArray;
-                        currentDataStack.push((double) active[this.pointer]);
+                        currentDataStack.pushNumber(this.context.tape.get(this.context.pointer));
                         
-                    } else if ("ptrload".equalsIgnoreCase(token)) {
+                    } else if (op == Opcode.PTRLOAD) {
                         
-                        final int i = ((Double) currentCodeStack.pop()).intValue();
-                        this.pointer = i;
+                        final int i = ((Double) currentCode.next()).intValue();
+                        this.context.pointer = i;
+                        if (i > this.context.maxPointer) {
+                            this.context.maxPointer = i;
+                        }
                         
-                    } else if ("ptrsetstk".equalsIgnoreCase(token)) {
+                    } else if (op == Opcode.PTRSETSTK) {
                         
                         // Pop the value off the data stack and storing
-                        final Object o = currentDataStack.peek();
-                        final int i = ((Double) o).intValue();
-                        final int [] active = (int [])this.activeObjectArray;
-                        active[this.pointer] = i;                        
+                        final int i = (int) currentDataStack.peekNumber();
+                        this.context.tape.set(this.context.pointer, i);
                         
-                    } else if ("ptrset".equalsIgnoreCase(token)) {
+                    } else if (op == Opcode.PTRSET) {
                         
-                        if (verbose && this.pointer < 0) {                            
+                        if (this.context.verbose && this.context.pointer < 0) {                            
                             System.out.println("WARN: pointer is less than zero");
                         } else {
-                            final int [] active = (int [])this.activeObjectArray;
-                            if (verbose && this.pointer >= active.length) {
+                            final Tape active = this.context.tape;
+                            if (this.context.verbose && this.context.pointer >= active.size()) {
                                 System.out.println("WARN: pointer is larger than memory allocated");
                             } else {
-                                final Object o = currentCodeStack.pop();
+                                final Object o = currentCode.next();
                                 if (o instanceof LangTypeChar) {                                    
                                     final LangTypeChar c = (LangTypeChar) o;
-                                    active[this.pointer] = c.toString().charAt(1);
+                                    active.set(this.context.pointer, c.toString().charAt(1));
                                 } else if (o instanceof Number) {
                                     final int i = ((Double) o).intValue();
-                                    active[this.pointer] = i;
+                                    active.set(this.context.pointer, i);
                                 }
                             }                            
                         }
                         
-                    } else if ("ptrplus".equalsIgnoreCase(token)) {
-                        if (verbose && this.pointer < 0) {
+                    } else if (op == Opcode.PTRPLUS) {
+                        if (this.context.verbose && this.context.pointer < 0) {
                             System.out.println("WARN: pointer is less than zero");
                         } else {
-                            final int [] active = (int [])this.activeObjectArray;
-                            if (verbose && this.pointer >= active.length) {
+                            final Tape active = this.context.tape;
+                            if (this.context.verbose && this.context.pointer >= active.size()) {
                                 System.out.println("WARN: pointer is larger than memory allocated");
                             } else {
-                                active[this.pointer]++;
+                                active.add(this.context.pointer, 1);
                             }                            
                         }
-                    } else if ("ptrminus".equalsIgnoreCase(token)) {
-                        if (verbose && this.pointer < 0) {
+                    } else if (op == Opcode.PTRMINUS) {
+                        if (this.context.verbose && this.context.pointer < 0) {
                             System.out.println("WARN: pointer is less than zero");
                         } else {
-                            final int [] active = (int [])this.activeObjectArray;
-                            if (verbose && this.pointer >= active.length) {
+                            final Tape active = this.context.tape;
+                            if (this.context.verbose && this.context.pointer >= active.size()) {
                                 System.out.println("WARN: pointer is larger than memory allocated");
                             } else {
-                                active[this.pointer]--;
+                                active.add(this.context.pointer, -1);
                             }                            
                         }
                         
-                    } else if ("ptrputc".equalsIgnoreCase(token)) {
-                        if (verbose && this.pointer < 0) {
+                    } else if (op == Opcode.PTRPUTC) {
+                        if (this.context.verbose && this.context.pointer < 0) {
                             System.out.println("WARN: pointer is less than zero");
                         } else {
-                            final int [] active = (int [])this.activeObjectArray;
-                            if (verbose && this.pointer >= active.length) {
+                            final Tape active = this.context.tape;
+                            if (this.context.verbose && this.context.pointer >= active.size()) {
                                 System.out.println("WARN: pointer is larger than memory allocated");
                             } else {
                                 // Check for ascii printable //
-                                if (active[this.pointer] >= 32 && active[this.pointer] <= 126) {
-                                    System.out.print(Character.valueOf((char)active[this.pointer]));
+                                final int c = active.get(this.context.pointer);
+                                if (c >= 32 && c <= 126) {
+                                    System.out.print(Character.valueOf((char) c));
                                 }
                             }                            
                         }
 
-                    } else if ("ptrwhile".equals(token)) {
+                    } else if (op == Opcode.PTRWHILE) {
                         
                         // Pull 2 args, last op and then the function name
                         // Execute the block of code   
-                        int [] active = (int [])this.activeObjectArray;
-                        int ptr = active[this.pointer];
+                        int ptr = this.context.tape.get(this.context.pointer);
                         
                         lastArg1 = currentDataStack.pop();                        
                         lastArg2 = currentDataStack.pop();
-                        if (verbose) {
+                        if (this.context.verbose) {
                             System.out.println();
                             System.out.println("* Attempt to execute block - " + lastArg2);
                         }
-                        while (ptr != 0) {                                                       
-                            final Stack<Object> cpst = this.copy(this.functionCodeStack.get(String.valueOf(lastArg2)));
-                            this.interpret(cpst, currentDataStack);
-                            active = (int [])this.activeObjectArray;
-                            ptr = active[this.pointer];                            
+                        final CodeCursor body = new CodeCursor(this.functionCodeStack.get(String.valueOf(lastArg2)), false);
+                        while (ptr != 0) {
+                            this.interpret(body.reset(), currentDataStack);
+                            ptr = this.context.tape.get(this.context.pointer);
                         }
-                        if (verbose) {
+                        if (this.context.verbose) {
                             System.out.println("* DONE-" + lastArg2);
                         }
                         
-                    } else if ("ptrdebug".equals(token)) {
+                    } else if (op == Opcode.PTRDEBUG) {
                         
-                        int [] active = (int [])this.activeObjectArray;
-                        int ptr = active[this.pointer];
-                        if (verbose) {
-                            System.out.println("* Value of Pointer (Address) : " + this.pointer);
+                        final int ptr = this.context.tape.get(this.context.pointer);
+                        if (this.context.verbose) {
+                            System.out.println("* Value of Pointer (Address) : " + this.context.pointer);
                             System.out.println("* Value at Pointer : " + ptr);
                         }
                         
-                    } else if ("verbosedebug".equals(token)) {
+                    } else if (op == Opcode.VERBOSE) {
                         
-                        this.verbose = !this.verbose;
-                        System.out.println("* Verbose setting modified : now = " + this.verbose);
+                        this.context.verbose = !this.context.verbose;
+                        System.out.println("* Verbose setting modified : now = " + this.context.verbose);
                         
-                    } else if ("data".equalsIgnoreCase(token)) {
+                    } else if (op == Opcode.DATA) {
                         this.printStack();
 
-                    } else if ("code".equalsIgnoreCase(token)) {
+                    } else if (op == Opcode.CODE) {
                         this.printCodeStack();
 
                     }
@@ -568,359 +998,6030 @@ public class OctaneLangOneSourceFile {
     }
 
     /**
-     * Print the data stack.
+     * Lex and compile source, the program can be run any number of times with
+     * execute(CompiledProgram).
+     *
+     * @param source
+     * @return
      */
-    public void printStack() {
-        System.out.println();
-        System.out.println(">>> Data Stack <<<");
-        int i = 0;
-        final List<Object> s = new ArrayList<Object>(this.dataStack);
-        Collections.reverse(s);
-        for (final Object obj : s) {
-            System.out.println("  -> index-" + (i + 1) + ":  " + obj + " " + (i == 0 ? "(top)" : ""));
-            i++;
-        }
+    public CompiledProgram compile(final String source) {
+        final CodeStack tokens = new CodeStack(256);
+        this.setInput(source);
+        this.consume();
+        do {
+            tokens.push(this.nextToken());
+        } while (this.c != EOF);
+        return this.compile(tokens);
     }
-    
+
     /**
-     * Return a string representation of the data stack.
-     * 
+     * Compile the tokens of a code stack to opcodes.  The tokens are not modified, as with
+     * the code stack the last token is the first word to run.
+     *
+     * @param tokens
      * @return
      */
-    public String toStringStack() {
-        final List<Object> s = new ArrayList<Object>(this.dataStack);
-        Collections.reverse(s);
-        final StringBuffer buf = new StringBuffer();
-        for (final Object obj : s) {
-            buf.append(obj);
-            buf.append(" ");                      
-        }
-        return buf.toString().trim();
+    public CompiledProgram compile(final List<Object> tokens) {
+        final Compiler compiler = new Compiler(this.optimize, this.superinstructions);
+        final CompiledBlock main = compiler.compileBlock(null, tokens, 0, tokens.size());
+        return new CompiledProgram(main, compiler.blocks, compiler.pool.toArray());
     }
-    
+
     /**
-     * Return a string representation of the top of the stack.
-     * 
-     * @return
+     * Compile a source file and write the program image, see ProgramImage.
+     *
+     * @param source
+     * @param image
+     * @return the compiled program
+     * @throws IOException
      */
-    public String toStringStackTop() {
-        final List<Object> s = new ArrayList<Object>(this.dataStack);
-        Collections.reverse(s);
-        final StringBuffer buf = new StringBuffer();        
-        for (final Object obj : s) {
-            buf.append(obj);
-            break;
-        }
-        return buf.toString().trim();
+    public CompiledProgram compileImage(final File source, final File image) throws IOException {
+        final byte [] bytes = readFile(source);
+        final CompiledProgram program = this.compile(new String(bytes, Charset.defaultCharset().name()));
+        ProgramImage.write(program, ProgramCache.hash(bytes), image);
+        return program;
     }
 
     /**
-     * Copy stack.
-     * 
-     * @param s
-     * @return
+     * Load a program from the image file, without the lexer and the compiler.  The
+     * source is compiled again and the image is written again when the image is
+     * missing, is not valid, is of another version or was made from another source.
+     *
+     * @param image
+     * @param source the source file of the image, null to only load the image
+     * @return the program
+     * @throws IOException when the image can not be used and there is no source
      */
-    public Stack<Object> copy(final Stack<Object> s) {
-        final Stack<Object> z = new Stack<Object>();
-        for (final Object o: s) {
-            z.push(o);
+    public CompiledProgram loadProgram(final File image, final File source) throws IOException {
+        final byte [] bytes = (source != null && source.exists()) ? readFile(source) : null;
+        String reason = "no image file";
+        if (image.exists()) {
+            try {
+                final ProgramImage loaded = ProgramImage.load(image, this);
+                if (bytes == null || loaded.getSourceHash().equals(ProgramCache.hash(bytes))) {
+                    return loaded.getProgram();
+                }
+                reason = "the source has changed";
+            } catch (IOException e) {
+                if (bytes == null) {
+                    throw e;
+                }
+                reason = e.getMessage();
+            }
+        } else if (bytes == null) {
+            throw new IOException("No program image or source : " + image);
         }
-        return z;
+        if (this.context.verbose) {
+            System.out.println("Compiling " + source + ", " + reason);
+        }
+        final CompiledProgram program = this.compile(new String(bytes, Charset.defaultCharset().name()));
+        try {
+            ProgramImage.write(program, ProgramCache.hash(bytes), image);
+        } catch (IOException e) {
+            System.out.println("WARN: program image not written : " + e.getMessage());
+        }
+        return program;
     }
-    
-    /**
-     * Output the code stack to console.
-     * The code stack contains words for execution.
+
+    private static byte [] readFile(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte [] bytes = new byte [(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Run a compiled program against the data stack.
+     *
+     * @param program
      */
-    public void printCodeStack() {
-        System.out.println();
-        System.out.println(">>> Code Stack <<<");
-        int i = 0;
-        final List<Object> s = new ArrayList<Object>(this.codeStack);
-        Collections.reverse(s);
-        for (final Object obj : s) {
-            System.out.println("  -> index-" + (i + 1) + ":  " + obj + " " + (i == 0 ? "(top)" : ""));
-            i++;
+    public void execute(final CompiledProgram program) {
+        this.execute(program, this.context);
+    }
+
+    /**
+     * Run a compiled program with an execution context.  The program is not modified,
+     * one program can run on many threads at the same time with a context for each
+     * thread, e.g.
+     * <pre>
+     * final CompiledProgram program = interp.compile(source);
+     * // On each worker thread //
+     * final ExecutionContext ctx = new ExecutionContext();
+     * interp.execute(program, ctx);
+     * </pre>
+     *
+     * @param program
+     * @param ctx
+     */
+    public void execute(final CompiledProgram program, final ExecutionContext ctx) {
+        ctx.load(program);
+        if (ctx == this.context) {
+            for (final CompiledBlock block : program.getBlocks()) {
+                this.functionCodeStack.put(block.getId(), block.getSource());
+            }
+        }
+        final Profiler profiler = (ctx.profile instanceof Profiler) ? (Profiler) ctx.profile : null;
+        final long allocated = (profiler != null) ? Profiler.allocatedBytes() : -1;
+        if (profiler != null) {
+            profiler.start(ctx);
+        }
+        ctx.begin();
+        try {
+            this.execute(program.getMain(), ctx.dataStack, ctx);
+        } catch (Halt e) {
+            ctx.halted = true;
+        } finally {
+            ctx.checkpoint();
+            if (profiler != null) {
+                profiler.stop(ctx);
+            }
+            if (ctx.profile != null) {
+                ctx.profile.merge(ctx);
+            }
+            if (allocated >= 0) {
+                profiler.allocated(Profiler.allocatedBytes() - allocated);
+            }
         }
     }
 
     /**
-     * Output the function stack to the console.
-     * The function stack contains a code stack mapped to a function name.
+     * Start 'ptrwhile ( ... )', the block runs while the value at the pointer is not
+     * zero.
+     *
+     * @param body
+     * @param id function identifier of the block, for the verbose output
+     * @param stack
+     * @param ctx
+     * @return the frame pushed for the block, null when the block does not run
      */
-    public void printFunctionStack() {
-        System.out.println();
-        for (final String keyFunctionName : this.functionCodeStack.keySet()) {
-            final Stack<Object> st = this.functionCodeStack.get(keyFunctionName);
-            System.out.println("Function : " + keyFunctionName);
-            System.out.println("  >>> Function-Stack <<<");
-            int i = 0;
-            final List<Object> s = new ArrayList<Object>(st);
-            Collections.reverse(s);
-            for (final Object obj : s) {
-                System.out.println("    -> index-" + (i + 1) + ":  " + obj + " " + (i == 0 ? "(top)" : ""));
-                i++;
+    private Frame ptrwhile(final CompiledBlock body, final Object id, final DataStack stack, final ExecutionContext ctx) {
+        if (ctx.verbose) {
+            System.out.println();
+            System.out.println("* Attempt to execute block - " + id);
+        }
+        if (ctx.tape.get(ctx.pointer) == 0) {
+            if (ctx.verbose) {
+                System.out.println("* DONE-" + id);
             }
-            System.out.println("  End of Function Stack - " + keyFunctionName);
+            return null;
         }
+        final Frame frame = push(ctx, body, stack, Frame.WHILE);
+        frame.id = id;
+        return this.enter(ctx, frame);
     }
 
     /**
-     * Scan for next token.
-     * 
-     * Used with lexing on the input code string data.
-     * 
-     * @return Token
+     * Find the compiled block for a function identifier.  Blocks collected by the
+     * string engine are compiled on first use, these are only found for the context
+     * of this interpreter.
+     *
+     * @param funcid
+     * @param ctx
+     * @return
      */
-    public Object nextToken() {
-        while (c() != EOF) {
-            switch (c()) {
-            case ' ':
-            case '\t':
-            case '\n':
-            case '\r':
-                consumeWhitespace();
-                continue;
-            case '#':
-                consumeComment();
-                continue;
-            case '(':
-                consume();
-                return "(";
-            case ')':
-                consume();
-                return ")";                
-            case '[':
-                consume();
-                return "[";
-            case ']':
-                consume();
-                return "]";                
-            case ',':
-                consume();
-                return ",";
-            case '"':
-                return this.scanString();
-            case '\'':
-                return this.scanChar();  
-            case '+':
-                consume();
-                return "+";                                        
-            case '-':
-                consume();
-                return "-";                
-            case '*':
-                consume();
-                return "*";            
-            case '/':
-                consume();
-                return "/";
-            case '\0':
-                return EOF;
-            default:
-                if (this.isDigit()) {
-                    return scanInteger();
-                } else if (this.isLetter()) {
-                    return scanWord();
-                } 
-                final int code = (int) c();
-                throw new Error("invalid character: {" + c() + "} code:" + code);
+    protected CompiledBlock lookupBlock(final Object funcid, final ExecutionContext ctx) {
+        final String id = String.valueOf(funcid);
+        CompiledBlock block = ctx.compiledBlocks.get(id);
+        if (block == null) {
+            final CodeStack source = (ctx == this.context) ? this.functionCodeStack.get(id) : null;
+            if (source == null) {
+                throw new IllegalStateException("Invalid function block : " + id);
             }
+            final CompiledProgram program = this.compile(source);
+            ctx.load(program);
+            block = program.getMain();
+            ctx.compiledBlocks.put(id, block);
+        }
+        return block;
+    }
 
+    /**
+     * Run a compiled block.  The blocks it runs are frames on the frame stack of the
+     * context, not Java calls, the frames below the top when the run starts are left
+     * as they are.
+     *
+     * @param block
+     * @param currentDataStack
+     * @param ctx
+     */
+    protected void execute(final CompiledBlock block, final DataStack currentDataStack, final ExecutionContext ctx) {
+        final int base = ctx.callCount;
+        try {
+            this.enter(ctx, push(ctx, block, currentDataStack, Frame.RETURN));
+            this.dispatch(ctx, base);
+        } finally {
+            // Only left on an error or 'exit' //
+            while (ctx.callCount > base) {
+                final Frame frame = ctx.calls[ctx.callCount - 1];
+                this.leave(ctx, frame, false);
+                frame.clear();
+                pop(ctx);
+            }
         }
-        return EOF;
     }
 
     /**
-     * Scan for a token name/integer.
-     * Used with lexing on the input code string data.
-     * 
-     * @return Token
+     * Push a frame for a block, the run of the block starts with enter().
+     *
+     * @param ctx
+     * @param block
+     * @param stack
+     * @param kind what happens when the block ends, e.g. Frame.RETURN
+     * @return
      */
-    public LangTypeString scanString() {
-        final StringBuilder buf = new StringBuilder();
-        consume();
-        do {
-            buf.append(c());
-            consume();
-        } while (c != '"');
-        consume();    
-        return new LangTypeString(buf.toString());
+    private static Frame push(final ExecutionContext ctx, final CompiledBlock block, final DataStack stack, final int kind) {
+        if (ctx.callCount == ctx.calls.length) {
+            ctx.growCalls();
+        }
+        final Frame frame = ctx.calls[ctx.callCount++];
+        frame.block = block;
+        frame.stack = stack;
+        frame.kind = kind;
+        return frame;
     }
-    
+
     /**
-     * Scan for a token name/integer.
-     * Used with lexing on the input code string data.
-     *  
-     * @return Token
+     * Pop the frame on top, the frame is kept for the next call.
+     *
+     * @param ctx
      */
-    public LangTypeChar scanChar() {
-        final StringBuilder buf = new StringBuilder();
-        consume();
-        do {
-            buf.append(c());
-            consume();
-        } while (c != '\'');
-        consume();        
-        return new LangTypeChar(buf.toString());
+    private static void pop(final ExecutionContext ctx) {
+        final Frame frame = ctx.calls[--ctx.callCount];
+        frame.block = null;
+        frame.stack = null;
     }
-    
+
     /**
-     * Scan for a token name/integer.
-     * Used with lexing on the input code string data.
-     * 
-     * @return Token
+     * Start a run of the block of a frame.
+     *
+     * @param ctx
+     * @param frame
+     * @return the frame
      */
-    public double scanInteger() {
-        final StringBuilder buf = new StringBuilder();
-        do {
-            buf.append(c());
-            consume();
-        } while (isDigit());
-        final double data = Double.parseDouble(buf.toString());
-        return data;
+    private Frame enter(final ExecutionContext ctx, final Frame frame) {
+        frame.ip = 0;
+        if (ctx.profile != null || ctx.limits != null) {
+            this.count(ctx, frame);
+        }
+        return frame;
     }
 
     /**
-     * Scan for a token name/integer.
-     * Used with lexing on the input code string data.
-     * 
-     * @return Token
+     * End a run of the block of a frame.
+     *
+     * @param ctx
+     * @param frame
+     * @param check false when the run ends with an error
      */
-    public String scanWord() {
-        final StringBuilder buf = new StringBuilder();
-        do {
-            buf.append(c());
-            consume();
-        } while (isLetter());
-        return buf.toString();
+    private void leave(final ExecutionContext ctx, final Frame frame, final boolean check) {
+        if (frame.entered) {
+            this.uncount(ctx, frame, check);
+        }
     }
 
     /**
-     * Check if character is a letter.
-     * Used with lexing on the input code string data.
-     * 
-     * @return boolean
+     * With a profile on the context the run of the block is counted, a Profiler also
+     * tracks the block for the time samples or, without a sample interval, times the
+     * block.  With limits the instructions of the block are counted and the limits are
+     * checked before the block runs.
+     *
+     * @param ctx
+     * @param frame
      */
-    public boolean isLetter() {
-        return (c() >= 'a') && (c() <= 'z') || (c() >= 'A') && (c() <= 'Z');
+    private void count(final ExecutionContext ctx, final Frame frame) {
+        final DispatchProfile profile = ctx.profile;
+        if (profile != null) {
+            // A loop runs the same block in the frame, the counts are found once //
+            if (frame.counted != frame.block) {
+                frame.counts = DispatchProfile.local(ctx, frame.block);
+                frame.counted = frame.block;
+            }
+            frame.counts[0]++;
+            if (profile instanceof Profiler) {
+                final Profiler profiler = (Profiler) profile;
+                profiler.enter(frame.block, frame.stack.size(), ctx);
+                if (profiler.getInterval() == 0) {
+                    frame.outer = ctx.childNanos;
+                    ctx.childNanos = 0;
+                    frame.start = System.nanoTime();
+                }
+            }
+        }
+        frame.entered = true;
+        final ExecutionLimits limits = ctx.limits;
+        if (limits != null) {
+            ctx.callDepth++;
+            limits.check(ctx, frame.stack, Math.max(1, frame.block.getInstructions()));
+        }
     }
 
     /**
-     * Check if character is a digit.
-     * Used with lexing on the input code string data.
-     * 
-     * @return boolean
+     * The end of the run for count(), the time of the blocks it ran is only in the
+     * inclusive time of the block.
+     *
+     * @param ctx
+     * @param frame
+     * @param check
      */
-    public boolean isDigit() {
-        return (c() >= '0') && (c() <= '9');
+    private void uncount(final ExecutionContext ctx, final Frame frame, final boolean check) {
+        frame.entered = false;
+        final DispatchProfile profile = ctx.profile;
+        if (profile instanceof Profiler) {
+            final Profiler profiler = (Profiler) profile;
+            if (profiler.getInterval() == 0) {
+                final long inclusive = System.nanoTime() - frame.start;
+                profiler.exit(ctx, frame.stack.size());
+                frame.counts[1] += inclusive;
+                frame.counts[2] += inclusive - ctx.childNanos;
+                ctx.childNanos = frame.outer + inclusive;
+            } else {
+                profiler.exit(ctx, frame.stack.size());
+            }
+        }
+        final ExecutionLimits limits = ctx.limits;
+        if (limits != null) {
+            ctx.callDepth--;
+            if (check) {
+                limits.checkStack(ctx, frame.stack);
+            }
+        }
+    }
+
+    /**
+     * Run the next block in the frame in place of the block running in the frame, the
+     * next block returns to the caller of the frame.
+     *
+     * @param ctx
+     * @param frame
+     * @param next
+     */
+    private void tail(final ExecutionContext ctx, final Frame frame, final CompiledBlock next) {
+        this.leave(ctx, frame, true);
+        frame.block = next;
+        this.enter(ctx, frame);
+    }
+
+    /**
+     * The block of the frame on top has ended.  The frame is popped or, for a block
+     * that runs again (ptrwhile, loop) or the condition of 'if', the next run starts
+     * in the same frame.
+     *
+     * @param ctx
+     */
+    private void ret(final ExecutionContext ctx) {
+        final Frame frame = ctx.calls[ctx.callCount - 1];
+        this.leave(ctx, frame, true);
+        switch (frame.kind) {
+        case Frame.SAVE:
+            if (frame.stack.size() > 0) {
+                frame.caller.pushTopOf(frame.stack);
+            }
+            break;
+        case Frame.IF: {
+            final DataStack stack = frame.stack;
+            final Object id;
+            if (stack.popBoolean()) {
+                stack.drop();
+                id = stack.pop();
+                stack.drop();
+                stack.drop();
+            } else {
+                stack.drop();
+                stack.drop();
+                stack.drop();
+                id = stack.pop();
+            }
+            // The branch returns to the caller, the id is only kept for the verbose output //
+            frame.kind = ctx.verbose ? Frame.BRANCH : Frame.RETURN;
+            frame.id = id;
+            frame.block = this.lookupBlock(id, ctx);
+            this.enter(ctx, frame);
+            return;
+        }
+        case Frame.BRANCH:
+            System.out.println("* DONE-" + frame.id);
+            break;
+        case Frame.WHILE:
+            if (ctx.tape.get(ctx.pointer) != 0) {
+                this.enter(ctx, frame);
+                return;
+            }
+            if (ctx.verbose) {
+                System.out.println("* DONE-" + frame.id);
+            }
+            break;
+        case Frame.LOOP:
+            if (frame.again()) {
+                this.enter(ctx, frame);
+                return;
+            }
+            break;
+        default:
+            break;
+        }
+        frame.clear();
+        pop(ctx);
     }
 
-    /**
-     * Consume and detect whitespace.
-     * Used with lexing on the input code string data.
-     */
-    public void consumeWhitespace() {
-        while (c() == ' ' || c() == '\t' || c() == '\n' || c() == '\r') {
-            consume();
+    /**
+     * Dispatch on each opcode of the block on top of the frame stack until the frame
+     * stack is back to the base.  The opcodes follow the same rules as the words in
+     * interpret(CodeStack, DataStack).  All of the state changed by the blocks is in
+     * the context.
+     *
+     * @param ctx
+     * @param base frames below the block the run started with
+     */
+    private void dispatch(final ExecutionContext ctx, final int base) {
+
+        final TraceBuffer trace = ctx.trace;
+        Frame frame = ctx.calls[ctx.callCount - 1];
+        frames:
+        while (true) {
+
+            final int [] code = frame.block.getCode();
+            final Object [] pool = frame.block.getPool();
+            final DataStack currentDataStack = frame.stack;
+            int ip = frame.ip;
+            while (ip < code.length) {
+
+                if (trace != null) {
+                    trace.record(code[ip], ctx.pointer, currentDataStack);
+                }
+                Object lastArg2 = null;
+                switch (code[ip++]) {
+
+                case Opcode.PUSH:
+                    currentDataStack.push(pool[code[ip++]]);
+                    break;
+
+                case Opcode.PUSH_NUMBER:
+                    currentDataStack.pushNumber(((Double) pool[code[ip++]]).doubleValue());
+                    break;
+
+                case Opcode.TRUE:
+                    currentDataStack.pushBoolean(true);
+                    break;
+
+                case Opcode.FALSE:
+                    currentDataStack.pushBoolean(false);
+                    break;
+
+                case Opcode.BLOCK:
+                    currentDataStack.push(((CompiledBlock) pool[code[ip++]]).getId());
+                    currentDataStack.push(OP_SET_FUNC_BLOCK);
+                    break;
+
+                case Opcode.LIST:
+                    currentDataStack.push(new LangTypeList((Object []) pool[code[ip++]]));
+                    break;
+
+                case Opcode.ADD: {
+                    final double a = currentDataStack.popNumber();
+                    currentDataStack.pushNumber(a + currentDataStack.popNumber());
+                    break;
+                }
+
+                case Opcode.SUB: {
+                    final double a = currentDataStack.popNumber();
+                    currentDataStack.pushNumber(a - currentDataStack.popNumber());
+                    break;
+                }
+
+                case Opcode.MUL: {
+                    final double a = currentDataStack.popNumber();
+                    currentDataStack.pushNumber(a * currentDataStack.popNumber());
+                    break;
+                }
+
+                case Opcode.DIV: {
+                    final double a = currentDataStack.popNumber();
+                    currentDataStack.pushNumber(a / currentDataStack.popNumber());
+                    break;
+                }
+
+                case Opcode.INC:
+                    currentDataStack.pushNumber(currentDataStack.popNumber() + 1.0);
+                    break;
+
+                case Opcode.DEC:
+                    currentDataStack.pushNumber(currentDataStack.popNumber() - 1.0);
+                    break;
+
+                case Opcode.MOD: {
+                    final double a = currentDataStack.popNumber();
+                    currentDataStack.pushNumber(a % currentDataStack.popNumber());
+                    break;
+                }
+
+                case Opcode.NOREM: {
+                    final double a = currentDataStack.popNumber();
+                    currentDataStack.pushBoolean((int) (a % currentDataStack.popNumber()) == 0);
+                    break;
+                }
+
+                case Opcode.EQL:
+                    currentDataStack.pushBoolean(currentDataStack.popEquals());
+                    break;
+
+                case Opcode.OR: {
+                    final boolean a = currentDataStack.popBoolean();
+                    final boolean b = currentDataStack.popBoolean();
+                    currentDataStack.pushBoolean(a || b);
+                    break;
+                }
+
+                case Opcode.ADD_NUMBER:
+                    currentDataStack.pushNumber(((Double) pool[code[ip++]]).doubleValue() + currentDataStack.popNumber());
+                    break;
+
+                case Opcode.SUB_NUMBER:
+                    currentDataStack.pushNumber(((Double) pool[code[ip++]]).doubleValue() - currentDataStack.popNumber());
+                    break;
+
+                case Opcode.MUL_NUMBER:
+                    currentDataStack.pushNumber(((Double) pool[code[ip++]]).doubleValue() * currentDataStack.popNumber());
+                    break;
+
+                case Opcode.NOREM_NUMBER:
+                    currentDataStack.pushBoolean((int) (((Double) pool[code[ip++]]).doubleValue() % currentDataStack.popNumber()) == 0);
+                    break;
+
+                case Opcode.PTRVAL_NOREM:
+                    currentDataStack.pushBoolean((int) (ctx.tape.get(ctx.pointer) % currentDataStack.popNumber()) == 0);
+                    break;
+
+                case Opcode.NOREM_OR: {
+                    final double a = currentDataStack.popNumber();
+                    final boolean norem = (int) (a % currentDataStack.popNumber()) == 0;
+                    final boolean b = currentDataStack.popBoolean();
+                    currentDataStack.pushBoolean(norem || b);
+                    break;
+                }
+
+                case Opcode.SWAP:
+                    currentDataStack.swap();
+                    break;
+
+                case Opcode.DUP:
+                    currentDataStack.dup();
+                    break;
+
+                case Opcode.IFSTK:
+                    if (currentDataStack.popBoolean()) {
+                        currentDataStack.nip();
+                    } else {
+                        currentDataStack.drop();
+                    }
+                    break;
+
+                case Opcode.RANGE:
+                    currentDataStack.push(new LangTypeRange(0, (int) currentDataStack.popNumber(), 1));
+                    break;
+
+                case Opcode.SUMSTK:
+                case Opcode.MINSTK:
+                case Opcode.MAXSTK:
+                    reduceStack(currentDataStack, code[ip - 1]);
+                    break;
+
+                case Opcode.LEN:
+                    currentDataStack.pushNumber(length((LangTypeSeq) currentDataStack.pop()));
+                    break;
+
+                case Opcode.NTH:
+                    nth(currentDataStack);
+                    break;
+
+                case Opcode.VSUM:
+                case Opcode.VADD:
+                case Opcode.VMUL:
+                case Opcode.VSCALE:
+                case Opcode.VDOT:
+                case Opcode.VMIN:
+                case Opcode.VMAX:
+                    this.vector(code[ip - 1], currentDataStack);
+                    break;
+
+                case Opcode.VFILTER:
+                    this.vfilter((String) pool[code[ip++]], currentDataStack);
+                    break;
+
+                case Opcode.MAP:
+                case Opcode.FILTER: {
+                    final String funcname = (String) pool[code[ip++]];
+                    final LangTypeSeq seq = (LangTypeSeq) currentDataStack.pop();
+                    final CompiledBlock body = this.lookupBlock(ctx.functionCodeLookup.get(funcname), ctx);
+                    currentDataStack.push(new LangTypeMapped(seq, funcname, body, ctx, code[ip - 2] == Opcode.FILTER));
+                    break;
+                }
+
+                case Opcode.PLOOP: {
+                    final String funcid = ctx.functionCodeLookup.get((String) pool[code[ip++]]);
+                    final String reducer = (String) pool[code[ip++]];
+                    final LangTypeSeq seq = (LangTypeSeq) currentDataStack.pop();
+                    this.ploop(ctx, this.lookupBlock(funcid, ctx), seq, reducer, currentDataStack);
+                    break;
+                }
+
+                case Opcode.LOOP: {
+                    final String funcid = ctx.functionCodeLookup.get((String) pool[code[ip++]]);
+                    final CompiledBlock body = this.lookupBlock(funcid, ctx);
+                    final LangTypeSeq seq = (LangTypeSeq) currentDataStack.pop();
+                    frame.ip = ip;
+                    final Frame loop = push(ctx, body, null, Frame.LOOP);
+                    loop.start(seq, currentDataStack);
+                    if (!loop.next()) {
+                        loop.clear();
+                        pop(ctx);
+                        break;
+                    }
+                    frame = this.enter(ctx, loop);
+                    continue frames;
+                }
+
+                case Opcode.LAMBDA: {
+                    currentDataStack.drop();
+                    lastArg2 = currentDataStack.pop();
+                    final CompiledBlock body = this.lookupBlock(lastArg2, ctx);
+                    if (ip == code.length && frame.kind < Frame.WHILE) {
+                        // Tail call, the block returns to the caller of this block //
+                        this.tail(ctx, frame, body);
+                    } else {
+                        frame.ip = ip;
+                        frame = this.enter(ctx, push(ctx, body, currentDataStack, Frame.RETURN));
+                    }
+                    continue frames;
+                }
+
+                case Opcode.LAMBDASAV: {
+                    currentDataStack.drop();
+                    lastArg2 = currentDataStack.pop();
+                    final CompiledBlock body = this.lookupBlock(lastArg2, ctx);
+                    frame.ip = ip;
+                    frame = this.enter(ctx, push(ctx, body, currentDataStack.copy(), Frame.SAVE).returnTo(currentDataStack));
+                    continue frames;
+                }
+
+                case Opcode.IF: {
+                    // The condition runs in a frame that goes on to the branch, see ret() //
+                    currentDataStack.drop();
+                    lastArg2 = currentDataStack.pop();
+                    final CompiledBlock condition = this.lookupBlock(lastArg2, ctx);
+                    if (ip == code.length && frame.kind == Frame.RETURN) {
+                        frame.kind = Frame.IF;
+                        this.tail(ctx, frame, condition);
+                    } else {
+                        frame.ip = ip;
+                        frame = this.enter(ctx, push(ctx, condition, currentDataStack, Frame.IF));
+                    }
+                    continue frames;
+                }
+
+                case Opcode.FUNC: {
+                    currentDataStack.drop();
+                    lastArg2 = currentDataStack.pop();
+                    final String name = (String) pool[code[ip++]];
+                    ctx.functionCodeLookup.put(name, String.valueOf(lastArg2));
+                    if (ctx.verbose) {
+                        System.out.println();
+                        System.out.println("* Attempt to store block - " + lastArg2 + " as '" + name + "'");
+                        System.out.println("* DONE-" + lastArg2);
+                    }
+                    break;
+                }
+
+                case Opcode.CALL: {
+                    final String funcid = ctx.functionCodeLookup.get((String) pool[code[ip++]]);
+                    if (ctx.verbose) {
+                        System.out.println("* Running function by id : " + funcid);
+                    }
+                    final CompiledBlock body = this.lookupBlock(funcid, ctx);
+                    if (ip == code.length && frame.kind < Frame.WHILE) {
+                        this.tail(ctx, frame, body);
+                    } else {
+                        frame.ip = ip;
+                        frame = this.enter(ctx, push(ctx, body, currentDataStack, Frame.RETURN));
+                    }
+                    continue frames;
+                }
+
+                case Opcode.CALLSAV: {
+                    final String funcid = ctx.functionCodeLookup.get((String) pool[code[ip++]]);
+                    final CompiledBlock body = this.lookupBlock(funcid, ctx);
+                    frame.ip = ip;
+                    frame = this.enter(ctx, push(ctx, body, currentDataStack.copy(), Frame.SAVE).returnTo(currentDataStack));
+                    continue frames;
+                }
+
+                case Opcode.PTRINC:
+                    if (++ctx.pointer > ctx.maxPointer) {
+                        ctx.maxPointer = ctx.pointer;
+                    }
+                    break;
+
+                case Opcode.PTRDEC:
+                    ctx.pointer--;
+                    break;
+
+                case Opcode.PTR:
+                    currentDataStack.pushInteger(ctx.pointer);
+                    break;
+
+                case Opcode.PTRVAL:
+                    currentDataStack.pushNumber(ctx.tape.get(ctx.pointer));
+                    break;
+
+                case Opcode.PTRLOAD:
+                    ctx.pointer = code[ip++];
+                    if (ctx.pointer > ctx.maxPointer) {
+                        ctx.maxPointer = ctx.pointer;
+                    }
+                    break;
+
+                case Opcode.PTRSETSTK:
+                    ctx.tape.set(ctx.pointer, (int) currentDataStack.peekNumber());
+                    break;
+
+                case Opcode.PTRSETSTK_VAL: {
+                    final int value = (int) currentDataStack.peekNumber();
+                    ctx.tape.set(ctx.pointer, value);
+                    currentDataStack.pushNumber(value);
+                    break;
+                }
+
+                case Opcode.PTRSET: {
+                    final int value = code[ip++];
+                    if (!ctx.verbose || ctx.checkPointer()) {
+                        ctx.tape.set(ctx.pointer, value);
+                    }
+                    break;
+                }
+
+                case Opcode.PTRPLUS:
+                    if (!ctx.verbose || ctx.checkPointer()) {
+                        ctx.tape.add(ctx.pointer, 1);
+                    }
+                    break;
+
+                case Opcode.PTRMINUS:
+                    if (!ctx.verbose || ctx.checkPointer()) {
+                        ctx.tape.add(ctx.pointer, -1);
+                    }
+                    break;
+
+                case Opcode.PTRPUTC:
+                    if (!ctx.verbose || ctx.checkPointer()) {
+                        // Check for ascii printable //
+                        final int c = ctx.tape.get(ctx.pointer);
+                        if (c >= 32 && c <= 126) {
+                            System.out.print(Character.valueOf((char) c));
+                        }
+                    }
+                    break;
+
+                case Opcode.PTRWHILE: {
+                    currentDataStack.drop();
+                    lastArg2 = currentDataStack.pop();
+                    frame.ip = ip;
+                    final Frame loop = this.ptrwhile(this.lookupBlock(lastArg2, ctx), lastArg2, currentDataStack, ctx);
+                    if (loop != null) {
+                        frame = loop;
+                        continue frames;
+                    }
+                    break;
+                }
+
+                case Opcode.PTRADD: {
+                    final int n = code[ip++];
+                    if (!ctx.verbose || ctx.checkPointer()) {
+                        ctx.tape.add(ctx.pointer, n);
+                    }
+                    break;
+                }
+
+                case Opcode.PTRMOVE: {
+                    final int n = code[ip++];
+                    final int peak = ctx.pointer + code[ip++];
+                    if (peak > ctx.maxPointer) {
+                        ctx.maxPointer = peak;
+                    }
+                    ctx.pointer += n;
+                    break;
+                }
+
+                case Opcode.PTRCLEAR: {
+                    final CompiledBlock body = (CompiledBlock) pool[code[ip++]];
+                    if (ctx.verbose) {
+                        // The loop is run as written for the verbose output //
+                        frame.ip = ip;
+                        final Frame loop = this.ptrwhile(body, body.getId(), currentDataStack, ctx);
+                        if (loop != null) {
+                            frame = loop;
+                            continue frames;
+                        }
+                    } else if (ctx.tape.get(ctx.pointer) != 0) {
+                        ctx.tape.set(ctx.pointer, 0);
+                    }
+                    break;
+                }
+
+                case Opcode.PTRMULADD: {
+                    final int [] terms = (int []) pool[code[ip++]];
+                    final CompiledBlock body = (CompiledBlock) pool[code[ip++]];
+                    if (ctx.verbose) {
+                        frame.ip = ip;
+                        final Frame loop = this.ptrwhile(body, body.getId(), currentDataStack, ctx);
+                        if (loop != null) {
+                            frame = loop;
+                            continue frames;
+                        }
+                        break;
+                    }
+                    final int value = ctx.tape.get(ctx.pointer);
+                    if (value != 0) {
+                        // Number of times the loop would run, the cell changes by 1 or -1 each time //
+                        final int times = -terms[0] * value;
+                        for (int t = 2; t < terms.length; t += 2) {
+                            ctx.tape.add(ctx.pointer + terms[t], times * terms[t + 1]);
+                        }
+                        ctx.tape.set(ctx.pointer, 0);
+                        if (ctx.pointer + terms[1] > ctx.maxPointer) {
+                            ctx.maxPointer = ctx.pointer + terms[1];
+                        }
+                    }
+                    break;
+                }
+
+                case Opcode.PTRDEBUG:
+                    if (ctx.verbose) {
+                        System.out.println("* Value of Pointer (Address) : " + ctx.pointer);
+                        System.out.println("* Value at Pointer : " + ctx.tape.get(ctx.pointer));
+                    }
+                    break;
+
+                case Opcode.VERBOSE:
+                    ctx.verbose = !ctx.verbose;
+                    System.out.println("* Verbose setting modified : now = " + ctx.verbose);
+                    break;
+
+                case Opcode.DATA:
+                    ctx.printStack();
+                    break;
+
+                case Opcode.CODE:
+                    this.printCodeStack();
+                    break;
+
+                case Opcode.EXIT:
+                    System.out.println("!!!");
+                    System.out.println("!!! Exiting - output of stack at exit:");
+                    ctx.printStack();
+                    this.printCodeStack();
+                    throw new Halt();
+
+                case Opcode.ERROR:
+                    throw new IllegalStateException(String.valueOf(pool[code[ip++]]));
+
+                default:
+                    throw new IllegalStateException("Invalid opcode : " + code[ip - 1]);
+                }
+            }
+            if (frame.entered) {
+                this.ret(ctx);
+            } else if (frame.kind == Frame.RETURN) {
+                // Without a profile or limits the usual ends are here, see ret() //
+                pop(ctx);
+            } else if (frame.kind == Frame.LOOP) {
+                if (frame.again()) {
+                    continue frames;
+                }
+                frame.clear();
+                pop(ctx);
+            } else {
+                this.ret(ctx);
+            }
+            if (ctx.callCount == base) {
+                return;
+            }
+            frame = ctx.calls[ctx.callCount - 1];
+        }
+    }
+
+    /**
+     * Replace the numbers at the top of the stack with the sum (sumstk), the smallest
+     * (minstk) or the largest (maxstk).  When the top is a sequence the elements of the
+     * sequence are reduced as they are read, e.g. 'sumstk range 1000000' does not build
+     * the list.  The sum of no numbers is 0, for minstk and maxstk the stack is not
+     * changed.
+     *
+     * @param stack
+     * @param op Opcode.SUMSTK, Opcode.MINSTK or Opcode.MAXSTK
+     */
+    protected static void reduceStack(final DataStack stack, final int op) {
+        boolean empty = true;
+        double result = (op == Opcode.SUMSTK) ? 0 : Double.NaN;
+        if (!stack.isEmpty() && stack.peekTag() == DataStack.OBJECT && stack.peek() instanceof LangTypeSeq) {
+            final LangTypeSeq seq = (LangTypeSeq) stack.pop();
+            if (seq instanceof LangTypeList) {
+                // Numeric lists are read from the double array //
+                final LangTypeList list = (LangTypeList) seq;
+                for (int i = 0; i < list.size(); i++) {
+                    result = fold(op, result, list.getNumber(i), empty);
+                    empty = false;
+                }
+            } else if (seq instanceof LangTypeRange) {
+                final LangTypeRange range = (LangTypeRange) seq;
+                for (long i = 0, n = range.size(); i < n; i++) {
+                    result = fold(op, result, range.get(i), empty);
+                    empty = false;
+                }
+            } else {
+                for (final Object o : seq) {
+                    result = fold(op, result, ((Double) o).doubleValue(), empty);
+                    empty = false;
+                }
+            }
+        } else {
+            while (!stack.isEmpty() && stack.peekTag() == DataStack.NUMBER) {
+                result = fold(op, result, stack.popNumber(), empty);
+                empty = false;
+            }
+        }
+        if (!empty || op == Opcode.SUMSTK) {
+            stack.pushNumber(result);
+        }
+    }
+
+    /**
+     * Bulk numeric words, each runs one loop over the double arrays of the lists with
+     * no dispatch per element.  The add, multiply and scale loops are simple enough for
+     * the JIT to use SIMD instructions.  A range or other sequence is first read in to a
+     * numeric list.
+     * <pre>
+     * vsum LIST         the sum
+     * vadd LIST LIST    the lists added element by element, same length
+     * vmul LIST LIST    the lists multiplied element by element, same length
+     * vscale K LIST     each element multiplied by K
+     * vdot LIST LIST    the dot product, same length
+     * vmin LIST         the smallest element, nothing for an empty list
+     * vmax LIST         the largest element, nothing for an empty list
+     * </pre>
+     *
+     * @param op Opcode.VSUM to Opcode.VMAX
+     * @param stack
+     */
+    protected void vector(final int op, final DataStack stack) {
+        if (op == Opcode.VSCALE) {
+            final double k = stack.popNumber();
+            final LangTypeList a = this.numeric(stack.pop());
+            final double [] x = a.numbers;
+            final int n = a.count;
+            final double [] result = new double [n];
+            for (int i = 0; i < n; i++) {
+                result[i] = x[i] * k;
+            }
+            stack.push(new LangTypeList(result, n));
+            return;
+        }
+        final LangTypeList a = this.numeric(stack.pop());
+        final double [] x = a.numbers;
+        final int n = a.count;
+        if (op == Opcode.VSUM) {
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += x[i];
+            }
+            stack.pushNumber(sum);
+            return;
+        } else if (op == Opcode.VMIN || op == Opcode.VMAX) {
+            if (n == 0) {
+                return;
+            }
+            double result = x[0];
+            for (int i = 1; i < n; i++) {
+                result = (op == Opcode.VMIN) ? Math.min(result, x[i]) : Math.max(result, x[i]);
+            }
+            stack.pushNumber(result);
+            return;
+        }
+        final LangTypeList b = this.numeric(stack.pop());
+        final double [] y = b.numbers;
+        if (b.count != n) {
+            throw new IllegalStateException("Invalid list length for vector word : " + n + " and " + b.count);
+        }
+        if (op == Opcode.VDOT) {
+            double dot = 0;
+            for (int i = 0; i < n; i++) {
+                dot += x[i] * y[i];
+            }
+            stack.pushNumber(dot);
+            return;
+        }
+        final double [] result = new double [n];
+        if (op == Opcode.VADD) {
+            for (int i = 0; i < n; i++) {
+                result[i] = x[i] + y[i];
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                result[i] = x[i] * y[i];
+            }
+        }
+        stack.push(new LangTypeList(result, n));
+    }
+
+    /**
+     * 'CMP vfilter K LIST', the elements of the list that compare true with K, CMP is
+     * one of lt, le, gt, ge, eq or ne.  E.g. 'gt vfilter 2 [ 1 2 3 4 ]' leaves [3 4].
+     *
+     * @param cmp
+     * @param stack
+     */
+    protected void vfilter(final String cmp, final DataStack stack) {
+        final double k = stack.popNumber();
+        final LangTypeList a = this.numeric(stack.pop());
+        final double [] x = a.numbers;
+        final int n = a.count;
+        final double [] result = new double [n];
+        int size = 0;
+        if ("lt".equals(cmp)) {
+            for (int i = 0; i < n; i++) {
+                if (x[i] < k) {
+                    result[size++] = x[i];
+                }
+            }
+        } else if ("le".equals(cmp)) {
+            for (int i = 0; i < n; i++) {
+                if (x[i] <= k) {
+                    result[size++] = x[i];
+                }
+            }
+        } else if ("gt".equals(cmp)) {
+            for (int i = 0; i < n; i++) {
+                if (x[i] > k) {
+                    result[size++] = x[i];
+                }
+            }
+        } else if ("ge".equals(cmp)) {
+            for (int i = 0; i < n; i++) {
+                if (x[i] >= k) {
+                    result[size++] = x[i];
+                }
+            }
+        } else if ("eq".equals(cmp)) {
+            for (int i = 0; i < n; i++) {
+                if (x[i] == k) {
+                    result[size++] = x[i];
+                }
+            }
+        } else if ("ne".equals(cmp)) {
+            for (int i = 0; i < n; i++) {
+                if (x[i] != k) {
+                    result[size++] = x[i];
+                }
+            }
+        } else {
+            throw new IllegalStateException("Invalid comparison for vfilter : " + cmp);
+        }
+        stack.push(new LangTypeList(result, size));
+    }
+
+    /**
+     * @param value a list or sequence of numbers
+     * @return the value as a list held in a double array
+     */
+    private LangTypeList numeric(final Object value) {
+        if (value instanceof LangTypeList && ((LangTypeList) value).isNumeric()) {
+            return (LangTypeList) value;
+        }
+        final LangTypeSeq seq = (LangTypeSeq) value;
+        final LangTypeList list = new LangTypeList(seq instanceof LangTypeRange ? (int) ((LangTypeRange) seq).size() : 8);
+        if (seq instanceof LangTypeRange) {
+            final LangTypeRange range = (LangTypeRange) seq;
+            for (long i = 0, n = range.size(); i < n; i++) {
+                list.addNumber(range.get(i));
+            }
+            return list;
+        }
+        for (final Object o : seq) {
+            list.addNumber(((Double) o).doubleValue());
+        }
+        return list;
+    }
+
+    /**
+     * @param seq
+     * @return the number of elements, a lazy map or filter is read to count
+     */
+    protected static long length(final LangTypeSeq seq) {
+        if (seq instanceof LangTypeList) {
+            return ((LangTypeList) seq).size();
+        } else if (seq instanceof LangTypeRange) {
+            return ((LangTypeRange) seq).size();
+        }
+        long n = 0;
+        for (final Iterator<Object> it = seq.iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Replace the index and the list or sequence under it with the element at the index.
+     *
+     * @param stack
+     */
+    protected static void nth(final DataStack stack) {
+        final int index = (int) stack.popNumber();
+        final LangTypeSeq seq = (LangTypeSeq) stack.pop();
+        if (seq instanceof LangTypeList) {
+            final LangTypeList list = (LangTypeList) seq;
+            if (list.isNumeric()) {
+                stack.pushNumber(list.getNumber(index));
+            } else {
+                stack.push(list.get(index));
+            }
+            return;
+        } else if (seq instanceof LangTypeRange) {
+            final LangTypeRange range = (LangTypeRange) seq;
+            if (index < 0 || index >= range.size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + range.size());
+            }
+            stack.pushNumber(range.get(index));
+            return;
+        }
+        int i = 0;
+        for (final Object o : seq) {
+            if (i++ == index) {
+                stack.push(o);
+                return;
+            }
+        }
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + i);
+    }
+
+    private static double fold(final int op, final double result, final double d, final boolean first) {
+        if (op == Opcode.SUMSTK) {
+            return result + d;
+        } else if (first) {
+            return d;
+        }
+        return (op == Opcode.MINSTK) ? Math.min(result, d) : Math.max(result, d);
+    }
+
+    /**
+     * Parallel loop, 'REDUCER name ploop LIST'.  Runs the function for each element of
+     * the list (or any sequence) like 'loop' and combines the results with the reducer, one of sumstk,
+     * minstk, maxstk or the name of a function that takes two values and leaves one.
+     * 
+     * The list is split in chunks of PLOOP_CHUNK elements, each chunk runs in its own
+     * copy of the context on the parallel executor and is reduced, then the chunk
+     * results are reduced in list order.  The chunks do not depend on the number of
+     * threads so the result is always the same.  Memory written by the function is not
+     * seen after the ploop.  Without an executor, or inside another ploop, the chunks
+     * run one after the other on this thread.
+     *
+     * @param ctx
+     * @param body
+     * @param list
+     * @param reducer
+     * @param out the result is pushed here, nothing is pushed for an empty list unless
+     *     the reducer is sumstk
+     */
+    protected void ploop(final ExecutionContext ctx, final CompiledBlock body, final LangTypeSeq seq,
+            final String reducer, final DataStack out) {
+        final CompiledBlock fn = this.reducerBlock(reducer, ctx);
+        final List<Iterable<Object>> parts = chunks(seq);
+        final int chunks = parts.size();
+        final List<Callable<DataStack>> tasks = new ArrayList<Callable<DataStack>>(chunks);
+        for (final Iterable<Object> chunk : parts) {
+            tasks.add(new Callable<DataStack>() {
+                public DataStack call() {
+                    final ExecutionContext chunkCtx = ctx.fork();
+                    final Profiler profiler = (chunkCtx.profile instanceof Profiler) ? (Profiler) chunkCtx.profile : null;
+                    if (profiler != null) {
+                        profiler.start(chunkCtx);
+                    }
+                    try {
+                        final DataStack s = new DataStack();
+                        final DataStack values = new DataStack(PLOOP_CHUNK);
+                        for (final Object o : chunk) {
+                            s.clear();
+                            s.push(o);
+                            OctaneLangOneSourceFile.this.execute(body, s, chunkCtx);
+                            if (s.size() > 0) {
+                                values.pushTopOf(s);
+                            }
+                        }
+                        final DataStack result = new DataStack(1);
+                        OctaneLangOneSourceFile.this.reduce(values, reducer, fn, chunkCtx, result);
+                        chunkCtx.share();
+                        return result;
+                    } finally {
+                        if (profiler != null) {
+                            profiler.stop(chunkCtx);
+                        }
+                        if (chunkCtx.profile != null) {
+                            chunkCtx.profile.merge(chunkCtx);
+                        }
+                    }
+                }
+            });
+        }
+        final DataStack results = new DataStack(chunks);
+        if (this.parallelExecutor == null || ctx.forked || chunks < 2) {
+            for (final Callable<DataStack> task : tasks) {
+                final DataStack result;
+                try {
+                    result = task.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                if (result.size() > 0) {
+                    results.pushTopOf(result);
+                }
+            }
+        } else {
+            try {
+                for (final Future<DataStack> future : this.parallelExecutor.invokeAll(tasks)) {
+                    final DataStack result = future.get();
+                    if (result.size() > 0) {
+                        results.pushTopOf(result);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted during ploop", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        if (ctx.limits != null) {
+            // The instructions of the chunks are in the count of the run //
+            ctx.share();
+            ctx.limits.check(ctx, out, 0);
+        }
+        this.reduce(results, reducer, fn, ctx, out);
+    }
+
+    /**
+     * Split a sequence for ploop.  A range is split in to ranges, other sequences are
+     * read on this thread (running map and filter functions) in to lists.
+     *
+     * @param seq
+     * @return chunks of at most PLOOP_CHUNK elements in sequence order
+     */
+    private List<Iterable<Object>> chunks(final LangTypeSeq seq) {
+        final List<Iterable<Object>> parts = new ArrayList<Iterable<Object>>();
+        if (seq instanceof LangTypeRange) {
+            final LangTypeRange range = (LangTypeRange) seq;
+            final long size = range.size();
+            for (long from = 0; from < size; from += PLOOP_CHUNK) {
+                parts.add(range.sub(from, Math.min(size, from + PLOOP_CHUNK)));
+            }
+            return parts;
+        }
+        List<Object> chunk = null;
+        for (final Object o : seq) {
+            if (chunk == null || chunk.size() == PLOOP_CHUNK) {
+                chunk = new ArrayList<Object>(PLOOP_CHUNK);
+                parts.add(chunk);
+            }
+            chunk.add(o);
+        }
+        return parts;
+    }
+
+    /**
+     * @param reducer
+     * @param ctx
+     * @return the block of a user reducer function, null for sumstk, minstk and maxstk
+     */
+    private CompiledBlock reducerBlock(final String reducer, final ExecutionContext ctx) {
+        final int op = Opcode.lookup(reducer);
+        if (op == Opcode.SUMSTK || op == Opcode.MINSTK || op == Opcode.MAXSTK) {
+            return null;
+        }
+        final String funcid = ctx.functionCodeLookup.get(reducer);
+        if (funcid == null) {
+            throw new IllegalStateException("Invalid reducer for ploop : " + reducer);
+        }
+        return this.lookupBlock(funcid, ctx);
+    }
+
+    /**
+     * Combine the values, the result (if any) is pushed on out.
+     *
+     * @param values in list order
+     * @param reducer
+     * @param fn the user reducer function or null
+     * @param ctx
+     * @param out
+     */
+    private void reduce(final DataStack values, final String reducer, final CompiledBlock fn,
+            final ExecutionContext ctx, final DataStack out) {
+        if (fn == null) {
+            final int op = Opcode.lookup(reducer);
+            if (op == Opcode.SUMSTK) {
+                double sum = 0;
+                for (int i = values.size() - 1; i >= 0; i--) {
+                    sum += values.getNumber(i);
+                }
+                out.pushNumber(sum);
+            } else if (values.size() > 0) {
+                double result = values.getNumber(0);
+                for (int i = 1; i < values.size(); i++) {
+                    result = (op == Opcode.MINSTK) ? Math.min(result, values.getNumber(i)) : Math.max(result, values.getNumber(i));
+                }
+                out.pushNumber(result);
+            }
+            return;
+        }
+        if (values.size() == 0) {
+            return;
+        }
+        final DataStack s = new DataStack();
+        s.push(values.get(0));
+        for (int i = 1; i < values.size(); i++) {
+            s.push(values.get(i));
+            this.execute(fn, s, ctx);
+            if (s.isEmpty()) {
+                throw new IllegalStateException("Reducer left no value : " + reducer);
+            }
+            final Object acc = s.pop();
+            s.clear();
+            s.push(acc);
+        }
+        out.pushTopOf(s);
+    }
+
+    /**
+     * Print the data stack.
+     */
+    public void printStack() {
+        this.context.printStack();
+    }
+    
+    /**
+     * Return a string representation of the data stack.
+     * 
+     * @return
+     */
+    public String toStringStack() {
+        final List<Object> s = new ArrayList<Object>(this.context.dataStack);
+        Collections.reverse(s);
+        final StringBuffer buf = new StringBuffer();
+        for (final Object obj : s) {
+            buf.append(obj);
+            buf.append(" ");                      
+        }
+        return buf.toString().trim();
+    }
+    
+    /**
+     * Return a string representation of the top of the stack.
+     * 
+     * @return
+     */
+    public String toStringStackTop() {
+        final List<Object> s = new ArrayList<Object>(this.context.dataStack);
+        Collections.reverse(s);
+        final StringBuffer buf = new StringBuffer();        
+        for (final Object obj : s) {
+            buf.append(obj);
+            break;
+        }
+        return buf.toString().trim();
+    }
+
+    /**
+     * Copy stack.
+     * 
+     * @param s
+     * @return
+     */
+    public CodeStack copy(final List<Object> s) {
+        final CodeStack z = new CodeStack(s.size());
+        for (final Object o: s) {
+            z.push(o);
+        }
+        return z;
+    }
+    
+    /**
+     * Output the code stack to console.
+     * The code stack contains words for execution.
+     */
+    public void printCodeStack() {
+        System.out.println();
+        System.out.println(">>> Code Stack <<<");
+        int i = 0;
+        final List<Object> s = new ArrayList<Object>(this.codeStack);
+        Collections.reverse(s);
+        for (final Object obj : s) {
+            System.out.println("  -> index-" + (i + 1) + ":  " + obj + " " + (i == 0 ? "(top)" : ""));
+            i++;
+        }
+    }
+
+    /**
+     * Output the function stack to the console.
+     * The function stack contains a code stack mapped to a function name.
+     */
+    public void printFunctionStack() {
+        System.out.println();
+        for (final String keyFunctionName : this.functionCodeStack.keySet()) {
+            final CodeStack st = this.functionCodeStack.get(keyFunctionName);
+            System.out.println("Function : " + keyFunctionName);
+            System.out.println("  >>> Function-Stack <<<");
+            int i = 0;
+            final List<Object> s = new ArrayList<Object>(st);
+            Collections.reverse(s);
+            for (final Object obj : s) {
+                System.out.println("    -> index-" + (i + 1) + ":  " + obj + " " + (i == 0 ? "(top)" : ""));
+                i++;
+            }
+            System.out.println("  End of Function Stack - " + keyFunctionName);
+        }
+    }
+
+    /**
+     * Scan for next token.
+     * 
+     * Used with lexing on the input code string data.
+     * 
+     * @return Token
+     */
+    public Object nextToken() {
+        while (c() != EOF) {
+            switch (c()) {
+            case ' ':
+            case '\t':
+            case '\n':
+            case '\r':
+                consumeWhitespace();
+                continue;
+            case '#':
+                consumeComment();
+                continue;
+            case '(':
+                consume();
+                return Opcode.SYMBOL_START_BLOCK;
+            case ')':
+                consume();
+                return Opcode.SYMBOL_END_BLOCK;                
+            case '[':
+                consume();
+                return Opcode.SYMBOL_START_LIST;
+            case ']':
+                consume();
+                return Opcode.SYMBOL_END_LIST;                
+            case ',':
+                consume();
+                return Opcode.SYMBOL_COMMA;
+            case '"':
+                return this.scanString();
+            case '\'':
+                return this.scanChar();  
+            case '+':
+                consume();
+                return Opcode.SYMBOL_ADD;                                        
+            case '-':
+                consume();
+                return Opcode.SYMBOL_SUB;                
+            case '*':
+                consume();
+                return Opcode.SYMBOL_MUL;            
+            case '/':
+                consume();
+                return Opcode.SYMBOL_DIV;
+            case '\0':
+                return EOF;
+            default:
+                if (this.isDigit()) {
+                    return scanInteger();
+                } else if (this.isLetter()) {
+                    return scanWord();
+                } 
+                final int code = (int) c();
+                throw new Error("invalid character: {" + c() + "} code:" + code);
+            }
+
+        }
+        return EOF;
+    }
+
+    /**
+     * Scan for a token name/integer.
+     * Used with lexing on the input code string data.
+     * 
+     * @return Token
+     */
+    public LangTypeString scanString() {
+        final StringBuilder buf = new StringBuilder();
+        consume();
+        do {
+            buf.append(c());
+            consume();
+        } while (c != '"');
+        consume();    
+        return new LangTypeString(buf.toString());
+    }
+    
+    /**
+     * Scan for a token name/integer.
+     * Used with lexing on the input code string data.
+     *  
+     * @return Token
+     */
+    public LangTypeChar scanChar() {
+        final StringBuilder buf = new StringBuilder();
+        consume();
+        do {
+            buf.append(c());
+            consume();
+        } while (c != '\'');
+        consume();        
+        return new LangTypeChar(buf.toString());
+    }
+    
+    /**
+     * Scan for a token name/integer.
+     * Used with lexing on the input code string data.
+     * 
+     * @return Token
+     */
+    public double scanInteger() {
+        int n = 0;
+        long value = 0;
+        do {
+            n = this.scanAppend(n);
+            value = value * 10 + (c() - '0');
+            consume();
+        } while (isDigit());
+        if (n <= 15) {
+            // Exact, same as parseDouble //
+            return value;
+        }
+        return Double.parseDouble(new String(this.scan, 0, n));
+    }
+
+    /**
+     * Scan for a token name/integer.
+     * Used with lexing on the input code string data.
+     * 
+     * @return Token
+     */
+    public Symbol scanWord() {
+        int n = 0;
+        do {
+            n = this.scanAppend(n);
+            consume();
+        } while (isLetter());
+        return this.symbols.intern(this.scan, 0, n);
+    }
+
+    /**
+     * Add the current character to the scan buffer.
+     *
+     * @param n characters in the scan buffer
+     * @return n + 1
+     */
+    private int scanAppend(final int n) {
+        if (n == this.scan.length) {
+            final char [] grow = new char [n * 2];
+            System.arraycopy(this.scan, 0, grow, 0, n);
+            this.scan = grow;
+        }
+        this.scan[n] = c();
+        return n + 1;
+    }
+
+    /**
+     * Check if character is a letter.
+     * Used with lexing on the input code string data.
+     * 
+     * @return boolean
+     */
+    public boolean isLetter() {
+        return (c() >= 'a') && (c() <= 'z') || (c() >= 'A') && (c() <= 'Z');
+    }
+
+    /**
+     * Check if character is a digit.
+     * Used with lexing on the input code string data.
+     * 
+     * @return boolean
+     */
+    public boolean isDigit() {
+        return (c() >= '0') && (c() <= '9');
+    }
+
+    /**
+     * Consume and detect whitespace.
+     * Used with lexing on the input code string data.
+     */
+    public void consumeWhitespace() {
+        while (c() == ' ' || c() == '\t' || c() == '\n' || c() == '\r') {
+            if (c() == '\n') {
+                this.lineBreak = true;
+            }
+            consume();
+        }
+    }    
+    /**
+     * Iterate and consume until a newline is encountered
+     */
+    public void consumeComment() {        
+        do {           
+            consume();
+        } while (c != '\n' && c != '\r' && c != EOF);
+    }
+
+    /**
+     * Consume character.
+     * Used with lexing on the input code string data.
+     */
+    public void consume() {
+        if (this.bufferPos >= this.bufferLimit && !this.fill()) {
+            c = EOF;
+        } else {
+            c = this.buffer[this.bufferPos++];
+        }
+    }
+
+    /**
+     * Read the next characters of the source in to the buffer.
+     *
+     * @return false at the end of the source
+     */
+    private boolean fill() {
+        if (this.reader == null) {
+            return false;
+        }
+        try {
+            int n;
+            do {
+                n = this.reader.read(this.buffer, 0, this.buffer.length);
+            } while (n == 0);
+            if (n < 0) {
+                return false;
+            }
+            this.bufferPos = 0;
+            this.bufferLimit = n;
+            return true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Invalid input source data : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Simple String type.
+     */
+    public static interface LangType {
+        
+    }
+    /**
+     * Basic string type.     
+     */
+    public class LangTypeString implements LangType {
+        private final String data;
+        public LangTypeString(final String d) {
+            this.data = d;
+        }
+        public String toString() {
+            return "'" + data + "'";
+        }
+    }
+    /**
+     * A simple character type.
+     */
+    public class LangTypeChar implements LangType {
+        private final String data;
+        public LangTypeChar(final String d) {
+            this.data = d;
+        }
+        public String toString() {
+            return "'" + data + "'";
+        }
+    }
+    
+    /**
+     * A sequence of values consumed by iteration, loop, ploop, map, filter and sumstk
+     * work on any sequence.
+     */
+    public static interface LangTypeSeq extends LangType, Iterable<Object> {
+
+    }
+
+    /**
+     * A simple List/Vector type.  While every element is a number the list is held in a
+     * double array, the list changes to an object list on the first element that is not
+     * a number.
+     */
+    public class LangTypeList implements LangTypeSeq {
+        /** The elements while all are numbers, null after the first other element. */
+        private double [] numbers;
+        private int count = 0;
+        /** The elements after the first element that is not a number. */
+        private List<Object> list = null;
+        public LangTypeList() {
+            this(8);
+        }
+        public LangTypeList(final int capacity) {
+            this.numbers = new double [Math.max(8, capacity)];
+        }
+        /**
+         * @param numbers used as the elements, not copied
+         * @param count
+         */
+        public LangTypeList(final double [] numbers, final int count) {
+            this.numbers = numbers;
+            this.count = count;
+        }
+        public LangTypeList(final Object [] elements) {
+            this(elements.length);
+            for (final Object o : elements) {
+                this.add(o);
+            }
+        }
+        public void add(final Object o) {
+            if (this.numbers != null) {
+                if (o instanceof Double) {
+                    this.addNumber(((Double) o).doubleValue());
+                    return;
+                }
+                this.list = new ArrayList<Object>(Math.max(8, this.count * 2));
+                for (int i = 0; i < this.count; i++) {
+                    this.list.add(this.numbers[i]);
+                }
+                this.numbers = null;
+            }
+            this.list.add(o);
+        }
+        public void addNumber(final double d) {
+            if (this.numbers == null) {
+                this.list.add(d);
+                return;
+            }
+            if (this.count == this.numbers.length) {
+                final double [] grow = new double [Math.max(8, this.count * 2)];
+                System.arraycopy(this.numbers, 0, grow, 0, this.count);
+                this.numbers = grow;
+            }
+            this.numbers[this.count++] = d;
+        }
+        /**
+         * @return true while the list is held in the double array
+         */
+        public boolean isNumeric() {
+            return this.numbers != null;
+        }
+        public int size() {
+            return (this.numbers != null) ? this.count : this.list.size();
+        }
+        public Object get(final int index) {
+            return (this.numbers != null) ? Double.valueOf(this.getNumber(index)) : this.list.get(index);
+        }
+        /**
+         * @param index
+         * @return the number at index, the element must be a Double
+         */
+        public double getNumber(final int index) {
+            if (this.numbers == null) {
+                return ((Double) this.list.get(index)).doubleValue();
+            }
+            if (index < 0 || index >= this.count) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.count);
+            }
+            return this.numbers[index];
+        }
+        /**
+         * Reverse the elements in place, lists are collected right to left.
+         */
+        public void reverse() {
+            if (this.numbers == null) {
+                Collections.reverse(this.list);
+                return;
+            }
+            for (int i = 0, j = this.count - 1; i < j; i++, j--) {
+                final double d = this.numbers[i];
+                this.numbers[i] = this.numbers[j];
+                this.numbers[j] = d;
+            }
+        }
+        public Iterator<Object> iterator() {
+            if (this.numbers == null) {
+                return this.list.iterator();
+            }
+            return new Iterator<Object>() {
+                private int i = 0;
+                public boolean hasNext() {
+                    return i < count;
+                }
+                public Object next() {
+                    if (i >= count) {
+                        throw new NoSuchElementException();
+                    }
+                    return numbers[i++];
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        public String toString() {
+            if (this.numbers == null) {
+                return "#<" + list + ">";
+            }
+            final StringBuilder buf = new StringBuilder("#<[");
+            for (int i = 0; i < this.count; i++) {
+                if (i > 0) {
+                    buf.append(", ");
+                }
+                buf.append(this.numbers[i]);
+            }
+            return buf.append("]>").toString();
+        }
+    }
+
+    /**
+     * Lazy range of numbers from start (inclusive) to end (exclusive), the elements are
+     * computed as they are read so a range of any size uses constant memory.
+     */
+    public class LangTypeRange implements LangTypeSeq {
+        private final double start;
+        private final double end;
+        private final double step;
+        public LangTypeRange(final double start, final double end, final double step) {
+            if (step == 0) {
+                throw new IllegalArgumentException("Invalid range step : " + step);
+            }
+            this.start = start;
+            this.end = end;
+            this.step = step;
+        }
+        /**
+         * @return the number of elements
+         */
+        public long size() {
+            final double n = Math.ceil((end - start) / step);
+            return n > 0 ? (long) n : 0;
+        }
+        /**
+         * @param i
+         * @return the element at index i
+         */
+        public double get(final long i) {
+            return start + i * step;
+        }
+        /**
+         * @param from index (inclusive)
+         * @param to index (exclusive)
+         * @return the elements from to as a range
+         */
+        public LangTypeRange sub(final long from, final long to) {
+            return new LangTypeRange(this.get(from), this.get(to), step);
+        }
+        public Iterator<Object> iterator() {
+            final long size = this.size();
+            return new Iterator<Object>() {
+                private long i = 0;
+                public boolean hasNext() {
+                    return i < size;
+                }
+                public Object next() {
+                    if (i >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return get(i++);
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        public String toString() {
+            return "#<range " + start + " " + end + " " + step + ">";
+        }
+    }
+
+    /**
+     * Lazy map or filter over a sequence.  The function runs on each element when the
+     * element is read, with its own stack holding the element.  For map the top of that
+     * stack is the element of this sequence (no element when the stack is empty), for
+     * filter the source element is kept when the top is true.
+     */
+    public class LangTypeMapped implements LangTypeSeq {
+        private final LangTypeSeq source;
+        private final String name;
+        private final CompiledBlock body;
+        private final ExecutionContext ctx;
+        private final boolean filter;
+        public LangTypeMapped(final LangTypeSeq source, final String name, final CompiledBlock body,
+                final ExecutionContext ctx, final boolean filter) {
+            this.source = source;
+            this.name = name;
+            this.body = body;
+            this.ctx = ctx;
+            this.filter = filter;
+        }
+        public Iterator<Object> iterator() {
+            final Iterator<Object> it = source.iterator();
+            return new Iterator<Object>() {
+                private final DataStack s = new DataStack();
+                private Object next = null;
+                private boolean ready = false;
+                public boolean hasNext() {
+                    while (!ready && it.hasNext()) {
+                        final Object o = it.next();
+                        s.clear();
+                        s.push(o);
+                        execute(body, s, ctx);
+                        if (filter) {
+                            if (s.size() > 0 && s.popBoolean()) {
+                                next = o;
+                                ready = true;
+                            }
+                        } else if (s.size() > 0) {
+                            next = s.pop();
+                            ready = true;
+                        }
+                    }
+                    return ready;
+                }
+                public Object next() {
+                    if (!this.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    ready = false;
+                    final Object o = next;
+                    next = null;
+                    return o;
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        public String toString() {
+            return "#<" + (filter ? "filter " : "map ") + name + " " + source + ">";
+        }
+    }
+
+    /**
+     * Opcodes for the compiled engine.  Each word is translated to one opcode, some
+     * opcodes are followed by one operand in the code array.
+     */
+    public static final class Opcode {
+
+        /** Not a word, the token is ignored like in the string engine. */
+        public static final int NONE = -1;
+
+        /** Operand: index of the value in the constant pool. */
+        public static final int PUSH = 0;
+        public static final int TRUE = 1;
+        public static final int FALSE = 2;
+        /** Operand: index of the CompiledBlock in the constant pool. */
+        public static final int BLOCK = 3;
+        /** Operand: index of the list elements (Object []) in the constant pool. */
+        public static final int LIST = 4;
+        public static final int ADD = 5;
+        public static final int SUB = 6;
+        public static final int MUL = 7;
+        public static final int DIV = 8;
+        public static final int INC = 9;
+        public static final int DEC = 10;
+        public static final int MOD = 11;
+        public static final int NOREM = 12;
+        public static final int EQL = 13;
+        public static final int OR = 14;
+        public static final int SWAP = 15;
+        public static final int DUP = 16;
+        public static final int IFSTK = 17;
+        public static final int RANGE = 18;
+        public static final int SUMSTK = 19;
+        /** Operand: index of the function name in the constant pool. */
+        public static final int LOOP = 20;
+        public static final int LAMBDA = 21;
+        public static final int LAMBDASAV = 22;
+        public static final int IF = 23;
+        /** Operand: index of the function name in the constant pool. */
+        public static final int FUNC = 24;
+        /** Operand: index of the function name in the constant pool. */
+        public static final int CALL = 25;
+        /** Operand: index of the function name in the constant pool. */
+        public static final int CALLSAV = 26;
+        public static final int PTRINC = 27;
+        public static final int PTRDEC = 28;
+        public static final int PTR = 29;
+        public static final int PTRVAL = 30;
+        /** Operand: the new pointer value. */
+        public static final int PTRLOAD = 31;
+        public static final int PTRSETSTK = 32;
+        /** Operand: the value to store at the pointer. */
+        public static final int PTRSET = 33;
+        public static final int PTRPLUS = 34;
+        public static final int PTRMINUS = 35;
+        public static final int PTRPUTC = 36;
+        public static final int PTRWHILE = 37;
+        public static final int PTRDEBUG = 38;
+        public static final int VERBOSE = 39;
+        public static final int DATA = 40;
+        public static final int CODE = 41;
+        public static final int EXIT = 42;
+        /** Operand: index of the error message in the constant pool. */
+        public static final int ERROR = 43;
+        /** Operand: index of the Double in the constant pool. */
+        public static final int PUSH_NUMBER = 44;
+        /** Operands: index of the function name and of the reducer name in the constant pool. */
+        public static final int PLOOP = 45;
+        public static final int MINSTK = 46;
+        public static final int MAXSTK = 47;
+        /** Operand: index of the function name in the constant pool. */
+        public static final int MAP = 48;
+        /** Operand: index of the function name in the constant pool. */
+        public static final int FILTER = 49;
+        public static final int LEN = 50;
+        public static final int NTH = 51;
+        public static final int VSUM = 52;
+        public static final int VADD = 53;
+        public static final int VMUL = 54;
+        public static final int VSCALE = 55;
+        public static final int VDOT = 56;
+        public static final int VMIN = 57;
+        public static final int VMAX = 58;
+        /** Operand: index of the comparison name (lt, le, gt, ge, eq, ne) in the constant pool. */
+        public static final int VFILTER = 59;
+
+        // Fused pointer operations from the optimizer, see Compiler.optimize() //
+        /** Operand: the amount added to the cell at the pointer, a run of ptrplus/ptrminus. */
+        public static final int PTRADD = 60;
+        /** Operands: the pointer move and the highest offset reached, a run of ptrinc/ptrdec. */
+        public static final int PTRMOVE = 61;
+        /** Operand: index of the loop body (CompiledBlock), 'ptrwhile ( ptrminus )'. */
+        public static final int PTRCLEAR = 62;
+        /**
+         * Operands: index of the terms (int [] change of the cell at the pointer, highest
+         * offset, then offset and amount pairs) and index of the loop body, a ptrwhile loop
+         * that adds multiples of the cell at the pointer to other cells.
+         */
+        public static final int PTRMULADD = 63;
+
+        // Superinstructions, pairs of opcodes fused by Compiler.fuse() //
+        /** Operand: index of the number in the constant pool, '+ 5'. */
+        public static final int ADD_NUMBER = 64;
+        /** Operand: index of the number in the constant pool, '- 5'. */
+        public static final int SUB_NUMBER = 65;
+        /** Operand: index of the number in the constant pool, '* 5'. */
+        public static final int MUL_NUMBER = 66;
+        /** Operand: index of the number in the constant pool, 'norem 5'. */
+        public static final int NOREM_NUMBER = 67;
+        /** 'or norem', test the remainder then or with the value below. */
+        public static final int NOREM_OR = 68;
+        /** 'ptrval ptrsetstk', store the top of the stack and push the cell. */
+        public static final int PTRSETSTK_VAL = 69;
+        /** 'norem ptrval', the remainder of the cell at the pointer. */
+        public static final int PTRVAL_NOREM = 70;
+
+        /**
+         * Markers only used while compiling, these never appear in the code array.
+         */
+        public static final int START_BLOCK = 100;
+        public static final int END_BLOCK = 101;
+        public static final int START_LIST = 102;
+        public static final int END_LIST = 103;
+
+        private static final OpenHashMap<String, Integer> words = new OpenHashMap<String, Integer>(64);
+        private static final OpenHashMap<String, Integer> wordsIgnoreCase = new OpenHashMap<String, Integer>(16);
+        static {
+            wordsIgnoreCase.put(OP_EXIT, EXIT);
+            wordsIgnoreCase.put(OP_QUIT, EXIT);
+            wordsIgnoreCase.put(OP_TRUE, TRUE);
+            wordsIgnoreCase.put(OP_FALSE, FALSE);
+            words.put(OP_COMMA_ID, NONE);
+            words.put(OP_IDENTITY, NONE);
+            words.put(OP_START_BLOCK, START_BLOCK);
+            words.put(OP_END_BLOCK, END_BLOCK);
+            words.put(OP_START_LIST, START_LIST);
+            words.put(OP_END_LIST, END_LIST);
+            words.put("+", ADD);
+            words.put("-", SUB);
+            words.put("*", MUL);
+            words.put("/", DIV);
+            words.put("inc", INC);
+            words.put("dec", DEC);
+            words.put("mod", MOD);
+            words.put("norem", NOREM);
+            words.put("eql", EQL);
+            words.put("or", OR);
+            words.put("swap", SWAP);
+            words.put("dup", DUP);
+            words.put("ifstk", IFSTK);
+            words.put("range", RANGE);
+            words.put("sumstk", SUMSTK);
+            words.put("loop", LOOP);
+            words.put("ploop", PLOOP);
+            words.put("minstk", MINSTK);
+            words.put("maxstk", MAXSTK);
+            words.put("map", MAP);
+            words.put("filter", FILTER);
+            words.put("len", LEN);
+            words.put("nth", NTH);
+            words.put("vsum", VSUM);
+            words.put("vadd", VADD);
+            words.put("vmul", VMUL);
+            words.put("vscale", VSCALE);
+            words.put("vdot", VDOT);
+            words.put("vmin", VMIN);
+            words.put("vmax", VMAX);
+            words.put("vfilter", VFILTER);
+            words.put("lambda", LAMBDA);
+            words.put("lambdasav", LAMBDASAV);
+            words.put("if", IF);
+            words.put("func", FUNC);
+            words.put("call", CALL);
+            words.put("callsav", CALLSAV);
+            wordsIgnoreCase.put("ptrinc", PTRINC);
+            wordsIgnoreCase.put("ptrdec", PTRDEC);
+            wordsIgnoreCase.put("ptr", PTR);
+            wordsIgnoreCase.put("ptrval", PTRVAL);
+            wordsIgnoreCase.put("ptrload", PTRLOAD);
+            wordsIgnoreCase.put("ptrsetstk", PTRSETSTK);
+            wordsIgnoreCase.put("ptrset", PTRSET);
+            wordsIgnoreCase.put("ptrplus", PTRPLUS);
+            wordsIgnoreCase.put("ptrminus", PTRMINUS);
+            wordsIgnoreCase.put("ptrputc", PTRPUTC);
+            words.put("ptrwhile", PTRWHILE);
+            words.put("ptrdebug", PTRDEBUG);
+            words.put("verbosedebug", VERBOSE);
+            wordsIgnoreCase.put("data", DATA);
+            wordsIgnoreCase.put("code", CODE);
+        }
+
+        /**
+         * Symbols for the words above, shared by every symbol table so the lexer returns
+         * the same object for a word in every program.  Index is the symbol id.
+         */
+        private static final Symbol [] keywords = new Symbol [words.size() + wordsIgnoreCase.size()];
+        static {
+            int id = 0;
+            for (final Map.Entry<String, Integer> e : words.entrySet()) {
+                keywords[id] = new Symbol(e.getKey(), e.getValue(), id);
+                id++;
+            }
+            for (final Map.Entry<String, Integer> e : wordsIgnoreCase.entrySet()) {
+                keywords[id] = new Symbol(e.getKey(), e.getValue(), id);
+                id++;
+            }
+        }
+
+        public static final Symbol SYMBOL_START_BLOCK = keyword(OP_START_BLOCK);
+        public static final Symbol SYMBOL_END_BLOCK = keyword(OP_END_BLOCK);
+        public static final Symbol SYMBOL_START_LIST = keyword(OP_START_LIST);
+        public static final Symbol SYMBOL_END_LIST = keyword(OP_END_LIST);
+        public static final Symbol SYMBOL_COMMA = keyword(OP_COMMA_ID);
+        public static final Symbol SYMBOL_ADD = keyword("+");
+        public static final Symbol SYMBOL_SUB = keyword("-");
+        public static final Symbol SYMBOL_MUL = keyword("*");
+        public static final Symbol SYMBOL_DIV = keyword("/");
+
+        private static Symbol keyword(final String word) {
+            for (final Symbol sym : keywords) {
+                if (sym.getName().equals(word)) {
+                    return sym;
+                }
+            }
+            throw new IllegalStateException("Not a keyword : " + word);
+        }
+
+        private Opcode() {
+        }
+
+        /**
+         * @param op
+         * @return the number of operands after the opcode in the code array
+         */
+        public static int operands(final int op) {
+            switch (op) {
+            case PLOOP:
+            case PTRMOVE:
+            case PTRMULADD:
+                return 2;
+            case PUSH:
+            case PUSH_NUMBER:
+            case BLOCK:
+            case LIST:
+            case LOOP:
+            case FUNC:
+            case CALL:
+            case CALLSAV:
+            case PTRLOAD:
+            case PTRSET:
+            case ERROR:
+            case MAP:
+            case FILTER:
+            case VFILTER:
+            case PTRADD:
+            case PTRCLEAR:
+            case ADD_NUMBER:
+            case SUB_NUMBER:
+            case MUL_NUMBER:
+            case NOREM_NUMBER:
+                return 1;
+            default:
+                return 0;
+            }
+        }
+
+        /**
+         * @param op
+         * @return the word for an opcode, or a name for the opcodes without a word
+         */
+        public static String name(final int op) {
+            switch (op) {
+            case PUSH: return "push";
+            case PUSH_NUMBER: return "number";
+            case BLOCK: return "block";
+            case LIST: return "list";
+            case EXIT: return OP_EXIT;
+            case ERROR: return "error";
+            case PTRADD: return "ptradd";
+            case PTRMOVE: return "ptrmove";
+            case PTRCLEAR: return "ptrclear";
+            case PTRMULADD: return "ptrmuladd";
+            case ADD_NUMBER: return "add_number";
+            case SUB_NUMBER: return "sub_number";
+            case MUL_NUMBER: return "mul_number";
+            case NOREM_NUMBER: return "norem_number";
+            case NOREM_OR: return "norem_or";
+            case PTRSETSTK_VAL: return "ptrsetstk_val";
+            case PTRVAL_NOREM: return "ptrval_norem";
+            default:
+                for (final Symbol sym : keywords) {
+                    if (sym.getOp() == op) {
+                        return sym.getName();
+                    }
+                }
+                return String.valueOf(op);
+            }
+        }
+
+        /**
+         * Find the opcode for a word, some words are matched ignoring case.
+         *
+         * @param word
+         * @return the opcode or NONE
+         */
+        public static int lookup(final String word) {
+            Integer op = words.get(word);
+            if (op == null) {
+                op = wordsIgnoreCase.get(word.toLowerCase(Locale.ENGLISH));
+            }
+            return op == null ? NONE : op;
+        }
+    }
+
+    /**
+     * Pairs of opcodes the compiler replaces with one opcode, see Compiler.fuse().  The
+     * pairs are in the order they run, 'norem 5' is PUSH_NUMBER then NOREM.  All of the
+     * pairs are fused by default, the hottest pairs of a program are found with a
+     * DispatchProfile:
+     * <pre>
+     * interp.setSuperinstructions(EnumSet.noneOf(Superinstruction.class));
+     * interp.getContext().setProfile(profile);
+     * interp.run(source);
+     * interp.setSuperinstructions(profile.hottest(3));
+     * </pre>
+     */
+    public static enum Superinstruction {
+        ADD_NUMBER(Opcode.PUSH_NUMBER, Opcode.ADD, Opcode.ADD_NUMBER),
+        SUB_NUMBER(Opcode.PUSH_NUMBER, Opcode.SUB, Opcode.SUB_NUMBER),
+        MUL_NUMBER(Opcode.PUSH_NUMBER, Opcode.MUL, Opcode.MUL_NUMBER),
+        NOREM_NUMBER(Opcode.PUSH_NUMBER, Opcode.NOREM, Opcode.NOREM_NUMBER),
+        NOREM_OR(Opcode.NOREM, Opcode.OR, Opcode.NOREM_OR),
+        PTRSETSTK_VAL(Opcode.PTRSETSTK, Opcode.PTRVAL, Opcode.PTRSETSTK_VAL),
+        PTRVAL_NOREM(Opcode.PTRVAL, Opcode.NOREM, Opcode.PTRVAL_NOREM),
+        /** 'inc 5' is folded to the number 6. */
+        INC_NUMBER(Opcode.PUSH_NUMBER, Opcode.INC, Opcode.PUSH_NUMBER),
+        /** 'dec 5' is folded to the number 4. */
+        DEC_NUMBER(Opcode.PUSH_NUMBER, Opcode.DEC, Opcode.PUSH_NUMBER);
+
+        private final int first;
+        private final int second;
+        private final int op;
+
+        private Superinstruction(final int first, final int second, final int op) {
+            this.first = first;
+            this.second = second;
+            this.op = op;
+        }
+        public int getFirst() {
+            return first;
+        }
+        public int getSecond() {
+            return second;
+        }
+        /**
+         * @return the opcode that replaces the pair, the operand of the first opcode is kept
+         */
+        public int getOp() {
+            return op;
+        }
+    }
+
+    /**
+     * Reader over a file mapped in to memory.  The bytes are decoded as they are read,
+     * the file is not copied on to the heap.  Large files are mapped a window at a time.
+     */
+    public static class MappedFileReader extends Reader {
+        private static final long WINDOW = 1L << 26;
+        private final FileChannel channel;
+        private final CharsetDecoder decoder;
+        private final long size;
+        private long start;
+        private MappedByteBuffer bytes;
+        public MappedFileReader(final FileChannel channel, final Charset charset) throws IOException {
+            this.channel = channel;
+            this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.size = channel.size();
+            this.map(0);
+        }
+        private void map(final long from) throws IOException {
+            this.start = from;
+            this.bytes = this.channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW, this.size - from));
+        }
+        public int read(final char [] cbuf, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            while (true) {
+                final boolean last = this.start + this.bytes.limit() >= this.size;
+                this.decoder.decode(this.bytes, out, last);
+                if (out.position() > off) {
+                    return out.position() - off;
+                }
+                if (last) {
+                    this.decoder.flush(out);
+                    return out.position() > off ? out.position() - off : -1;
+                }
+                // Map the next window from the first byte not decoded //
+                this.map(this.start + this.bytes.position());
+            }
+        }
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * A word from the source.  The lexer returns one Symbol object for each distinct
+     * word, so words can be compared by identity and the opcode is only found once.
+     */
+    public static final class Symbol {
+        private final String name;
+        private final int op;
+        private final int id;
+        private final int hash;
+        Symbol(final String name, final int op, final int id) {
+            this.name = name;
+            this.op = op;
+            this.id = id;
+            this.hash = name.hashCode();
+        }
+        public String getName() {
+            return name;
+        }
+        /**
+         * @return the opcode for the word, Opcode.NONE for words that are not built in
+         */
+        public int getOp() {
+            return op;
+        }
+        /**
+         * @return unique id of the word in the symbol table
+         */
+        public int getId() {
+            return id;
+        }
+        public int hashCode() {
+            return hash;
+        }
+        public String toString() {
+            return name;
+        }
+        private boolean matches(final char [] text, final int start, final int len) {
+            if (this.name.length() != len) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (this.name.charAt(i) != text[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Interned words, open addressing on the characters of the word so the lexer does
+     * not build a String for a word it has already seen.  The built in words are in
+     * every table with the same ids.
+     */
+    public static class SymbolTable {
+        private Symbol [] table = new Symbol [256];
+        private int size = 0;
+        public SymbolTable() {
+            for (final Symbol sym : Opcode.keywords) {
+                this.insert(sym);
+            }
+        }
+        public Symbol intern(final String word) {
+            return this.intern(word.toCharArray(), 0, word.length());
+        }
+        /**
+         * Find or add the word at text[start, end).
+         *
+         * @param text
+         * @param start
+         * @param end
+         * @return the symbol for the word
+         */
+        public Symbol intern(final char [] text, final int start, final int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + text[i];
+            }
+            final int len = end - start;
+            final int mask = this.table.length - 1;
+            int i = (h ^ (h >>> 16)) & mask;
+            Symbol sym;
+            while ((sym = this.table[i]) != null) {
+                if (sym.hash == h && sym.matches(text, start, len)) {
+                    return sym;
+                }
+                i = (i + 1) & mask;
+            }
+            final String name = new String(text, start, len);
+            sym = new Symbol(name, Opcode.lookup(name), this.size);
+            this.insert(sym);
+            return sym;
+        }
+        private void insert(final Symbol sym) {
+            if ((this.size + 1) * 2 > this.table.length) {
+                final Symbol [] old = this.table;
+                this.table = new Symbol [old.length * 2];
+                for (final Symbol o : old) {
+                    if (o != null) {
+                        this.place(o);
+                    }
+                }
+            }
+            this.place(sym);
+            this.size++;
+        }
+        private void place(final Symbol sym) {
+            final int mask = this.table.length - 1;
+            int i = (sym.hash ^ (sym.hash >>> 16)) & mask;
+            while (this.table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            this.table[i] = sym;
+        }
+        /**
+         * @return number of distinct words, including the built in words
+         */
+        public int size() {
+            return this.size;
+        }
+    }
+
+    /**
+     * The data stack.  Numbers, pointer values and booleans are kept unboxed in a
+     * double array with a type tag for each slot, other values (strings, chars, lists and
+     * function identifiers) use the object slot.  The boxed view returned by get(), pop()
+     * and peek() has the same values and string forms as a Stack of Double, Integer
+     * and Boolean objects.
+     */
+    public static class DataStack extends AbstractList<Object> implements RandomAccess {
+
+        /** Tag for a number, boxed as a Double. */
+        public static final byte NUMBER = 0;
+        /** Tag for a pointer value, boxed as an Integer. */
+        public static final byte INTEGER = 1;
+        /** Tag for a boolean, boxed as a Boolean. */
+        public static final byte BOOLEAN = 2;
+        /** Tag for any other value, kept in the object slot. */
+        public static final byte OBJECT = 3;
+
+        private double [] values;
+        private byte [] tags;
+        private Object [] objects;
+        private int size = 0;
+
+        public DataStack() {
+            this(32);
+        }
+        public DataStack(final int capacity) {
+            this.values = new double [capacity];
+            this.tags = new byte [capacity];
+            this.objects = new Object [capacity];
+        }
+
+        private void grow() {
+            final int capacity = this.values.length * 2;
+            final double [] v = new double [capacity];
+            final byte [] t = new byte [capacity];
+            final Object [] o = new Object [capacity];
+            System.arraycopy(this.values, 0, v, 0, this.size);
+            System.arraycopy(this.tags, 0, t, 0, this.size);
+            System.arraycopy(this.objects, 0, o, 0, this.size);
+            this.values = v;
+            this.tags = t;
+            this.objects = o;
+        }
+
+        private void pushSlot(final byte tag, final double value, final Object object) {
+            if (this.size == this.values.length) {
+                this.grow();
+            }
+            this.tags[this.size] = tag;
+            this.values[this.size] = value;
+            this.objects[this.size] = object;
+            this.size++;
+        }
+
+        public void pushNumber(final double value) {
+            this.pushSlot(NUMBER, value, null);
+        }
+        public void pushInteger(final int value) {
+            this.pushSlot(INTEGER, value, null);
+        }
+        public void pushBoolean(final boolean value) {
+            this.pushSlot(BOOLEAN, value ? 1 : 0, null);
+        }
+
+        /**
+         * Push a value, Double, Integer and Boolean values are stored unboxed.
+         *
+         * @param o
+         * @return the value
+         */
+        public Object push(final Object o) {
+            if (o instanceof Double) {
+                this.pushNumber((Double) o);
+            } else if (o instanceof Integer) {
+                this.pushInteger((Integer) o);
+            } else if (o instanceof Boolean) {
+                this.pushBoolean((Boolean) o);
+            } else {
+                this.pushSlot(OBJECT, 0, o);
+            }
+            return o;
+        }
+
+        private int top() {
+            if (this.size == 0) {
+                throw new EmptyStackException();
+            }
+            return this.size - 1;
+        }
+
+        private static ClassCastException castError(final byte tag, final Object o, final String type) {
+            final String name;
+            switch (tag) {
+            case NUMBER: name = Double.class.getName(); break;
+            case INTEGER: name = Integer.class.getName(); break;
+            case BOOLEAN: name = Boolean.class.getName(); break;
+            default: name = (o == null) ? "null" : o.getClass().getName();
+            }
+            return new ClassCastException(name + " cannot be cast to " + type);
+        }
+
+        /**
+         * @return the number at the top of the stack, the value must be a Double
+         */
+        public double peekNumber() {
+            final int i = this.top();
+            if (this.tags[i] != NUMBER) {
+                throw castError(this.tags[i], this.objects[i], Double.class.getName());
+            }
+            return this.values[i];
+        }
+        /**
+         * @param index from the bottom of the stack
+         * @return the number at index, the value must be a Double
+         */
+        public double getNumber(final int index) {
+            if (index >= this.size) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            if (this.tags[index] != NUMBER) {
+                throw castError(this.tags[index], this.objects[index], Double.class.getName());
+            }
+            return this.values[index];
+        }
+        public double popNumber() {
+            final double d = this.peekNumber();
+            this.size--;
+            return d;
+        }
+        public boolean popBoolean() {
+            final int i = this.top();
+            if (this.tags[i] != BOOLEAN) {
+                throw castError(this.tags[i], this.objects[i], Boolean.class.getName());
+            }
+            this.size--;
+            return this.values[i] != 0;
+        }
+
+        /**
+         * @return the type tag of the value at the top of the stack
+         */
+        public byte peekTag() {
+            return this.tags[this.top()];
+        }
+
+        /**
+         * @return the value at the top of the stack if it uses the object slot, otherwise null
+         */
+        public Object peekObject() {
+            if (this.size == 0 || this.tags[this.size - 1] != OBJECT) {
+                return null;
+            }
+            return this.objects[this.size - 1];
+        }
+
+        public Object peek() {
+            return this.get(this.top());
+        }
+        public Object pop() {
+            final Object o = this.peek();
+            this.drop();
+            return o;
+        }
+
+        /**
+         * Remove the value at the top of the stack.
+         */
+        public void drop() {
+            final int i = this.top();
+            this.objects[i] = null;
+            this.size = i;
+        }
+
+        /**
+         * Remove the value under the top of the stack.
+         */
+        public void nip() {
+            final int i = this.top();
+            if (i == 0) {
+                throw new EmptyStackException();
+            }
+            this.tags[i - 1] = this.tags[i];
+            this.values[i - 1] = this.values[i];
+            this.objects[i - 1] = this.objects[i];
+            this.objects[i] = null;
+            this.size = i;
+        }
+
+        public void swap() {
+            final int i = this.top();
+            if (i == 0) {
+                throw new EmptyStackException();
+            }
+            final byte t = this.tags[i];
+            final double v = this.values[i];
+            final Object o = this.objects[i];
+            this.tags[i] = this.tags[i - 1];
+            this.values[i] = this.values[i - 1];
+            this.objects[i] = this.objects[i - 1];
+            this.tags[i - 1] = t;
+            this.values[i - 1] = v;
+            this.objects[i - 1] = o;
+        }
+
+        /**
+         * Push the value at the top of another stack, the other stack is not modified.
+         *
+         * @param s
+         */
+        public void pushTopOf(final DataStack s) {
+            final int i = s.top();
+            this.pushSlot(s.tags[i], s.values[i], s.objects[i]);
+        }
+
+        public void dup() {
+            final int i = this.top();
+            this.pushSlot(this.tags[i], this.values[i], this.objects[i]);
+        }
+
+        /**
+         * Pop the top two values, compare them the same way as Object.equals on the boxed values.
+         *
+         * @return true if the values are equal
+         */
+        public boolean popEquals() {
+            final int i = this.top();
+            if (i == 0) {
+                throw new EmptyStackException();
+            }
+            final int j = i - 1;
+            final boolean equal;
+            if (this.tags[i] != this.tags[j]) {
+                equal = false;
+            } else if (this.tags[i] == OBJECT) {
+                equal = this.objects[i].equals(this.objects[j]);
+            } else {
+                equal = Double.doubleToLongBits(this.values[i]) == Double.doubleToLongBits(this.values[j]);
+            }
+            this.objects[i] = null;
+            this.objects[j] = null;
+            this.size = j;
+            return equal;
+        }
+
+        /**
+         * @return a new stack with the same values
+         */
+        public DataStack copy() {
+            final DataStack s = new DataStack(Math.max(this.size, 32));
+            System.arraycopy(this.tags, 0, s.tags, 0, this.size);
+            System.arraycopy(this.values, 0, s.values, 0, this.size);
+            System.arraycopy(this.objects, 0, s.objects, 0, this.size);
+            s.size = this.size;
+            return s;
+        }
+
+        public Object get(final int index) {
+            if (index < 0 || index >= this.size) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            switch (this.tags[index]) {
+            case NUMBER: return this.values[index];
+            case INTEGER: return (int) this.values[index];
+            case BOOLEAN: return this.values[index] != 0;
+            default: return this.objects[index];
+            }
+        }
+        public boolean add(final Object o) {
+            this.push(o);
+            return true;
+        }
+        public int size() {
+            return this.size;
+        }
+        public boolean isEmpty() {
+            return this.size == 0;
+        }
+        public void clear() {
+            Arrays.fill(this.objects, 0, this.size, null);
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Array backed stack for code tokens, the code stack and the blocks of code.
+     * The interpreter runs on one thread so unlike java.util.Stack nothing is
+     * synchronized.  Index zero is the bottom of the stack.
+     */
+    public static class CodeStack extends AbstractList<Object> implements RandomAccess {
+        private Object [] data;
+        private int size = 0;
+        public CodeStack() {
+            this(64);
+        }
+        public CodeStack(final int capacity) {
+            this.data = new Object [Math.max(capacity, 4)];
+        }
+        public Object push(final Object o) {
+            if (this.size == this.data.length) {
+                final Object [] grow = new Object [this.data.length * 2];
+                System.arraycopy(this.data, 0, grow, 0, this.size);
+                this.data = grow;
+            }
+            this.data[this.size++] = o;
+            return o;
+        }
+        public Object peek() {
+            if (this.size == 0) {
+                throw new EmptyStackException();
+            }
+            return this.data[this.size - 1];
+        }
+        public Object pop() {
+            final Object o = this.peek();
+            this.data[--this.size] = null;
+            return o;
+        }
+        public Object get(final int index) {
+            if (index >= this.size) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            return this.data[index];
+        }
+        public Object set(final int index, final Object o) {
+            final Object old = this.get(index);
+            this.data[index] = o;
+            return old;
+        }
+        public boolean add(final Object o) {
+            this.push(o);
+            return true;
+        }
+        public int size() {
+            return this.size;
+        }
+        public boolean isEmpty() {
+            return this.size == 0;
+        }
+        public void clear() {
+            Arrays.fill(this.data, 0, this.size, null);
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Hash map with open addressing (linear probing) in two parallel arrays.  Used in
+     * place of Hashtable for the function blocks, the function names and the variables,
+     * nothing is synchronized and a get does not allocate.  Null keys are not allowed.
+     */
+    public static class OpenHashMap<K, V> extends AbstractMap<K, V> {
+        private Object [] keys;
+        private Object [] values;
+        private int size = 0;
+        public OpenHashMap() {
+            this(16);
+        }
+        /**
+         * @param expected number of entries, the table is sized so it does not grow before then
+         */
+        public OpenHashMap(final int expected) {
+            int capacity = 8;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            this.keys = new Object [capacity];
+            this.values = new Object [capacity];
+        }
+        private static int slot(final Object key, final int mask) {
+            final int h = key.hashCode() * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+        private int indexOf(final Object key) {
+            if (key == null) {
+                throw new NullPointerException();
+            }
+            final int mask = this.keys.length - 1;
+            int i = slot(key, mask);
+            Object k;
+            while ((k = this.keys[i]) != null) {
+                if (k == key || k.equals(key)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+        @SuppressWarnings("unchecked")
+        public V get(final Object key) {
+            final int i = this.indexOf(key);
+            return i < 0 ? null : (V) this.values[i];
+        }
+        public boolean containsKey(final Object key) {
+            return this.indexOf(key) >= 0;
+        }
+        @SuppressWarnings("unchecked")
+        public V put(final K key, final V value) {
+            if (key == null) {
+                throw new NullPointerException();
+            }
+            if ((this.size + 1) * 2 > this.keys.length) {
+                this.resize(this.keys.length * 2);
+            }
+            final int mask = this.keys.length - 1;
+            int i = slot(key, mask);
+            Object k;
+            while ((k = this.keys[i]) != null) {
+                if (k == key || k.equals(key)) {
+                    final V old = (V) this.values[i];
+                    this.values[i] = value;
+                    return old;
+                }
+                i = (i + 1) & mask;
+            }
+            this.keys[i] = key;
+            this.values[i] = value;
+            this.size++;
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        public V remove(final Object key) {
+            int i = this.indexOf(key);
+            if (i < 0) {
+                return null;
+            }
+            final V old = (V) this.values[i];
+            final int mask = this.keys.length - 1;
+            // Shift the following entries of the probe sequence back into the hole //
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                final Object k = this.keys[j];
+                if (k == null) {
+                    break;
+                }
+                final int home = slot(k, mask);
+                if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                    this.keys[i] = k;
+                    this.values[i] = this.values[j];
+                    i = j;
+                }
+            }
+            this.keys[i] = null;
+            this.values[i] = null;
+            this.size--;
+            return old;
+        }
+        private void resize(final int capacity) {
+            final Object [] oldKeys = this.keys;
+            final Object [] oldValues = this.values;
+            this.keys = new Object [capacity];
+            this.values = new Object [capacity];
+            final int mask = capacity - 1;
+            for (int n = 0; n < oldKeys.length; n++) {
+                if (oldKeys[n] != null) {
+                    int i = slot(oldKeys[n], mask);
+                    while (this.keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    this.keys[i] = oldKeys[n];
+                    this.values[i] = oldValues[n];
+                }
+            }
+        }
+        public int size() {
+            return this.size;
+        }
+        public void clear() {
+            Arrays.fill(this.keys, null);
+            Arrays.fill(this.values, null);
+            this.size = 0;
+        }
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+                public int size() {
+                    return OpenHashMap.this.size;
+                }
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new Iterator<Map.Entry<K, V>>() {
+                        private int next = this.advance(0);
+                        private int advance(int i) {
+                            while (i < OpenHashMap.this.keys.length && OpenHashMap.this.keys[i] == null) {
+                                i++;
+                            }
+                            return i;
+                        }
+                        public boolean hasNext() {
+                            return this.next < OpenHashMap.this.keys.length;
+                        }
+                        @SuppressWarnings("unchecked")
+                        public Map.Entry<K, V> next() {
+                            if (!this.hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            final K k = (K) OpenHashMap.this.keys[this.next];
+                            final V v = (V) OpenHashMap.this.values[this.next];
+                            this.next = this.advance(this.next + 1);
+                            return new Map.Entry<K, V>() {
+                                public K getKey() {
+                                    return k;
+                                }
+                                public V getValue() {
+                                    return v;
+                                }
+                                public V setValue(final V value) {
+                                    throw new UnsupportedOperationException();
+                                }
+                            };
+                        }
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Walks the words of a block of code from the top of the block.  Blocks are never
+     * modified once collected, running a block only moves the cursor.  The cursor
+     * for the main code stack pops the words so the code stack shows the words
+     * that have not run yet.
+     */
+    protected static final class CodeCursor {
+        private final List<Object> code;
+        private final boolean consume;
+        private int ip;
+        public CodeCursor(final List<Object> code, final boolean consume) {
+            this.code = code;
+            this.consume = consume;
+            this.ip = code.size();
+        }
+        public boolean hasNext() {
+            return this.ip > 0;
+        }
+        public Object next() {
+            if (this.ip <= 0) {
+                throw new EmptyStackException();
+            }
+            this.ip--;
+            if (this.consume) {
+                return ((CodeStack) this.code).pop();
+            }
+            return this.code.get(this.ip);
+        }
+        /**
+         * Move the cursor back to the top of the block.
+         *
+         * @return this cursor
+         */
+        public CodeCursor reset() {
+            this.ip = this.code.size();
+            return this;
+        }
+    }
+
+    /**
+     * A block of code compiled to opcodes.  The opcodes are in the order they run,
+     * the first opcode is the last word of the block in the source.
+     */
+    public static class CompiledBlock {
+        private final String id;
+        private final int [] code;
+        private final CodeStack source;
+        private final int instructions;
+        private Object [] pool;
+        /** Opcodes removed by the compiler passes, set by the compiler. */
+        private int saved;
+        public CompiledBlock(final String id, final int [] code, final CodeStack source) {
+            this.id = id;
+            this.code = code;
+            this.source = source;
+            this.instructions = instructions(code);
+        }
+        /**
+         * @param code
+         * @return the number of opcodes in the code, not counting the operands
+         */
+        public static int instructions(final int [] code) {
+            int n = 0;
+            for (int ip = 0; ip < code.length; ip += 1 + Opcode.operands(code[ip])) {
+                n++;
+            }
+            return n;
+        }
+        /**
+         * @return the function identifier, null for the main block
+         */
+        public String getId() {
+            return id;
+        }
+        public int [] getCode() {
+            return code;
+        }
+        /**
+         * @return the number of opcodes dispatched by a run of the block
+         */
+        public int getInstructions() {
+            return instructions;
+        }
+        /**
+         * @return the opcodes removed by the optimizer and the superinstructions, the
+         *     dispatches saved by each run of the block
+         */
+        public int getSaved() {
+            return saved;
+        }
+        /**
+         * @return the tokens of the block, in the same form as the function code stack
+         */
+        public CodeStack getSource() {
+            return source;
+        }
+        /**
+         * @return the constant pool shared by the blocks of the program
+         */
+        public Object [] getPool() {
+            return pool;
+        }
+        public String toString() {
+            return "#<block " + id + " " + code.length + ">";
+        }
+    }
+
+    /**
+     * Memory for the pointer words (ptrset, ptrplus, ptrval, ptrwhile...).  A cell is an
+     * int, a cell that was never written is 0.  An index outside 0 to size() - 1 is an
+     * IllegalStateException with the pointer and the size of the tape.
+     */
+    public static interface Tape {
+        int get(int index);
+        void set(int index, int value);
+        /**
+         * @param index
+         * @param delta
+         * @return the new value of the cell
+         */
+        int add(int index, int delta);
+        /**
+         * @return the number of cells that can be addressed
+         */
+        int size();
+        /**
+         * Zero the cells from 0 to length - 1.
+         */
+        void clear(int length);
+        /**
+         * @param length
+         * @return a new tape of the same kind and size with the cells from 0 to length - 1
+         */
+        Tape copy(int length);
+        /**
+         * @param length
+         * @return the cells from 0 to length - 1
+         */
+        int [] toArray(int length);
+    }
+
+    /**
+     * Base for the tapes, the range check and copies by cell.
+     */
+    public abstract static class AbstractTape implements Tape {
+        protected final int size;
+        protected AbstractTape(final int size) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("Invalid tape size : " + size);
+            }
+            this.size = size;
+        }
+        public int size() {
+            return size;
+        }
+        public int add(final int index, final int delta) {
+            final int value = this.get(index) + delta;
+            this.set(index, value);
+            return value;
+        }
+        public Tape copy(final int length) {
+            final Tape copy = this.create();
+            for (int i = 0; i < length; i++) {
+                final int value = this.get(i);
+                if (value != 0) {
+                    copy.set(i, value);
+                }
+            }
+            return copy;
+        }
+        public int [] toArray(final int length) {
+            final int [] cells = new int [length];
+            for (int i = 0; i < length; i++) {
+                cells[i] = this.get(i);
+            }
+            return cells;
+        }
+        /**
+         * @return an empty tape of the same kind and size
+         */
+        protected abstract Tape create();
+        protected final void check(final int index) {
+            if (index < 0 || index >= this.size) {
+                throw new IllegalStateException("Pointer out of range : " + index + " (tape size " + this.size + ")");
+            }
+        }
+        public String toString() {
+            return "#<" + this.getClass().getSimpleName() + " " + size + ">";
+        }
+    }
+
+    /**
+     * Tape held in one int array, allocated up front.  This is the default, with
+     * ExecutionContext.MEMORY_SIZE cells.
+     */
+    public static class ArrayTape extends AbstractTape {
+        final int [] cells;
+        public ArrayTape(final int size) {
+            super(size);
+            this.cells = new int [size];
+        }
+        public int get(final int index) {
+            this.check(index);
+            return this.cells[index];
+        }
+        public void set(final int index, final int value) {
+            this.check(index);
+            this.cells[index] = value;
+        }
+        public int add(final int index, final int delta) {
+            this.check(index);
+            return this.cells[index] += delta;
+        }
+        public void clear(final int length) {
+            Arrays.fill(this.cells, 0, length, 0);
+        }
+        public Tape copy(final int length) {
+            final ArrayTape copy = new ArrayTape(this.size);
+            System.arraycopy(this.cells, 0, copy.cells, 0, length);
+            return copy;
+        }
+        public int [] toArray(final int length) {
+            final int [] copy = new int [length];
+            System.arraycopy(this.cells, 0, copy, 0, length);
+            return copy;
+        }
+        protected Tape create() {
+            return new ArrayTape(this.size);
+        }
+    }
+
+    /**
+     * Tape in pages of PAGE_SIZE ints on the heap, a page is allocated when a cell in it
+     * is first written.  The size is the limit, e.g. Integer.MAX_VALUE cells for a program
+     * that only touches a few of them.
+     */
+    public static class PagedTape extends AbstractTape {
+        public static final int PAGE_BITS = 12;
+        public static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private final int [][] pages;
+        public PagedTape(final int size) {
+            super(size);
+            this.pages = new int [(int) (((long) size + PAGE_SIZE - 1) >> PAGE_BITS)][];
+        }
+        public int get(final int index) {
+            this.check(index);
+            final int [] page = this.pages[index >>> PAGE_BITS];
+            return (page == null) ? 0 : page[index & (PAGE_SIZE - 1)];
+        }
+        public void set(final int index, final int value) {
+            this.check(index);
+            this.page(index)[index & (PAGE_SIZE - 1)] = value;
+        }
+        public int add(final int index, final int delta) {
+            this.check(index);
+            return this.page(index)[index & (PAGE_SIZE - 1)] += delta;
+        }
+        private int [] page(final int index) {
+            int [] page = this.pages[index >>> PAGE_BITS];
+            if (page == null) {
+                page = new int [PAGE_SIZE];
+                this.pages[index >>> PAGE_BITS] = page;
+            }
+            return page;
+        }
+        /**
+         * Pages that are all cleared are released.
+         */
+        public void clear(final int length) {
+            final int full = (length >= this.size) ? this.pages.length : length >>> PAGE_BITS;
+            Arrays.fill(this.pages, 0, full, null);
+            if (full < this.pages.length && this.pages[full] != null) {
+                Arrays.fill(this.pages[full], 0, length & (PAGE_SIZE - 1), 0);
+            }
+        }
+        public Tape copy(final int length) {
+            final PagedTape copy = new PagedTape(this.size);
+            for (int p = 0; p < this.pages.length && ((long) p << PAGE_BITS) < length; p++) {
+                if (this.pages[p] != null) {
+                    copy.pages[p] = this.pages[p].clone();
+                }
+            }
+            return copy;
+        }
+        /**
+         * @return the number of pages allocated
+         */
+        public int getPages() {
+            int n = 0;
+            for (final int [] page : this.pages) {
+                if (page != null) {
+                    n++;
+                }
+            }
+            return n;
+        }
+        protected Tape create() {
+            return new PagedTape(this.size);
+        }
+    }
+
+    /**
+     * Tape in direct (off heap) buffers of PAGE_SIZE ints, a page is allocated when a
+     * cell in it is first written.  For tapes of hundreds of millions of cells that
+     * should not be scanned by the garbage collector.
+     */
+    public static class DirectTape extends AbstractTape {
+        public static final int PAGE_BITS = 20;
+        public static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private final IntBuffer [] pages;
+        public DirectTape(final int size) {
+            super(size);
+            this.pages = new IntBuffer [(int) (((long) size + PAGE_SIZE - 1) >> PAGE_BITS)];
+        }
+        public int get(final int index) {
+            this.check(index);
+            final IntBuffer page = this.pages[index >>> PAGE_BITS];
+            return (page == null) ? 0 : page.get(index & (PAGE_SIZE - 1));
+        }
+        public void set(final int index, final int value) {
+            this.check(index);
+            this.page(index).put(index & (PAGE_SIZE - 1), value);
+        }
+        private IntBuffer page(final int index) {
+            IntBuffer page = this.pages[index >>> PAGE_BITS];
+            if (page == null) {
+                page = ByteBuffer.allocateDirect(PAGE_SIZE * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                this.pages[index >>> PAGE_BITS] = page;
+            }
+            return page;
+        }
+        /**
+         * The pages are zeroed and kept, direct memory is only freed by the collector.
+         */
+        public void clear(final int length) {
+            for (int i = 0; i < length; i++) {
+                final IntBuffer page = this.pages[i >>> PAGE_BITS];
+                if (page == null) {
+                    i |= PAGE_SIZE - 1;
+                } else {
+                    page.put(i & (PAGE_SIZE - 1), 0);
+                }
+            }
+        }
+        protected Tape create() {
+            return new DirectTape(this.size);
+        }
+    }
+
+    /**
+     * Tape in a file mapped in to memory with FileChannel.map, the pointer words read
+     * and write the mapped pages directly and the operating system writes them back to
+     * the file.  The pointer is stored in the header at the end of each run
+     * (ExecutionContext.checkpoint()), a later run with the same file continues from
+     * the stored cells and pointer.  reset() of the context or the interpreter (and so
+     * InterpreterPool.release()) keeps the cells and the stored pointer, use a new file
+     * for a clear tape.
+     * 
+     * <pre>
+     * header, HEADER_SIZE bytes, little endian ints:
+     *   magic, version, size (cells), pointer, max pointer
+     * cells, size little endian ints
+     * </pre>
+     * 
+     * The file is mapped in one region so the size is at most MAX_SIZE cells.  The
+     * mapping is released when the buffer is collected, close() writes the pages and
+     * closes the file.
+     */
+    public static class MappedTape extends AbstractTape {
+        public static final int MAGIC = 0x4f435450;
+        public static final int VERSION = 1;
+        public static final int HEADER_SIZE = 32;
+        public static final int MAX_SIZE = (Integer.MAX_VALUE - HEADER_SIZE) / 4;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private final IntBuffer cells;
+
+        private MappedTape(final File file, final RandomAccessFile raf, final int size) throws IOException {
+            super(size);
+            this.file = file;
+            this.raf = raf;
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 4L * size);
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.buffer.position(HEADER_SIZE);
+            this.cells = this.buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            this.buffer.position(0);
+        }
+
+        /**
+         * Open a tape file, a new (or empty) file is created with size cells, an
+         * existing tape keeps its cells, size and pointer.
+         *
+         * @param file
+         * @param size cells for a new tape
+         * @return the tape
+         * @throws IOException
+         */
+        public static MappedTape open(final File file, final int size) throws IOException {
+            if (size <= 0 || size > MAX_SIZE) {
+                throw new IllegalArgumentException("Invalid tape size : " + size);
+            }
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final MappedTape tape;
+                if (raf.length() == 0) {
+                    tape = new MappedTape(file, raf, size);
+                    tape.buffer.putInt(0, MAGIC);
+                    tape.buffer.putInt(4, VERSION);
+                    tape.buffer.putInt(8, size);
+                    tape.storePointer(0, 0);
+                } else {
+                    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    raf.getChannel().read(header, 0);
+                    if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                        throw new IllegalStateException("Invalid tape file : " + file);
+                    }
+                    final int stored = header.getInt(8);
+                    if (stored <= 0 || stored > MAX_SIZE || raf.length() < HEADER_SIZE + 4L * stored) {
+                        throw new IllegalStateException("Invalid tape file size : " + file);
+                    }
+                    tape = new MappedTape(file, raf, stored);
+                }
+                return tape;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            } catch (RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        public int get(final int index) {
+            this.check(index);
+            return this.cells.get(index);
+        }
+        public void set(final int index, final int value) {
+            this.check(index);
+            this.cells.put(index, value);
+        }
+        public void clear(final int length) {
+            for (int i = 0; i < length; i++) {
+                this.cells.put(i, 0);
+            }
+        }
+        /**
+         * The copy for a ploop chunk is on the heap, the file is only written by this tape.
+         */
+        public Tape copy(final int length) {
+            final PagedTape copy = new PagedTape(this.size);
+            for (int i = 0; i < length; i++) {
+                final int value = this.cells.get(i);
+                if (value != 0) {
+                    copy.set(i, value);
+                }
+            }
+            return copy;
+        }
+        protected Tape create() {
+            return new PagedTape(this.size);
+        }
+        public int getPointer() {
+            return this.buffer.getInt(12);
+        }
+        public int getMaxPointer() {
+            return this.buffer.getInt(16);
+        }
+        public void storePointer(final int pointer, final int maxPointer) {
+            this.buffer.putInt(12, pointer);
+            this.buffer.putInt(16, maxPointer);
+        }
+        /**
+         * Write the mapped pages to the file now.
+         */
+        public void force() {
+            this.buffer.force();
+        }
+        /**
+         * Write the pages and close the file, the tape is not used after close.
+         *
+         * @throws IOException
+         */
+        public void close() throws IOException {
+            this.force();
+            this.raf.close();
+        }
+        public File getFile() {
+            return file;
+        }
+        public String toString() {
+            return "#<MappedTape " + file + " " + size + ">";
+        }
+    }
+
+    /**
+     * The state changed by running code: the data stack, the pointer and memory, the
+     * function names and the compiled blocks loaded for the names.  A context is only
+     * used by one thread at a time, the compiled program run in the context is shared.
+     */
+    public static class ExecutionContext {
+        /** Size of the default memory block for pointer operations. */
+        public static final int MEMORY_SIZE = 3000;
+
+        final DataStack dataStack = new DataStack();
+        /** For pointer/array operations. */
+        int pointer = 0;
+        /** Highest pointer value so far, memory above it has not been written. */
+        int maxPointer = 0;
+        /** Memory for pointer operations. */
+        Tape tape;
+        /** Function identifier by function name, set by 'func'. */
+        final OpenHashMap<String, String> functionCodeLookup = new OpenHashMap<String, String>(16);
+        /** Compiled form of the blocks by function identifier. */
+        final OpenHashMap<String, CompiledBlock> compiledBlocks = new OpenHashMap<String, CompiledBlock>(32);
+        /** Verbose output, this is controlled by the code stack. */
+        boolean verbose = false;
+        /** Set for the copy of a context used by a chunk of ploop. */
+        boolean forked = false;
+        /** Counts the runs of the compiled blocks, null when not profiling. */
+        DispatchProfile profile = null;
+        /** Counts of the profile for the blocks run in this context, see DispatchProfile.merge(). */
+        Map<CompiledBlock, long []> counts = null;
+        /** Highest data stack depth seen by the Profiler since the last merge. */
+        int profileDepth = 0;
+        /** Time of the blocks run by the block running now, for the Profiler. */
+        long childNanos = 0;
+        /** Limits for each run, null for no limits. */
+        ExecutionLimits limits = null;
+        /** Instructions counted for the limits since the run started. */
+        long instructions = 0;
+        /** Instructions of the run shared with the forks of ploop, null before the first fork. */
+        AtomicLong budget = null;
+        /** Instructions of this context already added to the budget. */
+        long charged = 0;
+        /** Instruction count of the next check of the deadline. */
+        long nextCheck = 0;
+        /** System.nanoTime() deadline of the run, 0 for none. */
+        long deadline = 0;
+        /** Blocks running now, for the limits. */
+        int callDepth = 0;
+        /** Set when 'exit' ended the last run. */
+        boolean halted = false;
+        /** Set while the lines of an incremental run are run, the lines are one run for begin(). */
+        boolean continued = false;
+        /** The last words run in this context, null when not tracing. */
+        TraceBuffer trace = null;
+        /** Frames of the compiled engine, kept for the next calls. */
+        Frame [] calls = new Frame [0];
+        /** Frames in use, the last is the block running now. */
+        int callCount = 0;
+
+        public ExecutionContext() {
+            this(new ArrayTape(MEMORY_SIZE));
+        }
+
+        /**
+         * @param tape memory for the pointer words, e.g. a PagedTape for large programs
+         */
+        public ExecutionContext(final Tape tape) {
+            this.setTape(tape);
+        }
+
+        /**
+         * Clear the state in place for the next run, only the memory the pointer has
+         * reached is zeroed.  A MappedTape is not cleared, the cells are kept and the
+         * pointer is read again from the tape as with setTape().
+         */
+        public void reset() {
+            this.dataStack.clear();
+            if (this.tape instanceof MappedTape) {
+                this.setTape(this.tape);
+            } else {
+                this.tape.clear(Math.min(this.maxPointer + 1, this.tape.size()));
+                this.pointer = 0;
+                this.maxPointer = 0;
+            }
+            this.functionCodeLookup.clear();
+            this.compiledBlocks.clear();
+            this.verbose = false;
+            this.clearCounts();
+            this.begin();
+        }
+
+        /**
+         * Drop the counts of the profile that were not merged, and the counts kept by the
+         * frames.
+         */
+        void clearCounts() {
+            this.counts = null;
+            this.profileDepth = 0;
+            for (final Frame frame : this.calls) {
+                frame.counted = null;
+                frame.counts = null;
+            }
+        }
+
+        /**
+         * Double the frames of the compiled engine.
+         */
+        void growCalls() {
+            final Frame [] grow = new Frame [Math.max(16, this.calls.length * 2)];
+            System.arraycopy(this.calls, 0, grow, 0, this.calls.length);
+            for (int i = this.calls.length; i < grow.length; i++) {
+                grow[i] = new Frame();
+            }
+            this.calls = grow;
+        }
+
+        /**
+         * Start the count of instructions and the deadline for a run.  A part of a run
+         * that has already begun (continued is set) keeps the count and the deadline.
+         */
+        void begin() {
+            this.callDepth = 0;
+            if (this.continued) {
+                return;
+            }
+            this.instructions = 0;
+            this.budget = null;
+            this.charged = 0;
+            this.nextCheck = ExecutionLimits.CHECK_INTERVAL;
+            this.halted = false;
+            this.deadline = (this.limits != null && this.limits.getTimeoutMillis() > 0)
+                ? System.nanoTime() + this.limits.getTimeoutMillis() * 1000000L : 0;
+        }
+
+        /**
+         * Add the instructions counted since the last call to the budget shared with the
+         * forks, the count is then the count of the whole run.
+         */
+        void share() {
+            if (this.budget != null) {
+                this.instructions = this.budget.addAndGet(this.instructions - this.charged);
+                this.charged = this.instructions;
+            }
+        }
+
+        /**
+         * Copy of this context for a chunk of ploop, the functions, pointer and memory are
+         * copied, the data stack is empty.  With limits the copy counts its instructions in
+         * the budget of this context, the chunks of a ploop share one budget.
+         *
+         * @return the copy
+         */
+        public ExecutionContext fork() {
+            final ExecutionContext copy = new ExecutionContext(this.tape.copy(Math.min(this.maxPointer + 1, this.tape.size())));
+            copy.functionCodeLookup.putAll(this.functionCodeLookup);
+            copy.compiledBlocks.putAll(this.compiledBlocks);
+            copy.pointer = this.pointer;
+            copy.maxPointer = this.maxPointer;
+            copy.verbose = this.verbose;
+            copy.profile = this.profile;
+            copy.limits = this.limits;
+            if (this.limits != null) {
+                if (this.budget == null) {
+                    this.budget = new AtomicLong();
+                    this.charged = 0;
+                }
+                this.share();
+                copy.budget = this.budget;
+                copy.charged = this.instructions;
+            }
+            copy.instructions = this.instructions;
+            copy.nextCheck = this.instructions + ExecutionLimits.CHECK_INTERVAL;
+            copy.deadline = this.deadline;
+            copy.callDepth = this.callDepth;
+            copy.forked = true;
+            return copy;
+        }
+
+        /**
+         * Register the blocks of a compiled program by function identifier.
+         *
+         * @param program
+         */
+        public void load(final CompiledProgram program) {
+            for (final CompiledBlock block : program.getBlocks()) {
+                this.compiledBlocks.put(block.getId(), block);
+            }
+        }
+
+        /**
+         * Check the pointer against the memory block, print a warning when out of range.
+         *
+         * @return true if the pointer is valid
+         */
+        protected boolean checkPointer() {
+            if (this.pointer < 0) {
+                System.out.println("WARN: pointer is less than zero");
+                return false;
+            }
+            if (this.pointer >= this.tape.size()) {
+                System.out.println("WARN: pointer is larger than memory allocated");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Print the data stack.
+         */
+        public void printStack() {
+            System.out.println();
+            System.out.println(">>> Data Stack <<<");
+            int i = 0;
+            final List<Object> s = new ArrayList<Object>(this.dataStack);
+            Collections.reverse(s);
+            for (final Object obj : s) {
+                System.out.println("  -> index-" + (i + 1) + ":  " + obj + " " + (i == 0 ? "(top)" : ""));
+                i++;
+            }
+        }
+
+        public DataStack getDataStack() {
+            return dataStack;
+        }
+        public int getPointer() {
+            return pointer;
+        }
+        /**
+         * @return the memory as an array, the array of an ArrayTape or a copy up to the
+         *     highest pointer value for other tapes
+         */
+        public int [] getMemory() {
+            if (this.tape instanceof ArrayTape) {
+                return ((ArrayTape) this.tape).cells;
+            }
+            return this.tape.toArray(Math.min(this.maxPointer + 1, this.tape.size()));
+        }
+        public Tape getTape() {
+            return tape;
+        }
+        /**
+         * Replace the memory for the pointer words.  The pointer is not changed, except
+         * for a MappedTape where the run continues from the pointer stored in the file.
+         * reset() clears the other tapes but keeps the cells and pointer of a MappedTape.
+         *
+         * @param tape
+         */
+        public void setTape(final Tape tape) {
+            this.tape = tape;
+            if (tape instanceof MappedTape) {
+                this.pointer = ((MappedTape) tape).getPointer();
+                this.maxPointer = ((MappedTape) tape).getMaxPointer();
+            }
+        }
+
+        /**
+         * Store the pointer in a MappedTape, this is done at the end of each run.  Other
+         * tapes are not persisted.
+         */
+        public void checkpoint() {
+            if (this.tape instanceof MappedTape) {
+                ((MappedTape) this.tape).storePointer(this.pointer, this.maxPointer);
+            }
+        }
+        /**
+         * @return read only view of the function identifiers by name
+         */
+        public Map<String, String> getFunctionCodeLookup() {
+            return Collections.unmodifiableMap(functionCodeLookup);
+        }
+        public boolean isVerbose() {
+            return verbose;
+        }
+        public void setVerbose(final boolean verbose) {
+            this.verbose = verbose;
+        }
+        public ExecutionLimits getLimits() {
+            return limits;
+        }
+        /**
+         * @param limits checked while code runs in this context, the count and deadline
+         *     start again with each run, null for no limits
+         */
+        public void setLimits(final ExecutionLimits limits) {
+            this.limits = limits;
+        }
+        /**
+         * @return the instructions counted for the limits in the last run
+         */
+        public long getInstructions() {
+            return instructions;
+        }
+        /**
+         * @return true when the last run ended with 'exit'
+         */
+        public boolean isHalted() {
+            return halted;
+        }
+        public TraceBuffer getTrace() {
+            return trace;
+        }
+        /**
+         * @param trace records each word run by the compiled engine in this context, the
+         *     contexts forked by ploop are not traced, null to stop tracing
+         */
+        public void setTrace(final TraceBuffer trace) {
+            this.trace = trace;
+        }
+        public DispatchProfile getProfile() {
+            return profile;
+        }
+        /**
+         * @param profile counts the runs of the compiled blocks, shared with the contexts
+         *     forked by ploop, null to stop profiling
+         */
+        public void setProfile(final DispatchProfile profile) {
+            this.profile = profile;
+            this.clearCounts();
+        }
+    }
+
+    /**
+     * Dispatch counts of the compiled engine, see ExecutionContext.setProfile().  Only the
+     * runs of each block are counted, the code of a block has no jumps so the dispatches
+     * and the pairs of adjacent opcodes are the counts in the code times the runs.  A
+     * block that ends early with an error is counted as a full run.
+     * 
+     * The runs are counted in the ExecutionContext, which is used by one thread, and
+     * added to the profile by merge() when execute(CompiledProgram) or a chunk of ploop
+     * ends, so a block run takes no lock.  The counts of a run in progress are not seen.
+     */
+    public static class DispatchProfile {
+        /** Runs of each block, the Profiler adds the inclusive and exclusive time. */
+        private final Map<CompiledBlock, long []> runs = new IdentityHashMap<CompiledBlock, long []>();
+
+        /**
+         * @param block
+         * @return the counts for the block, the caller holds the lock
+         */
+        protected long [] slot(final CompiledBlock block) {
+            long [] n = this.runs.get(block);
+            if (n == null) {
+                n = new long [4];
+                this.runs.put(block, n);
+            }
+            return n;
+        }
+        /**
+         * @return the counts by block, the caller holds the lock
+         */
+        protected Map<CompiledBlock, long []> slots() {
+            return this.runs;
+        }
+        /**
+         * @param ctx
+         * @param block a block about to run in the context
+         * @return the counts of the block in the context, runs, inclusive and exclusive
+         *     time, added to the profile by merge()
+         */
+        static long [] local(final ExecutionContext ctx, final CompiledBlock block) {
+            if (ctx.counts == null) {
+                ctx.counts = new IdentityHashMap<CompiledBlock, long []>();
+            }
+            long [] n = ctx.counts.get(block);
+            if (n == null) {
+                n = new long [3];
+                ctx.counts.put(block, n);
+            }
+            return n;
+        }
+        /**
+         * Add the counts of the blocks run in the context since the last merge, the counts
+         * of the context are set to 0.
+         *
+         * @param ctx
+         */
+        public synchronized void merge(final ExecutionContext ctx) {
+            if (ctx.counts == null) {
+                return;
+            }
+            // The counts are zeroed in place, the frames keep the arrays //
+            for (final Map.Entry<CompiledBlock, long []> e : ctx.counts.entrySet()) {
+                final long [] add = e.getValue();
+                if (add[0] != 0) {
+                    final long [] n = this.slot(e.getKey());
+                    n[0] += add[0];
+                    n[1] += add[1];
+                    n[2] += add[2];
+                    add[0] = 0;
+                    add[1] = 0;
+                    add[2] = 0;
+                }
+            }
+        }
+        /**
+         * @param block a block about to run
+         */
+        public synchronized void record(final CompiledBlock block) {
+            this.slot(block)[0]++;
+        }
+        public synchronized void clear() {
+            this.runs.clear();
+        }
+        /**
+         * @return the opcodes dispatched
+         */
+        public synchronized long getDispatches() {
+            long n = 0;
+            for (final Map.Entry<CompiledBlock, long []> e : this.runs.entrySet()) {
+                n += e.getKey().getInstructions() * e.getValue()[0];
+            }
+            return n;
+        }
+        /**
+         * @return the dispatches saved by the optimizer and the superinstructions, the
+         *     body of a fused ptrwhile loop is not counted
+         */
+        public synchronized long getSaved() {
+            long n = 0;
+            for (final Map.Entry<CompiledBlock, long []> e : this.runs.entrySet()) {
+                n += e.getKey().getSaved() * e.getValue()[0];
+            }
+            return n;
+        }
+        /**
+         * @return the dispatches of each pair of adjacent opcodes, 'first second' by
+         *     opcode name, the hottest first
+         */
+        public synchronized Map<String, Long> getPairs() {
+            final Map<String, Long> pairs = new HashMap<String, Long>();
+            for (final Map.Entry<CompiledBlock, long []> e : this.runs.entrySet()) {
+                final int [] code = e.getKey().getCode();
+                int prev = -1;
+                for (int ip = 0; ip < code.length; ip += 1 + Opcode.operands(code[ip])) {
+                    if (prev >= 0) {
+                        final String key = Opcode.name(code[prev]) + " " + Opcode.name(code[ip]);
+                        final Long n = pairs.get(key);
+                        pairs.put(key, (n == null ? 0 : n) + e.getValue()[0]);
+                    }
+                    prev = ip;
+                }
+            }
+            final List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(pairs.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>() {
+                public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b) {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+            final Map<String, Long> result = new LinkedHashMap<String, Long>();
+            for (final Map.Entry<String, Long> e : sorted) {
+                result.put(e.getKey(), e.getValue());
+            }
+            return result;
+        }
+        /**
+         * Pick the superinstructions for the hottest pairs.  The pairs are only found in code
+         * compiled without superinstructions.
+         *
+         * @param max
+         * @return up to max superinstructions with pairs that ran, the hottest pairs
+         */
+        public synchronized Set<Superinstruction> hottest(final int max) {
+            final long [] counts = new long [Superinstruction.values().length];
+            for (final Map.Entry<CompiledBlock, long []> e : this.runs.entrySet()) {
+                final int [] code = e.getKey().getCode();
+                int prev = -1;
+                for (int ip = 0; ip < code.length; ip += 1 + Opcode.operands(code[ip])) {
+                    for (final Superinstruction fused : Superinstruction.values()) {
+                        if (prev >= 0 && code[prev] == fused.getFirst() && code[ip] == fused.getSecond()) {
+                            counts[fused.ordinal()] += e.getValue()[0];
+                        }
+                    }
+                    prev = ip;
+                }
+            }
+            final Set<Superinstruction> result = EnumSet.noneOf(Superinstruction.class);
+            while (result.size() < max) {
+                Superinstruction best = null;
+                for (final Superinstruction fused : Superinstruction.values()) {
+                    if (counts[fused.ordinal()] > 0 && !result.contains(fused)
+                            && (best == null || counts[fused.ordinal()] > counts[best.ordinal()])) {
+                        best = fused;
+                    }
+                }
+                if (best == null) {
+                    break;
+                }
+                result.add(best);
+            }
+            return result;
+        }
+        /**
+         * @return the dispatches, the dispatches saved and the hottest pairs
+         */
+        public String report() {
+            final long dispatches = this.getDispatches();
+            final long saved = this.getSaved();
+            final StringBuilder buf = new StringBuilder();
+            buf.append("dispatches : ").append(dispatches).append('\n');
+            buf.append("saved      : ").append(saved);
+            if (dispatches + saved > 0) {
+                buf.append(String.format(" (%.1f%%)", 100.0 * saved / (dispatches + saved)));
+            }
+            buf.append('\n');
+            buf.append("pairs      :\n");
+            int i = 0;
+            for (final Map.Entry<String, Long> e : this.getPairs().entrySet()) {
+                if (i++ == 10) {
+                    break;
+                }
+                buf.append("  ").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * A block running in the compiled engine.  The frames of a context are a stack
+     * managed by execute() in place of the Java stack, a frame is kept when it is
+     * popped so a call does not allocate.
+     */
+    static final class Frame {
+        /** The block returns to the frame below. */
+        static final int RETURN = 0;
+        /** The top of the stack of the block is pushed on to the stack of the caller. */
+        static final int SAVE = 1;
+        /** The condition of 'if', the frame then runs the branch. */
+        static final int IF = 2;
+        /** The branch of 'if' with the verbose output. */
+        static final int BRANCH = 3;
+        /** The block runs again while the value at the pointer is not zero. */
+        static final int WHILE = 4;
+        /** The block runs again for each element of a sequence. */
+        static final int LOOP = 5;
+
+        CompiledBlock block;
+        /** Next opcode of the block, set when the frame calls another block. */
+        int ip;
+        DataStack stack;
+        int kind;
+        /** Set while the block is counted by the profile and limits. */
+        boolean entered;
+        /** Stack the results are pushed on to, SAVE and LOOP. */
+        DataStack caller;
+        /** Function identifier for the verbose output, BRANCH and WHILE. */
+        Object id;
+        /** Elements of a loop, the numeric list is read without boxing. */
+        LangTypeList list;
+        int index;
+        Iterator<Object> elements;
+        /** Stack of each run of a loop, kept with the frame. */
+        DataStack local;
+        /** For the time of the Profiler. */
+        long start;
+        long outer;
+        /** Counts of the profile for the block counted last in the frame, see DispatchProfile.local(). */
+        CompiledBlock counted;
+        long [] counts;
+
+        Frame returnTo(final DataStack caller) {
+            this.caller = caller;
+            return this;
+        }
+        void start(final LangTypeSeq seq, final DataStack caller) {
+            if (this.local == null) {
+                this.local = new DataStack();
+            }
+            this.stack = this.local;
+            this.caller = caller;
+            if (seq instanceof LangTypeList && ((LangTypeList) seq).isNumeric()) {
+                this.list = (LangTypeList) seq;
+                this.index = 0;
+            } else {
+                this.elements = seq.iterator();
+            }
+        }
+        /**
+         * The end of a run of a loop, the top of the stack is pushed on to the caller.
+         *
+         * @return true when the block runs again for the next element
+         */
+        boolean again() {
+            if (this.stack.size() > 0) {
+                this.caller.pushTopOf(this.stack);
+            }
+            this.ip = 0;
+            return this.next();
+        }
+        /**
+         * @return true when the stack has the next element of the loop
+         */
+        boolean next() {
+            if (this.list != null) {
+                if (this.index == this.list.size()) {
+                    return false;
+                }
+                this.stack.clear();
+                this.stack.pushNumber(this.list.getNumber(this.index++));
+                return true;
+            }
+            if (!this.elements.hasNext()) {
+                return false;
+            }
+            this.stack.clear();
+            this.stack.push(this.elements.next());
+            return true;
+        }
+        /**
+         * Drop the references of a frame that is not a RETURN frame.
+         */
+        void clear() {
+            this.caller = null;
+            this.id = null;
+            this.list = null;
+            this.elements = null;
+            if (this.local != null) {
+                this.local.clear();
+            }
+        }
+    }
+
+    /**
+     * Limits for a run in a context, see ExecutionContext.setLimits().  A limit of 0 is
+     * no limit.  The compiled engine counts the instructions of a block and checks the
+     * limits before the block runs, the string engine checks before each word.  The
+     * clock is read every CHECK_INTERVAL instructions.  A limit that is passed is a
+     * LimitExceededException, the context is left as it was at the check.  The chunks of
+     * ploop count in the budget of the run, each chunk adds its count every
+     * CHECK_INTERVAL instructions and when it ends, so chunks on many threads can pass
+     * maxInstructions by a few intervals before the limit is found.
+     * <pre>
+     * final ExecutionLimits limits = new ExecutionLimits();
+     * limits.setMaxInstructions(1000000);
+     * limits.setTimeoutMillis(100);
+     * interp.getContext().setLimits(limits);
+     * </pre>
+     */
+    public static class ExecutionLimits {
+        /** Instructions between reads of the clock. */
+        public static final int CHECK_INTERVAL = 4096;
+
+        private long maxInstructions = 0;
+        private long timeoutMillis = 0;
+        private int maxStackDepth = 0;
+        private int maxCallDepth = 0;
+
+        /**
+         * Count instructions about to run and check the limits.
+         *
+         * @param ctx
+         * @param stack
+         * @param n instructions about to run
+         */
+        void check(final ExecutionContext ctx, final DataStack stack, final int n) {
+            ctx.instructions += n;
+            if (ctx.instructions >= ctx.nextCheck) {
+                ctx.share();
+            }
+            if (this.maxInstructions > 0 && ctx.instructions > this.maxInstructions) {
+                throw new LimitExceededException(LimitExceededException.Limit.INSTRUCTIONS, this.maxInstructions, ctx, stack);
+            }
+            if (this.maxCallDepth > 0 && ctx.callDepth > this.maxCallDepth) {
+                throw new LimitExceededException(LimitExceededException.Limit.CALL_DEPTH, this.maxCallDepth, ctx, stack);
+            }
+            this.checkStack(ctx, stack);
+            if (ctx.instructions >= ctx.nextCheck) {
+                ctx.nextCheck = ctx.instructions + CHECK_INTERVAL;
+                if (ctx.deadline != 0 && System.nanoTime() - ctx.deadline > 0) {
+                    throw new LimitExceededException(LimitExceededException.Limit.TIME, this.timeoutMillis, ctx, stack);
+                }
+            }
+        }
+
+        /**
+         * Check the size of the data stack, also after a block has run as the block can
+         * push the values of a loop with no check after.
+         *
+         * @param ctx
+         * @param stack
+         */
+        void checkStack(final ExecutionContext ctx, final DataStack stack) {
+            if (this.maxStackDepth > 0 && stack.size() > this.maxStackDepth) {
+                throw new LimitExceededException(LimitExceededException.Limit.STACK_DEPTH, this.maxStackDepth, ctx, stack);
+            }
+        }
+
+        public long getMaxInstructions() {
+            return maxInstructions;
+        }
+        /**
+         * @param maxInstructions opcodes (words for the string engine) for a run
+         */
+        public void setMaxInstructions(final long maxInstructions) {
+            this.maxInstructions = maxInstructions;
+        }
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+        /**
+         * @param timeoutMillis wall clock time for a run
+         */
+        public void setTimeoutMillis(final long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+        public int getMaxStackDepth() {
+            return maxStackDepth;
+        }
+        /**
+         * @param maxStackDepth size of the data stack
+         */
+        public void setMaxStackDepth(final int maxStackDepth) {
+            this.maxStackDepth = maxStackDepth;
+        }
+        public int getMaxCallDepth() {
+            return maxCallDepth;
+        }
+        /**
+         * @param maxCallDepth blocks running at the same time, the main code is 1
+         */
+        public void setMaxCallDepth(final int maxCallDepth) {
+            this.maxCallDepth = maxCallDepth;
+        }
+    }
+
+    /**
+     * A run passed one of its ExecutionLimits.  The exception has the top of the data
+     * stack, the pointer and the instruction count when the limit was found.
+     */
+    public static class LimitExceededException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        /** Values of the data stack kept, from the top. */
+        public static final int MAX_SNAPSHOT = 64;
+
+        public static enum Limit {
+            INSTRUCTIONS,
+            TIME,
+            STACK_DEPTH,
+            CALL_DEPTH
+        }
+
+        private final Limit limit;
+        private final long value;
+        private final List<Object> stack;
+        private final int stackSize;
+        private final int pointer;
+        private final long instructions;
+
+        public LimitExceededException(final Limit limit, final long value, final ExecutionContext ctx, final DataStack stack) {
+            super("Limit exceeded : " + limit + " " + value + " (instructions " + ctx.instructions
+                + ", stack " + stack.size() + ", depth " + ctx.callDepth + ")");
+            this.limit = limit;
+            this.value = value;
+            final int from = Math.max(0, stack.size() - MAX_SNAPSHOT);
+            this.stack = Collections.unmodifiableList(new ArrayList<Object>(stack.subList(from, stack.size())));
+            this.stackSize = stack.size();
+            this.pointer = ctx.pointer;
+            this.instructions = ctx.instructions;
+        }
+        public Limit getLimit() {
+            return limit;
+        }
+        /**
+         * @return the limit that was passed
+         */
+        public long getValue() {
+            return value;
+        }
+        /**
+         * @return up to MAX_SNAPSHOT values from the top of the data stack, the top last
+         */
+        public List<Object> getStack() {
+            return stack;
+        }
+        public int getStackSize() {
+            return stackSize;
+        }
+        public int getPointer() {
+            return pointer;
+        }
+        public long getInstructions() {
+            return instructions;
+        }
+    }
+
+    /**
+     * Thrown by 'exit' to end the run, caught where the run started.
+     */
+    private static class Halt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * The last words run by the compiled engine, a ring buffer of a fixed number of
+     * entries where the oldest entry is overwritten.  An entry is two longs, the opcode,
+     * the tag of the top of the data stack, the depth of the data stack and the pointer
+     * before the word runs, then the bits of the number at the top of the stack (0 for
+     * other values).  Recording an entry does not allocate.
+     * <p>
+     * The file written by write() is big endian: magic 'OCTR', version, capacity, count of
+     * entries recorded, count of entries in the file, then the entries oldest first.
+     * It is decoded with read(), or on the command line with '-readtrace file'.
+     */
+    public static class TraceBuffer {
+        public static final int MAGIC = 0x4f435452;
+        public static final int VERSION = 1;
+        /** Default number of entries, 1 MB. */
+        public static final int DEFAULT_CAPACITY = 1 << 16;
+        /** Tag for an empty data stack. */
+        public static final byte EMPTY = -1;
+
+        private final long [] entries;
+        private final int mask;
+        private long count = 0;
+
+        public TraceBuffer() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        /**
+         * @param capacity number of entries kept, rounded up to a power of 2
+         */
+        public TraceBuffer(final int capacity) {
+            int n = 1;
+            while (n < capacity) {
+                n <<= 1;
+            }
+            this.entries = new long [n * 2];
+            this.mask = n - 1;
+        }
+
+        /**
+         * @param op opcode about to run
+         * @param pointer
+         * @param stack
+         */
+        public void record(final int op, final int pointer, final DataStack stack) {
+            final long [] e = this.entries;
+            final int i = ((int) this.count++ & this.mask) << 1;
+            final int top = stack.size - 1;
+            if (top < 0) {
+                e[i] = ((long) op << 56) | (0xffL << 48) | (pointer & 0xffffffffL);
+                e[i + 1] = 0;
+            } else {
+                e[i] = ((long) op << 56) | ((long) stack.tags[top] << 48) | ((long) (top < 0xffff ? top + 1 : 0xffff) << 32)
+                    | (pointer & 0xffffffffL);
+                e[i + 1] = Double.doubleToRawLongBits(stack.values[top]);
+            }
+        }
+
+        /**
+         * @return the number of entries recorded, including the entries overwritten
+         */
+        public long getCount() {
+            return count;
+        }
+        public int getCapacity() {
+            return this.mask + 1;
+        }
+        public void clear() {
+            this.count = 0;
+        }
+
+        /**
+         * @return the entries kept, oldest first
+         */
+        public List<TraceEntry> entries() {
+            final int n = (int) Math.min(this.count, this.mask + 1);
+            final List<TraceEntry> list = new ArrayList<TraceEntry>(n);
+            for (long k = this.count - n; k < this.count; k++) {
+                final int i = ((int) k & this.mask) << 1;
+                list.add(new TraceEntry(this.entries[i], this.entries[i + 1]));
+            }
+            return list;
+        }
+
+        /**
+         * @param out
+         * @throws IOException
+         */
+        public void write(final OutputStream out) throws IOException {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            final int n = (int) Math.min(this.count, this.mask + 1);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(this.mask + 1);
+            data.writeLong(this.count);
+            data.writeInt(n);
+            for (long k = this.count - n; k < this.count; k++) {
+                final int i = ((int) k & this.mask) << 1;
+                data.writeLong(this.entries[i]);
+                data.writeLong(this.entries[i + 1]);
+            }
+            data.flush();
+        }
+
+        /**
+         * @param file
+         * @throws IOException
+         */
+        public void write(final File file) throws IOException {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                this.write(out);
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * @param in a trace written by write()
+         * @return the entries, oldest first
+         * @throws IOException
+         */
+        public static List<TraceEntry> read(final InputStream in) throws IOException {
+            final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a trace file");
+            }
+            final int version = data.readInt();
+            if (version != VERSION) {
+                throw new IOException("Invalid trace version : " + version);
+            }
+            data.readInt();
+            data.readLong();
+            final int n = data.readInt();
+            final List<TraceEntry> list = new ArrayList<TraceEntry>(n);
+            for (int i = 0; i < n; i++) {
+                final long word = data.readLong();
+                list.add(new TraceEntry(word, data.readLong()));
+            }
+            return list;
+        }
+
+        /**
+         * Print the entries of a trace file, one line for each word.
+         *
+         * @param file
+         * @param out
+         * @throws IOException
+         */
+        public static void print(final File file, final PrintStream out) throws IOException {
+            final InputStream in = new FileInputStream(file);
+            try {
+                for (final TraceEntry entry : read(in)) {
+                    out.println(entry);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * A word run by the compiled engine, see TraceBuffer.
+     */
+    public static class TraceEntry {
+        private final long word;
+        private final long bits;
+        public TraceEntry(final long word, final long bits) {
+            this.word = word;
+            this.bits = bits;
+        }
+        public int getOp() {
+            return (int) (word >>> 56);
+        }
+        /**
+         * @return the tag of the top of the data stack, see DataStack, or TraceBuffer.EMPTY
+         */
+        public byte getTag() {
+            return (byte) (word >>> 48);
+        }
+        /**
+         * @return the depth of the data stack, at most 65535
+         */
+        public int getDepth() {
+            return (int) (word >>> 32) & 0xffff;
+        }
+        public int getPointer() {
+            return (int) word;
+        }
+        /**
+         * @return the number at the top of the data stack, 0 for other values
+         */
+        public double getValue() {
+            return Double.longBitsToDouble(bits);
+        }
+        public String toString() {
+            final String top;
+            switch (this.getTag()) {
+            case TraceBuffer.EMPTY: top = "empty"; break;
+            case DataStack.OBJECT: top = "object"; break;
+            case DataStack.BOOLEAN: top = String.valueOf(this.getValue() != 0); break;
+            case DataStack.INTEGER: top = String.valueOf((int) this.getValue()); break;
+            default: top = String.valueOf(this.getValue());
+            }
+            return Opcode.name(this.getOp()) + " ptr=" + this.getPointer() + " depth=" + this.getDepth() + " top=" + top;
+        }
+    }
+
+    /**
+     * Management interface of the Profiler, see Profiler.register().
+     */
+    public static interface ProfilerMBean {
+        long getDispatches();
+        long getSaved();
+        long getCalls();
+        int getMaxDepth();
+        long getAllocatedBytes();
+        String getReport();
+        void clear();
+    }
+
+    /**
+     * Profile of the compiled engine, the dispatches of each word and the calls and time
+     * of each block, e.g.
+     * <pre>
+     * final Profiler profiler = new Profiler();
+     * interp.getContext().setProfile(profiler);
+     * interp.run(source);
+     * System.out.println(profiler.snapshot());
+     * </pre>
+     * The calls and dispatches are exact.  The time is sampled, a daemon thread looks at
+     * the blocks running in each profiled context every interval while code runs, the
+     * block on top gets the exclusive time and each block running gets the inclusive
+     * time.  With an interval of 0 each run of a block is timed instead, this reads the
+     * clock twice per run and slows blocks of a few words a lot.
+     * <p>
+     * The depth of the data stack is read when blocks start and end.  The allocated
+     * bytes are for the thread of execute(CompiledProgram), -1 when the JVM does not
+     * count them.  As for the DispatchProfile the calls, depth and timed runs are kept in
+     * the context and merged when the run ends, only the start and end of a run take the
+     * lock of the profiler, to add and remove the context for the sampler.
+     */
+    public static class Profiler extends DispatchProfile implements ProfilerMBean {
+        /** Default time between samples, 1 millisecond. */
+        public static final long DEFAULT_INTERVAL = 1000000L;
+
+        /** Function names by block identifier, from the first run of the block. */
+        private final Map<String, String> names = new HashMap<String, String>();
+        /** Contexts with blocks running, for the samples. */
+        private final List<ExecutionContext> running = new ArrayList<ExecutionContext>();
+        /** Nanoseconds between samples, 0 to time each run. */
+        private final long interval;
+        private Thread sampler = null;
+        private long samples = 0;
+        private volatile int maxDepth = 0;
+        private long allocatedBytes = 0;
+
+        public Profiler() {
+            this(DEFAULT_INTERVAL);
+        }
+
+        /**
+         * @param interval nanoseconds between time samples, 0 to time each run of a block
+         */
+        public Profiler(final long interval) {
+            this.interval = interval;
+        }
+
+        public long getInterval() {
+            return interval;
+        }
+
+        /**
+         * Start of a block run, the run is counted in the context by the caller and the
+         * sampler reads the frames of the context.
+         *
+         * @param block a block about to run
+         * @param depth size of the data stack
+         * @param ctx
+         */
+        void enter(final CompiledBlock block, final int depth, final ExecutionContext ctx) {
+            if (depth > ctx.profileDepth) {
+                ctx.profileDepth = depth;
+            }
+        }
+        /**
+         * Sample the frames of a context while it runs a program, see stop().
+         *
+         * @param ctx
+         */
+        synchronized void start(final ExecutionContext ctx) {
+            if (this.interval == 0) {
+                return;
+            }
+            this.running.add(ctx);
+            if (this.sampler == null) {
+                this.sampler = new Thread(new Runnable() {
+                    public void run() {
+                        sample();
+                    }
+                }, "octane-profiler");
+                this.sampler.setDaemon(true);
+                this.sampler.start();
+            }
+        }
+        /**
+         * @param ctx a context where the block on top ended
+         * @param depth size of the data stack
+         */
+        void exit(final ExecutionContext ctx, final int depth) {
+            if (depth > ctx.profileDepth) {
+                ctx.profileDepth = depth;
+            }
+        }
+        /**
+         * @param ctx a context at the end of a program, it is no longer sampled
+         */
+        synchronized void stop(final ExecutionContext ctx) {
+            this.running.remove(ctx);
+        }
+        /**
+         * Add the counts of the context, the names of the functions are found from the
+         * function names of the context.
+         *
+         * @param ctx
+         */
+        public synchronized void merge(final ExecutionContext ctx) {
+            if (ctx.counts != null) {
+                for (final Map.Entry<CompiledBlock, long []> counted : ctx.counts.entrySet()) {
+                    final CompiledBlock block = counted.getKey();
+                    if (counted.getValue()[0] != 0 && block.getId() != null && !this.names.containsKey(block.getId())) {
+                        for (final Map.Entry<String, String> e : ctx.functionCodeLookup.entrySet()) {
+                            if (block.getId().equals(e.getValue())) {
+                                this.names.put(block.getId(), e.getKey());
+                            }
+                        }
+                    }
+                }
+            }
+            if (ctx.profileDepth > this.maxDepth) {
+                this.maxDepth = ctx.profileDepth;
+            }
+            ctx.profileDepth = 0;
+            super.merge(ctx);
+        }
+        /**
+         * Loop of the sampler thread, the thread ends when no context has blocks running.
+         */
+        private void sample() {
+            long last = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(this.interval / 1000000L, (int) (this.interval % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                final long now = System.nanoTime();
+                final long elapsed = now - last;
+                last = now;
+                synchronized (this) {
+                    if (this.running.isEmpty() || Thread.currentThread().isInterrupted()) {
+                        this.sampler = null;
+                        return;
+                    }
+                    this.samples++;
+                    for (final ExecutionContext ctx : this.running) {
+                        // The frames are only changed by the thread of the context, the sampler may see an old frame //
+                        final Frame [] calls = ctx.calls;
+                        CompiledBlock top = null;
+                        for (int i = 0; i < Math.min(ctx.callCount, calls.length) && calls[i].block != null; i++) {
+                            // Count a block once when it calls itself //
+                            top = calls[i].block;
+                            final long [] n = this.slot(top);
+                            if (n[3] != this.samples) {
+                                n[3] = this.samples;
+                                n[1] += elapsed;
+                            }
+                        }
+                        if (top != null) {
+                            this.slot(top)[2] += elapsed;
+                        }
+                    }
+                }
+            }
+        }
+        /**
+         * @param bytes allocated by a run of a program
+         */
+        public synchronized void allocated(final long bytes) {
+            this.allocatedBytes += bytes;
+        }
+        public synchronized void clear() {
+            super.clear();
+            this.names.clear();
+            this.maxDepth = 0;
+            this.allocatedBytes = 0;
+        }
+        /**
+         * @return the runs of all of the blocks
+         */
+        public synchronized long getCalls() {
+            long n = 0;
+            for (final long [] counts : this.slots().values()) {
+                n += counts[0];
+            }
+            return n;
+        }
+        public synchronized int getMaxDepth() {
+            return maxDepth;
+        }
+        public synchronized long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+        public String getReport() {
+            return this.snapshot().toString();
+        }
+        /**
+         * @return a copy of the counts, the blocks with the highest exclusive time first
+         */
+        public synchronized ProfileSnapshot snapshot() {
+            final Map<String, Long> words = new HashMap<String, Long>();
+            final List<FunctionProfile> functions = new ArrayList<FunctionProfile>();
+            for (final Map.Entry<CompiledBlock, long []> e : this.slots().entrySet()) {
+                final CompiledBlock block = e.getKey();
+                final long [] n = e.getValue();
+                final int [] code = block.getCode();
+                for (int ip = 0; ip < code.length; ip += 1 + Opcode.operands(code[ip])) {
+                    final String word = Opcode.name(code[ip]);
+                    final Long count = words.get(word);
+                    words.put(word, (count == null ? 0 : count) + n[0]);
+                }
+                functions.add(new FunctionProfile(block.getId(), this.names.get(block.getId()), n[0], n[1], n[2]));
+            }
+            Collections.sort(functions, new Comparator<FunctionProfile>() {
+                public int compare(final FunctionProfile a, final FunctionProfile b) {
+                    return a.getExclusiveNanos() < b.getExclusiveNanos() ? 1 : (a.getExclusiveNanos() == b.getExclusiveNanos() ? 0 : -1);
+                }
+            });
+            final List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(words.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>() {
+                public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b) {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+            final Map<String, Long> byCount = new LinkedHashMap<String, Long>();
+            for (final Map.Entry<String, Long> e : sorted) {
+                byCount.put(e.getKey(), e.getValue());
+            }
+            return new ProfileSnapshot(this.getDispatches(), this.getSaved(), this.getCalls(), this.maxDepth,
+                    this.allocatedBytes, byCount, functions);
+        }
+
+        /**
+         * Register the profiler with the platform MBean server.
+         *
+         * @param name
+         * @return the name of the MBean, org.berlin.octane:type=Profiler,name=...
+         */
+        public ObjectName register(final String name) {
+            try {
+                final ObjectName objectName = new ObjectName("org.berlin.octane:type=Profiler,name=" + ObjectName.quote(name));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, ProfilerMBean.class), objectName);
+                return objectName;
+            } catch (JMException e) {
+                throw new IllegalStateException("Invalid profiler MBean : " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * @param objectName
+         */
+        public static void unregister(final ObjectName objectName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                throw new IllegalStateException("Invalid profiler MBean : " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * @return the bytes allocated by this thread, -1 when the JVM does not count them
+         */
+        static long allocatedBytes() {
+            try {
+                final Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+                final Object bean = ManagementFactory.getThreadMXBean();
+                if (!type.isInstance(bean)) {
+                    return -1;
+                }
+                final Method method = type.getMethod("getThreadAllocatedBytes", long.class);
+                return ((Long) method.invoke(bean, Thread.currentThread().getId())).longValue();
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Calls and time of a block in a ProfileSnapshot.
+     */
+    public static class FunctionProfile {
+        private final String id;
+        private final String name;
+        private final long calls;
+        private final long inclusiveNanos;
+        private final long exclusiveNanos;
+        public FunctionProfile(final String id, final String name, final long calls, final long inclusiveNanos, final long exclusiveNanos) {
+            this.id = id;
+            this.name = name;
+            this.calls = calls;
+            this.inclusiveNanos = inclusiveNanos;
+            this.exclusiveNanos = exclusiveNanos;
+        }
+        /**
+         * @return the function identifier, null for the main block
+         */
+        public String getId() {
+            return id;
+        }
+        /**
+         * @return the name given with 'func', null for blocks without a name
+         */
+        public String getName() {
+            return name;
+        }
+        public long getCalls() {
+            return calls;
+        }
+        public long getInclusiveNanos() {
+            return inclusiveNanos;
+        }
+        public long getExclusiveNanos() {
+            return exclusiveNanos;
+        }
+        public String toString() {
+            return (name != null ? name : (id != null ? id : "main")) + " calls=" + calls
+                + " inclusive=" + inclusiveNanos + "ns exclusive=" + exclusiveNanos + "ns";
+        }
+    }
+
+    /**
+     * Copy of the counts of a Profiler, see Profiler.snapshot().
+     */
+    public static class ProfileSnapshot {
+        private final long dispatches;
+        private final long saved;
+        private final long calls;
+        private final int maxDepth;
+        private final long allocatedBytes;
+        private final Map<String, Long> words;
+        private final List<FunctionProfile> functions;
+        public ProfileSnapshot(final long dispatches, final long saved, final long calls, final int maxDepth,
+                final long allocatedBytes, final Map<String, Long> words, final List<FunctionProfile> functions) {
+            this.dispatches = dispatches;
+            this.saved = saved;
+            this.calls = calls;
+            this.maxDepth = maxDepth;
+            this.allocatedBytes = allocatedBytes;
+            this.words = Collections.unmodifiableMap(words);
+            this.functions = Collections.unmodifiableList(functions);
+        }
+        public long getDispatches() {
+            return dispatches;
+        }
+        public long getSaved() {
+            return saved;
+        }
+        public long getCalls() {
+            return calls;
+        }
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+        /**
+         * @return the dispatches by word (opcode name), the most dispatched first
+         */
+        public Map<String, Long> getWords() {
+            return words;
+        }
+        /**
+         * @return the blocks that ran, the highest exclusive time first
+         */
+        public List<FunctionProfile> getFunctions() {
+            return functions;
+        }
+        /**
+         * @param name
+         * @return the block for a function name, null if it did not run
+         */
+        public FunctionProfile getFunction(final String name) {
+            for (final FunctionProfile f : this.functions) {
+                if (name.equals(f.getName())) {
+                    return f;
+                }
+            }
+            return null;
+        }
+        public String toString() {
+            final StringBuilder buf = new StringBuilder();
+            buf.append("dispatches : ").append(dispatches).append(" (saved ").append(saved).append(")\n");
+            buf.append("calls      : ").append(calls).append('\n');
+            buf.append("max depth  : ").append(maxDepth).append('\n');
+            buf.append("allocated  : ").append(allocatedBytes).append(" bytes\n");
+            buf.append("functions  :\n");
+            for (final FunctionProfile f : this.functions) {
+                buf.append("  ").append(f).append('\n');
+            }
+            buf.append("words      :\n");
+            for (final Map.Entry<String, Long> e : this.words.entrySet()) {
+                buf.append("  ").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * The result of compiling a code stack, the main block, the blocks of code found
+     * in the source and the constant pool used for the operands.
+     */
+    public static class CompiledProgram {
+        private final CompiledBlock main;
+        private final List<CompiledBlock> blocks;
+        private final Object [] pool;
+        public CompiledProgram(final CompiledBlock main, final List<CompiledBlock> blocks, final Object [] pool) {
+            this.main = main;
+            this.blocks = Collections.unmodifiableList(new ArrayList<CompiledBlock>(blocks));
+            this.pool = pool;
+            main.pool = pool;
+            for (final CompiledBlock block : blocks) {
+                block.pool = pool;
+            }
+        }
+        public CompiledBlock getMain() {
+            return main;
+        }
+        /**
+         * @return the blocks of code, not including the main block
+         */
+        public List<CompiledBlock> getBlocks() {
+            return blocks;
+        }
+        public Object [] getPool() {
+            return pool;
+        }
+    }
+
+    /**
+     * A compiled program in a binary file, so a program can start without the lexer
+     * and the compiler.  write() keeps the code of each block, the constant pool, the
+     * names of the words and the tokens of the function blocks for the string engine.
+     * load() maps the file with FileChannel.map, checks the format version and the
+     * CRC32 of the content, then rebuilds the program with the words and new block
+     * identifiers of the interpreter.  See loadProgram() for the fall back to the
+     * source when the image can not be used.
+     * <pre>
+     * int magic, int version, int length, int CRC32 of the content, then the content:
+     * string source hash
+     * int words, each a string
+     * int blocks (the main block first), each int code length, the code, int saved,
+     *     int source length, the source tokens
+     * int constants, each a tag and the value, a block is the index of the block
+     * </pre>
+     * A string is an int length and the UTF-8 bytes, the values are big endian.  The
+     * function names are set by the 'func' opcodes as the program runs, as for a
+     * compiled source.
+     */
+    public static class ProgramImage {
+        /** "OCIM" */
+        public static final int MAGIC = 0x4f43494d;
+        /** Changed with the opcodes or the format, an image of another version is not read. */
+        public static final int VERSION = 1;
+        public static final int HEADER_SIZE = 16;
+
+        private static final byte TAG_NUMBER = 'D';
+        private static final byte TAG_INTEGER = 'I';
+        private static final byte TAG_STRING = 'S';
+        private static final byte TAG_CHAR = 'C';
+        private static final byte TAG_LANG_STRING = 'T';
+        private static final byte TAG_CHARACTER = 'c';
+        private static final byte TAG_WORD = 'W';
+        private static final byte TAG_BLOCK = 'B';
+        private static final byte TAG_LIST = 'L';
+        private static final byte TAG_TERMS = 'M';
+
+        private final CompiledProgram program;
+        private final String sourceHash;
+
+        private ProgramImage(final CompiledProgram program, final String sourceHash) {
+            this.program = program;
+            this.sourceHash = sourceHash;
+        }
+        public CompiledProgram getProgram() {
+            return program;
+        }
+        /**
+         * @return the hash of the source the program was compiled from, see
+         *     ProgramCache.hash(), empty when not known
+         */
+        public String getSourceHash() {
+            return sourceHash;
+        }
+
+        /**
+         * @param program
+         * @param sourceHash hash of the source, empty when not known
+         * @param out
+         * @throws IOException
+         */
+        public static void write(final CompiledProgram program, final String sourceHash, final OutputStream out) throws IOException {
+            final List<CompiledBlock> blocks = new ArrayList<CompiledBlock>();
+            blocks.add(program.getMain());
+            blocks.addAll(program.getBlocks());
+            final Map<CompiledBlock, Integer> blockIndex = new IdentityHashMap<CompiledBlock, Integer>();
+            for (int i = 0; i < blocks.size(); i++) {
+                blockIndex.put(blocks.get(i), i);
+            }
+            final Map<String, Integer> words = new LinkedHashMap<String, Integer>();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(body);
+            data.writeInt(blocks.size());
+            for (final CompiledBlock block : blocks) {
+                final int [] code = block.getCode();
+                data.writeInt(code.length);
+                for (final int c : code) {
+                    data.writeInt(c);
+                }
+                data.writeInt(block.getSaved());
+                final CodeStack source = block.getSource();
+                data.writeInt(source == null ? 0 : source.size());
+                if (source != null) {
+                    for (final Object token : source) {
+                        writeValue(data, token, words, null);
+                    }
+                }
+            }
+            final Object [] pool = program.getPool();
+            data.writeInt(pool.length);
+            for (final Object value : pool) {
+                writeValue(data, value, words, blockIndex);
+            }
+            data.flush();
+
+            // The words are read first, the tokens refer to them //
+            final ByteArrayOutputStream content = new ByteArrayOutputStream(body.size() + 256);
+            final DataOutputStream head = new DataOutputStream(content);
+            writeString(head, sourceHash);
+            head.writeInt(words.size());
+            for (final String word : words.keySet()) {
+                writeString(head, word);
+            }
+            head.flush();
+            body.writeTo(content);
+            final byte [] bytes = content.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+
+            final DataOutputStream file = new DataOutputStream(new BufferedOutputStream(out));
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(bytes.length);
+            file.writeInt((int) crc.getValue());
+            file.write(bytes);
+            file.flush();
+        }
+
+        /**
+         * @param program
+         * @param sourceHash
+         * @param file
+         * @throws IOException
+         */
+        public static void write(final CompiledProgram program, final String sourceHash, final File file) throws IOException {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                write(program, sourceHash, out);
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * @param data
+         * @param value a token or a constant
+         * @param words index of each word written so far
+         * @param blockIndex index of each block, null for the tokens
+         * @throws IOException
+         */
+        private static void writeValue(final DataOutputStream data, final Object value, final Map<String, Integer> words,
+                final Map<CompiledBlock, Integer> blockIndex) throws IOException {
+            if (value instanceof Double) {
+                data.writeByte(TAG_NUMBER);
+                data.writeDouble(((Double) value).doubleValue());
+            } else if (value instanceof Integer) {
+                data.writeByte(TAG_INTEGER);
+                data.writeInt(((Integer) value).intValue());
+            } else if (value instanceof String) {
+                data.writeByte(TAG_STRING);
+                writeString(data, (String) value);
+            } else if (value instanceof LangTypeChar) {
+                data.writeByte(TAG_CHAR);
+                writeString(data, ((LangTypeChar) value).data);
+            } else if (value instanceof LangTypeString) {
+                data.writeByte(TAG_LANG_STRING);
+                writeString(data, ((LangTypeString) value).data);
+            } else if (value instanceof Character) {
+                data.writeByte(TAG_CHARACTER);
+                data.writeChar(((Character) value).charValue());
+            } else if (value instanceof Symbol) {
+                final String name = ((Symbol) value).getName();
+                Integer i = words.get(name);
+                if (i == null) {
+                    i = words.size();
+                    words.put(name, i);
+                }
+                data.writeByte(TAG_WORD);
+                data.writeInt(i);
+            } else if (value instanceof CompiledBlock && blockIndex != null && blockIndex.containsKey(value)) {
+                data.writeByte(TAG_BLOCK);
+                data.writeInt(blockIndex.get(value));
+            } else if (value instanceof Object []) {
+                final Object [] list = (Object []) value;
+                data.writeByte(TAG_LIST);
+                data.writeInt(list.length);
+                for (final Object o : list) {
+                    writeValue(data, o, words, null);
+                }
+            } else if (value instanceof int []) {
+                final int [] terms = (int []) value;
+                data.writeByte(TAG_TERMS);
+                data.writeInt(terms.length);
+                for (final int t : terms) {
+                    data.writeInt(t);
+                }
+            } else {
+                throw new IllegalStateException("Invalid value for a program image : " + value);
+            }
+        }
+
+        private static void writeString(final DataOutputStream data, final String value) throws IOException {
+            final byte [] bytes = value.getBytes("UTF-8");
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+
+        /**
+         * Map the image file and read the program.
+         *
+         * @param file
+         * @param interp the words, strings and block identifiers are made for this interpreter
+         * @return the image
+         * @throws IOException when the file can not be read or is not a valid image
+         */
+        public static ProgramImage load(final File file, final OctaneLangOneSourceFile interp) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), interp);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * @param buffer an image from the position of the buffer
+         * @param interp
+         * @return the image
+         * @throws IOException when the image is not valid, the version is not VERSION or
+         *     the checksum does not match
+         */
+        public static ProgramImage read(final ByteBuffer buffer, final OctaneLangOneSourceFile interp) throws IOException {
+            final ByteBuffer buf = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+            if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+                throw new IOException("Not a program image");
+            }
+            final int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Invalid program image version : " + version);
+            }
+            final int length = buf.getInt();
+            final int expected = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                throw new IOException("Invalid program image length : " + length);
+            }
+            buf.limit(HEADER_SIZE + length);
+            final CRC32 crc = new CRC32();
+            final ByteBuffer check = buf.duplicate();
+            final byte [] chunk = new byte [Math.min(8192, length)];
+            while (check.hasRemaining()) {
+                final int n = Math.min(chunk.length, check.remaining());
+                check.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("Invalid program image checksum");
+            }
+            try {
+                final String sourceHash = readString(buf);
+                final Symbol [] words = new Symbol [buf.getInt()];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = interp.symbols.intern(readString(buf));
+                }
+                final int count = buf.getInt();
+                final List<CompiledBlock> blocks = new ArrayList<CompiledBlock>(Math.min(count, 1024));
+                for (int b = 0; b < count; b++) {
+                    final int [] code = new int [buf.getInt()];
+                    for (int i = 0; i < code.length; i++) {
+                        code[i] = buf.getInt();
+                    }
+                    final int saved = buf.getInt();
+                    final int n = buf.getInt();
+                    final CodeStack source = new CodeStack(n);
+                    for (int i = 0; i < n; i++) {
+                        source.add(readValue(buf, interp, words, null));
+                    }
+                    // The main block has no identifier, the others get new ones //
+                    final CompiledBlock block = new CompiledBlock(b == 0 ? null
+                        : "block" + uniqid + "_" + Compiler.blockCount.incrementAndGet(), code, source);
+                    block.saved = saved;
+                    blocks.add(block);
+                }
+                final Object [] pool = new Object [buf.getInt()];
+                for (int i = 0; i < pool.length; i++) {
+                    pool[i] = readValue(buf, interp, words, blocks);
+                }
+                return new ProgramImage(new CompiledProgram(blocks.get(0), blocks.subList(1, blocks.size()), pool), sourceHash);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Invalid program image, the content is truncated");
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Invalid program image : " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid program image : " + e.getMessage());
+            }
+        }
+
+        /**
+         * @param buf
+         * @param interp
+         * @param words
+         * @param blocks the blocks of the program, null for the tokens
+         * @return the token or constant
+         * @throws IOException
+         */
+        private static Object readValue(final ByteBuffer buf, final OctaneLangOneSourceFile interp, final Symbol [] words,
+                final List<CompiledBlock> blocks) throws IOException {
+            final byte tag = buf.get();
+            switch (tag) {
+            case TAG_NUMBER:
+                return Double.valueOf(buf.getDouble());
+            case TAG_INTEGER:
+                return Integer.valueOf(buf.getInt());
+            case TAG_STRING:
+                return readString(buf);
+            case TAG_CHAR:
+                return interp.new LangTypeChar(readString(buf));
+            case TAG_LANG_STRING:
+                return interp.new LangTypeString(readString(buf));
+            case TAG_CHARACTER:
+                return Character.valueOf(buf.getChar());
+            case TAG_WORD:
+                return words[buf.getInt()];
+            case TAG_BLOCK:
+                if (blocks == null) {
+                    throw new IOException("Invalid program image, a block in the tokens");
+                }
+                return blocks.get(buf.getInt());
+            case TAG_LIST: {
+                final Object [] list = new Object [buf.getInt()];
+                for (int i = 0; i < list.length; i++) {
+                    list[i] = readValue(buf, interp, words, null);
+                }
+                return list;
+            }
+            case TAG_TERMS: {
+                final int [] terms = new int [buf.getInt()];
+                for (int i = 0; i < terms.length; i++) {
+                    terms[i] = buf.getInt();
+                }
+                return terms;
+            }
+            default:
+                throw new IOException("Invalid program image tag : " + tag);
+            }
+        }
+
+        private static String readString(final ByteBuffer buf) throws IOException {
+            final byte [] bytes = new byte [buf.getInt()];
+            buf.get(bytes);
+            return new String(bytes, "UTF-8");
         }
-    }    
-    /**
-     * Iterate and consume until a newline is encountered
-     */
-    public void consumeComment() {        
-        do {           
-            consume();
-        } while (c != '\n' && c != '\r');
     }
 
     /**
-     * Consume character.
-     * Used with lexing on the input code string data.
+     * Interpreters ready to use, for running many short sources.  An interpreter is
+     * reset when it is returned, the next borrow gets a clean interpreter without the
+     * allocation of a new one.  The pool can be used from many threads.
+     * 
+     * <pre>
+     * final OctaneLangOneSourceFile interp = pool.borrow();
+     * try {
+     *     interp.setInput(source);
+     *     interp.interpret();
+     * } finally {
+     *     pool.release(interp);
+     * }
+     * </pre>
      */
-    public void consume() {
-        if (p >= input.length()) {
-            c = EOF;
-        } else {
-            c = input.charAt(p);
+    public static class InterpreterPool {
+        private final int maxIdle;
+        private final ConcurrentLinkedQueue<OctaneLangOneSourceFile> idle = new ConcurrentLinkedQueue<OctaneLangOneSourceFile>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong borrowed = new AtomicLong();
+        private final AtomicLong released = new AtomicLong();
+        private final AtomicLong discarded = new AtomicLong();
+        /**
+         * @param maxIdle most interpreters kept in the pool, more are dropped on release
+         */
+        public InterpreterPool(final int maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+        /**
+         * Create an interpreter for the pool, override to configure the engine or
+         * the program cache.
+         *
+         * @return a new interpreter
+         */
+        protected OctaneLangOneSourceFile create() {
+            return new OctaneLangOneSourceFile();
+        }
+        /**
+         * @return an idle interpreter or a new one when the pool is empty
+         */
+        public OctaneLangOneSourceFile borrow() {
+            this.borrowed.incrementAndGet();
+            final OctaneLangOneSourceFile interp = this.idle.poll();
+            if (interp != null) {
+                this.idleCount.decrementAndGet();
+                return interp;
+            }
+            this.created.incrementAndGet();
+            return this.create();
+        }
+        /**
+         * Reset the interpreter and keep it for the next borrow.
+         *
+         * @param interp
+         */
+        public void release(final OctaneLangOneSourceFile interp) {
+            this.released.incrementAndGet();
+            interp.reset();
+            if (this.idleCount.incrementAndGet() <= this.maxIdle) {
+                this.idle.offer(interp);
+            } else {
+                this.idleCount.decrementAndGet();
+                this.discarded.incrementAndGet();
+            }
+        }
+        public int getIdle() {
+            return this.idleCount.get();
+        }
+        public long getCreated() {
+            return this.created.get();
+        }
+        public long getBorrowed() {
+            return this.borrowed.get();
+        }
+        public long getReleased() {
+            return this.released.get();
+        }
+        public long getDiscarded() {
+            return this.discarded.get();
+        }
+        public String toString() {
+            return "InterpreterPool[idle=" + this.getIdle() + ", created=" + this.getCreated() + ", borrowed="
+                + this.getBorrowed() + ", released=" + this.getReleased() + ", discarded=" + this.getDiscarded() + "]";
         }
-        p++;
     }
 
     /**
-     * Simple String type.
-     */
-    public static interface LangType {
-        
-    }
-    /**
-     * Basic string type.     
+     * Result of one script of a batch, the data stack (bottom first) or the error.
      */
-    public class LangTypeString implements LangType {
-        private final String data;
-        public LangTypeString(final String d) {
-            this.data = d;
+    public static class BatchResult {
+        private final int index;
+        private final List<Object> dataStack;
+        private final Throwable error;
+        public BatchResult(final int index, final List<Object> dataStack, final Throwable error) {
+            this.index = index;
+            this.dataStack = dataStack;
+            this.error = error;
+        }
+        /**
+         * @return position of the script in the batch
+         */
+        public int getIndex() {
+            return index;
+        }
+        /**
+         * @return the data stack after the run, null when there was an error
+         */
+        public List<Object> getDataStack() {
+            return dataStack;
+        }
+        public Throwable getError() {
+            return error;
+        }
+        public boolean isOk() {
+            return error == null;
+        }
+        /**
+         * @return top of the data stack, null for an error or an empty stack
+         */
+        public Object getTop() {
+            return (dataStack == null || dataStack.isEmpty()) ? null : dataStack.get(dataStack.size() - 1);
         }
         public String toString() {
-            return "'" + data + "'";
+            return "BatchResult[" + index + "] " + (isOk() ? String.valueOf(dataStack) : String.valueOf(error));
         }
     }
+
     /**
-     * A simple character type.
+     * Run many independent scripts on an executor, e.g. a ForkJoinPool or a virtual
+     * thread executor.  The results are in the same order as the input, an error in
+     * one script does not stop the others.
      */
-    public class LangTypeChar implements LangType {
-        private final String data;
-        public LangTypeChar(final String d) {
-            this.data = d;
+    public static class BatchRunner {
+        private final ExecutorService executor;
+        private final InterpreterPool pool;
+        /**
+         * @param executor runs the scripts, not shut down by the runner
+         * @param pool interpreters for the sources, one is borrowed for each script
+         */
+        public BatchRunner(final ExecutorService executor, final InterpreterPool pool) {
+            this.executor = executor;
+            this.pool = pool;
         }
-        public String toString() {
-            return "'" + data + "'";
+        public BatchRunner(final ExecutorService executor) {
+            this(executor, new InterpreterPool(Runtime.getRuntime().availableProcessors() * 2));
+        }
+        /**
+         * Run each source on its own interpreter.
+         *
+         * @param sources
+         * @return a result for each source, in input order
+         * @throws InterruptedException
+         */
+        public List<BatchResult> runAll(final Collection<String> sources) throws InterruptedException {
+            final List<Callable<BatchResult>> tasks = new ArrayList<Callable<BatchResult>>(sources.size());
+            int i = 0;
+            for (final String source : sources) {
+                final int index = i++;
+                tasks.add(new Callable<BatchResult>() {
+                    public BatchResult call() {
+                        final OctaneLangOneSourceFile interp = BatchRunner.this.pool.borrow();
+                        try {
+                            interp.setInput(source);
+                            interp.interpret();
+                            return new BatchResult(index, new ArrayList<Object>(interp.getDataStack()), null);
+                        } catch (RuntimeException e) {
+                            return new BatchResult(index, null, e);
+                        } catch (StackOverflowError e) {
+                            return new BatchResult(index, null, e);
+                        } finally {
+                            BatchRunner.this.pool.release(interp);
+                        }
+                    }
+                });
+            }
+            return this.invokeAll(tasks);
+        }
+        /**
+         * Run one program once for each input, each run starts with a new context
+         * with the input values on the data stack (first value at the bottom).
+         *
+         * @param interp compiles and runs the program, shared by the runs
+         * @param program
+         * @param inputs
+         * @return a result for each input, in input order
+         * @throws InterruptedException
+         */
+        public List<BatchResult> runAll(final OctaneLangOneSourceFile interp, final CompiledProgram program,
+                final Collection<? extends List<?>> inputs) throws InterruptedException {
+            final List<Callable<BatchResult>> tasks = new ArrayList<Callable<BatchResult>>(inputs.size());
+            int i = 0;
+            for (final List<?> input : inputs) {
+                final int index = i++;
+                tasks.add(new Callable<BatchResult>() {
+                    public BatchResult call() {
+                        final ExecutionContext ctx = new ExecutionContext();
+                        try {
+                            for (final Object o : input) {
+                                ctx.dataStack.push(o);
+                            }
+                            interp.execute(program, ctx);
+                            return new BatchResult(index, new ArrayList<Object>(ctx.dataStack), null);
+                        } catch (RuntimeException e) {
+                            return new BatchResult(index, null, e);
+                        } catch (StackOverflowError e) {
+                            return new BatchResult(index, null, e);
+                        }
+                    }
+                });
+            }
+            return this.invokeAll(tasks);
+        }
+        private List<BatchResult> invokeAll(final List<Callable<BatchResult>> tasks) throws InterruptedException {
+            final List<Future<BatchResult>> futures = this.executor.invokeAll(tasks);
+            final List<BatchResult> results = new ArrayList<BatchResult>(futures.size());
+            int i = 0;
+            for (final Future<BatchResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    results.add(new BatchResult(i, null, e.getCause()));
+                }
+                i++;
+            }
+            return results;
         }
     }
-    
+
     /**
-     * A simple List/Vector type.
+     * Compiled programs by a SHA-256 hash of the source and the compile settings of the
+     * interpreter (see key()), the least recently used program is dropped when the
+     * cache is full.  The cache can be shared by interpreters on different threads and
+     * with different settings.
      */
-    public class LangTypeList implements LangType {
-        private final List<Object> list;
-        public LangTypeList() {
-            this.list = new ArrayList<Object>();
+    public static class ProgramCache {
+        private final int maxSize;
+        private final LinkedHashMap<String, CompiledProgram> programs;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+        public ProgramCache(final int maxSize) {
+            this.maxSize = maxSize;
+            this.programs = new LinkedHashMap<String, CompiledProgram>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                protected boolean removeEldestEntry(final Map.Entry<String, CompiledProgram> eldest) {
+                    if (this.size() > ProgramCache.this.maxSize) {
+                        ProgramCache.this.evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        /**
+         * Find the program for the source, compile it with the interpreter when it is
+         * not in the cache.
+         *
+         * @param source
+         * @param interp
+         * @return the program
+         */
+        public CompiledProgram get(final String source, final OctaneLangOneSourceFile interp) {
+            final String key = key(source, interp);
+            synchronized (this) {
+                final CompiledProgram program = this.programs.get(key);
+                if (program != null) {
+                    this.hits++;
+                    return program;
+                }
+                this.misses++;
+            }
+            final CompiledProgram program = interp.compile(source);
+            synchronized (this) {
+                this.programs.put(key, program);
+            }
+            return program;
+        }
+        /**
+         * @param source
+         * @param interp
+         * @return the hash of the source with the settings the interpreter compiles with,
+         *     so a program is only shared by interpreters that compile it the same way
+         */
+        static String key(final String source, final OctaneLangOneSourceFile interp) {
+            return hash(source) + ":" + interp.optimize + ":" + interp.superinstructions;
+        }
+        /**
+         * @param source
+         * @return hex SHA-256 of the UTF-8 source
+         */
+        public static String hash(final String source) {
+            try {
+                return hash(source.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        /**
+         * @param source
+         * @return hex SHA-256 of the bytes, of a source file for example
+         */
+        public static String hash(final byte [] source) {
+            try {
+                final byte [] digest = MessageDigest.getInstance("SHA-256").digest(source);
+                final StringBuilder buf = new StringBuilder(digest.length * 2);
+                for (final byte b : digest) {
+                    buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+                return buf.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        public synchronized int size() {
+            return this.programs.size();
+        }
+        public synchronized void clear() {
+            this.programs.clear();
+        }
+        public int getMaxSize() {
+            return maxSize;
+        }
+        public synchronized long getHits() {
+            return hits;
+        }
+        public synchronized long getMisses() {
+            return misses;
+        }
+        public synchronized long getEvictions() {
+            return evictions;
         }
         public String toString() {
-            return "#<" + list + ">";
+            return "ProgramCache[size=" + this.size() + ", hits=" + this.getHits() + ", misses=" + this.getMisses()
+                + ", evictions=" + this.getEvictions() + "]";
         }
     }
-    
+
     /**
-     * Run interpret with bufferedreader.
-     * 
-     * @param reader
+     * Translate tokens to opcodes.  The tokens are visited in the same order as the
+     * string engine pops them from the code stack, blocks and lists are collected
+     * at compile time.
      */
-    public void run(final BufferedReader reader) {       
-        try {        
-            String data = "";
-            final StringBuffer buf = new StringBuffer();
-            do {
-                data = reader.readLine();
-                if (data != null) {                    
-                    buf.append(data).append('\n');
+    private static class Compiler {
+
+        /** Used to generate unique identifiers for compiled blocks. */
+        private static final AtomicInteger blockCount = new AtomicInteger();
+
+        private final List<Object> pool = new ArrayList<Object>();
+        private final Map<Object, Integer> poolIndex = new HashMap<Object, Integer>();
+        private final List<CompiledBlock> blocks = new ArrayList<CompiledBlock>();
+        /** Fuse the pointer idioms, see optimize(). */
+        private final boolean optimize;
+        /** Pairs of opcodes replaced by one opcode, see fuse(). */
+        private final Set<Superinstruction> superinstructions;
+
+        Compiler(final boolean optimize, final Set<Superinstruction> superinstructions) {
+            this.optimize = optimize;
+            this.superinstructions = superinstructions;
+        }
+
+        /**
+         * Add a value to the constant pool.
+         *
+         * @param value
+         * @return the index of the value
+         */
+        private int constant(final Object value) {
+            Integer i = this.poolIndex.get(value);
+            if (i == null) {
+                i = this.pool.size();
+                this.pool.add(value);
+                this.poolIndex.put(value, i);
+            }
+            return i;
+        }
+
+        /**
+         * Compile tokens from (inclusive) to (exclusive), the last token is compiled first.
+         *
+         * @param id
+         * @param tokens
+         * @param from
+         * @param to
+         * @return
+         */
+        private CompiledBlock compileBlock(final String id, final List<Object> tokens, final int from, final int to) {
+            int [] code = new int [16];
+            int size = 0;
+            int i = to;
+            while (i > from) {
+                final Object token = tokens.get(--i);
+                // Each instruction is at most 3 ints //
+                if (size + 3 > code.length) {
+                    final int [] grow = new int [code.length * 2];
+                    System.arraycopy(code, 0, grow, 0, size);
+                    code = grow;
                 }
-            } while(data != null);
-            this.run(buf.toString());
-        } catch(Exception e) {
-            e.printStackTrace();
-            throw new IllegalStateException("Invalid input source data at run interpreter");
+                if (token instanceof Double) {
+                    code[size++] = Opcode.PUSH_NUMBER;
+                    code[size++] = this.constant(token);
+                    continue;
+                } else if (token instanceof Number || token instanceof LangTypeChar || token instanceof LangTypeString) {
+                    code[size++] = Opcode.PUSH;
+                    code[size++] = this.constant(token);
+                    continue;
+                } else if (!(token instanceof Symbol)) {
+                    continue;
+                }
+                final Symbol word = (Symbol) token;
+                final int op = word.getOp();
+                switch (op) {
+                case Opcode.NONE:
+                case Opcode.START_BLOCK:
+                case Opcode.START_LIST:
+                    break;
+
+                case Opcode.END_BLOCK:
+                case Opcode.END_LIST: {
+                    final Symbol start = (op == Opcode.END_BLOCK) ? Opcode.SYMBOL_START_BLOCK : Opcode.SYMBOL_START_LIST;
+                    int j = i - 1;
+                    while (j >= from && tokens.get(j) != start) {
+                        j--;
+                    }
+                    if (j < from) {
+                        code[size++] = Opcode.ERROR;
+                        code[size++] = this.constant("Missing '" + start + "' for '" + word + "'");
+                        i = from;
+                    } else if (op == Opcode.END_BLOCK) {
+                        final CompiledBlock block = this.compileBlock(
+                                "block" + uniqid + "_" + blockCount.incrementAndGet(), tokens, j + 1, i);
+                        this.blocks.add(block);
+                        code[size++] = Opcode.BLOCK;
+                        code[size++] = this.constant(block);
+                        i = j;
+                    } else {
+                        code[size++] = Opcode.LIST;
+                        code[size++] = this.constant(tokens.subList(j + 1, i).toArray());
+                        i = j;
+                    }
+                    break;
+                }
+
+                case Opcode.PLOOP: {
+                    // Function name then the reducer //
+                    if (i - from < 2) {
+                        code[size++] = Opcode.ERROR;
+                        code[size++] = this.constant("Missing operand for '" + word + "'");
+                        i = from;
+                        break;
+                    }
+                    code[size++] = op;
+                    code[size++] = this.constant(String.valueOf(tokens.get(--i)));
+                    code[size++] = this.constant(String.valueOf(tokens.get(--i)));
+                    break;
+                }
+
+                case Opcode.FUNC:
+                case Opcode.CALL:
+                case Opcode.CALLSAV:
+                case Opcode.LOOP:
+                case Opcode.MAP:
+                case Opcode.FILTER:
+                case Opcode.VFILTER:
+                case Opcode.PTRSET:
+                case Opcode.PTRLOAD: {
+                    // These words use the next token as the operand //
+                    if (i == from) {
+                        code[size++] = Opcode.ERROR;
+                        code[size++] = this.constant("Missing operand for '" + word + "'");
+                        break;
+                    }
+                    final Object operand = tokens.get(--i);
+                    if (op == Opcode.PTRSET) {
+                        if (operand instanceof LangTypeChar) {
+                            code[size++] = op;
+                            code[size++] = ((LangTypeChar) operand).data.charAt(0);
+                        } else if (operand instanceof Number) {
+                            code[size++] = op;
+                            code[size++] = ((Double) operand).intValue();
+                        }
+                    } else if (op == Opcode.PTRLOAD) {
+                        if (operand instanceof Double) {
+                            code[size++] = op;
+                            code[size++] = ((Double) operand).intValue();
+                        } else {
+                            code[size++] = Opcode.ERROR;
+                            code[size++] = this.constant("Invalid operand for '" + word + "' : " + operand);
+                        }
+                    } else {
+                        code[size++] = op;
+                        code[size++] = this.constant(String.valueOf(operand));
+                    }
+                    break;
+                }
+
+                default:
+                    code[size++] = op;
+                }
+            }
+            int [] result = new int [size];
+            System.arraycopy(code, 0, result, 0, size);
+            final int instructions = CompiledBlock.instructions(result);
+            if (this.optimize) {
+                result = this.optimize(result);
+            }
+            if (!this.superinstructions.isEmpty()) {
+                result = this.fuse(result);
+            }
+            final CodeStack source = new CodeStack(id != null ? to - from : 0);
+            if (id != null) {
+                source.addAll(tokens.subList(from, to));
+            }
+            final CompiledBlock block = new CompiledBlock(id, result, source);
+            block.saved = instructions - block.getInstructions();
+            return block;
+        }
+
+        /**
+         * Replace the pairs of opcodes with superinstructions, the operand of the first
+         * opcode is kept.  A number followed by inc or dec is folded to a new number, so
+         * 'inc inc 5' is the number 7.
+         *
+         * @param code
+         * @return the fused code
+         */
+        private int [] fuse(final int [] code) {
+            final int [] out = new int [code.length];
+            int size = 0;
+            int last = -1;
+            int ip = 0;
+            while (ip < code.length) {
+                final int op = code[ip];
+                final int n = 1 + Opcode.operands(op);
+                Superinstruction fused = null;
+                if (last >= 0) {
+                    for (final Superinstruction s : this.superinstructions) {
+                        if (s.getFirst() == out[last] && s.getSecond() == op) {
+                            fused = s;
+                            break;
+                        }
+                    }
+                }
+                if (fused == null) {
+                    last = size;
+                    System.arraycopy(code, ip, out, size, n);
+                    size += n;
+                } else if (fused == Superinstruction.INC_NUMBER || fused == Superinstruction.DEC_NUMBER) {
+                    final double value = ((Double) this.pool.get(out[last + 1])).doubleValue();
+                    out[last + 1] = this.constant(value + (fused == Superinstruction.INC_NUMBER ? 1.0 : -1.0));
+                } else {
+                    out[last] = fused.getOp();
+                }
+                ip += n;
+            }
+            final int [] result = new int [size];
+            System.arraycopy(out, 0, result, 0, size);
+            return result;
+        }
+
+        /**
+         * Fuse the pointer idioms of programs translated from Brainfuck, the code of the
+         * blocks inside this block is already optimized.
+         * <pre>
+         * ptrplus ptrminus ... (2 or more)    PTRADD n
+         * ptrinc ptrdec ... (2 or more)       PTRMOVE n peak
+         * ptrwhile ( ptrminus )               PTRCLEAR
+         * ptrwhile ( ptrdec ptrplus ptrinc ptrminus )
+         *                                     PTRMULADD, add the cell to the other cells
+         * </pre>
+         * A loop is fused when the body only moves the pointer and adds constants, the
+         * pointer ends where it started and the cell at the pointer changes by 1 or -1.
+         * The fused loops keep the body and run it as written in verbose mode.
+         *
+         * @param code
+         * @return the optimized code
+         */
+        private int [] optimize(final int [] code) {
+            int [] out = new int [code.length * 2];
+            int size = 0;
+            int ip = 0;
+            while (ip < code.length) {
+                final int op = code[ip];
+                // Terms of a 'ptrwhile ( ... )' that can be fused, null for other code //
+                final int [] terms = (op == Opcode.BLOCK && ip + 2 < code.length && code[ip + 2] == Opcode.PTRWHILE)
+                    ? this.loopTerms((CompiledBlock) this.pool.get(code[ip + 1])) : null;
+                if (op == Opcode.PTRPLUS || op == Opcode.PTRMINUS) {
+                    int n = 0;
+                    int run = 0;
+                    for (; ip < code.length && (code[ip] == Opcode.PTRPLUS || code[ip] == Opcode.PTRMINUS); ip++, run++) {
+                        n += (code[ip] == Opcode.PTRPLUS) ? 1 : -1;
+                    }
+                    if (run == 1) {
+                        out[size++] = op;
+                    } else {
+                        out[size++] = Opcode.PTRADD;
+                        out[size++] = n;
+                    }
+                } else if (op == Opcode.PTRINC || op == Opcode.PTRDEC) {
+                    int n = 0;
+                    int peak = 0;
+                    int run = 0;
+                    for (; ip < code.length && (code[ip] == Opcode.PTRINC || code[ip] == Opcode.PTRDEC); ip++, run++) {
+                        n += (code[ip] == Opcode.PTRINC) ? 1 : -1;
+                        peak = Math.max(peak, n);
+                    }
+                    if (run == 1) {
+                        out[size++] = op;
+                    } else {
+                        out[size++] = Opcode.PTRMOVE;
+                        out[size++] = n;
+                        out[size++] = peak;
+                    }
+                } else if (terms != null) {
+                    if (terms.length == 2 && terms[1] == 0) {
+                        out[size++] = Opcode.PTRCLEAR;
+                        out[size++] = code[ip + 1];
+                    } else {
+                        out[size++] = Opcode.PTRMULADD;
+                        out[size++] = this.constant(terms);
+                        out[size++] = code[ip + 1];
+                    }
+                    ip += 3;
+                } else {
+                    final int n = 1 + Opcode.operands(op);
+                    System.arraycopy(code, ip, out, size, n);
+                    size += n;
+                    ip += n;
+                }
+                if (size + 3 > out.length) {
+                    final int [] grow = new int [out.length * 2 + 3];
+                    System.arraycopy(out, 0, grow, 0, size);
+                    out = grow;
+                }
+            }
+            final int [] result = new int [size];
+            System.arraycopy(out, 0, result, 0, size);
+            return result;
+        }
+
+        /**
+         * @param body
+         * @return the terms for PTRMULADD (change of the cell at the pointer, highest
+         *     offset, offset and amount pairs) or null when the loop can not be fused
+         */
+        private int [] loopTerms(final CompiledBlock body) {
+            final int [] code = body.getCode();
+            final Map<Integer, Integer> amounts = new LinkedHashMap<Integer, Integer>();
+            int offset = 0;
+            int peak = 0;
+            for (int ip = 0; ip < code.length; ip += 1 + Opcode.operands(code[ip])) {
+                final int op = code[ip];
+                int add = 0;
+                if (op == Opcode.PTRINC || op == Opcode.PTRDEC || op == Opcode.PTRMOVE) {
+                    final int move = (op == Opcode.PTRMOVE) ? code[ip + 1] : (op == Opcode.PTRINC ? 1 : -1);
+                    peak = Math.max(peak, (op == Opcode.PTRMOVE) ? offset + code[ip + 2] : offset + move);
+                    offset += move;
+                    continue;
+                } else if (op == Opcode.PTRPLUS) {
+                    add = 1;
+                } else if (op == Opcode.PTRMINUS) {
+                    add = -1;
+                } else if (op == Opcode.PTRADD) {
+                    add = code[ip + 1];
+                } else {
+                    return null;
+                }
+                final Integer prev = amounts.get(offset);
+                amounts.put(offset, (prev == null ? 0 : prev) + add);
+            }
+            final Integer step = amounts.remove(0);
+            if (offset != 0 || step == null || (step != 1 && step != -1)) {
+                return null;
+            }
+            int n = 0;
+            final int [] terms = new int [2 + amounts.size() * 2];
+            terms[n++] = step;
+            terms[n++] = peak;
+            for (final Map.Entry<Integer, Integer> e : amounts.entrySet()) {
+                if (e.getValue() != 0) {
+                    terms[n++] = e.getKey();
+                    terms[n++] = e.getValue();
+                }
+            }
+            if (n == terms.length) {
+                return terms;
+            }
+            final int [] trimmed = new int [n];
+            System.arraycopy(terms, 0, trimmed, 0, n);
+            return trimmed;
         }
     }
-        
+    
     /**
-     * Run against default source file or read the application arguments.
+     * Run against default source file or read the application arguments.  With
+     * '-readtrace file' the trace file is printed and nothing is run.
      * @param args
      */
-    public void run(final String [] args) {
+    public void run(final String [] allArgs) {
         
+        if (allArgs.length == 2 && "-readtrace".equals(allArgs[0])) {
+            try {
+                TraceBuffer.print(new File(allArgs[1]), System.out);
+            } catch (IOException e) {
+                throw new IllegalStateException("Invalid trace file : " + e.getMessage(), e);
+            }
+            return;
+        }
         File f = null;
         FileInputStream stream = null;        
+        final String [] args = this.parseOptions(allArgs);
         if (args.length == 0) {
             System.out.println("Running without arguments, no input filename found");
             final File f1 = new File(DEFAULT_CWD_SRC_FILE);            
@@ -941,9 +7042,15 @@ public class OctaneLangOneSourceFile {
             throw new IllegalStateException("Invalid input file parameters, could not load source file");
         }
         try {
-            stream = new FileInputStream(f);
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-            this.run(reader);        
+            if (this.imageFile != null && this.compileOnly) {
+                this.compileImage(f, this.imageFile);
+                System.out.println("Program image written to " + this.imageFile);
+            } else if (this.imageFile != null) {
+                this.runProgram(this.loadProgram(this.imageFile, f));
+            } else {
+                stream = new FileInputStream(f);
+                this.run(new MappedFileReader(stream.getChannel(), Charset.defaultCharset()));
+            }
         } catch(Exception e) {
             e.printStackTrace();
             throw new IllegalStateException("Invalid read source file : " + e.getMessage());
@@ -955,9 +7062,101 @@ public class OctaneLangOneSourceFile {
                     e.printStackTrace();
                 }
             }
+            if (this.context.tape instanceof MappedTape) {
+                ((MappedTape) this.context.tape).force();
+            }
+            if (this.context.profile instanceof Profiler) {
+                System.out.println();
+                System.out.print(((Profiler) this.context.profile).snapshot());
+            } else if (this.context.profile != null) {
+                System.out.println();
+                System.out.print(this.context.profile.report());
+            }
         }
     }
     
+    /**
+     * Apply the options at the start of the application arguments.
+     * 
+     * <pre>
+     * -incremental  run each line as soon as it is read
+     * -tape file    pointer memory in a memory mapped file, a run continues from the
+     *               cells and pointer stored by the last run
+     * -tapesize n   cells for a new tape file (default ExecutionContext.MEMORY_SIZE)
+     * -dispatch     print the dispatch counts of the compiled engine after the run
+     * -profile      print the calls and time of each function and the dispatches of
+     *               each word after the run
+     * -trace file   keep the last words run in a TraceBuffer, written to the file
+     *               when the run fails
+     * -maxinstructions n  stop a run after n instructions (ExecutionLimits)
+     * -timeout ms   stop a run after ms milliseconds
+     * -maxstack n   stop a run when the data stack has more than n values
+     * -maxdepth n   stop a run when more than n blocks are running
+     * -image file   run the program image of the source file, the image is written
+     *               again when it is missing or older than the source (ProgramImage)
+     * -compile file write the program image of the source file, nothing is run
+     * </pre>
+     * 
+     * @param args
+     * @return the arguments after the options
+     */
+    protected String [] parseOptions(final String [] args) {
+        File tapeFile = null;
+        int tapeSize = ExecutionContext.MEMORY_SIZE;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if ("-incremental".equals(args[i])) {
+                this.incremental = true;
+            } else if ("-tape".equals(args[i]) && i + 1 < args.length) {
+                tapeFile = new File(args[++i]);
+            } else if ("-tapesize".equals(args[i]) && i + 1 < args.length) {
+                tapeSize = Integer.parseInt(args[++i]);
+            } else if ("-dispatch".equals(args[i])) {
+                this.context.setProfile(new DispatchProfile());
+            } else if ("-profile".equals(args[i])) {
+                this.context.setProfile(new Profiler());
+            } else if ("-trace".equals(args[i]) && i + 1 < args.length) {
+                this.traceFile = new File(args[++i]);
+                this.context.setTrace(new TraceBuffer());
+            } else if ("-maxinstructions".equals(args[i]) && i + 1 < args.length) {
+                this.limits().setMaxInstructions(Long.parseLong(args[++i]));
+            } else if ("-timeout".equals(args[i]) && i + 1 < args.length) {
+                this.limits().setTimeoutMillis(Long.parseLong(args[++i]));
+            } else if ("-maxstack".equals(args[i]) && i + 1 < args.length) {
+                this.limits().setMaxStackDepth(Integer.parseInt(args[++i]));
+            } else if ("-maxdepth".equals(args[i]) && i + 1 < args.length) {
+                this.limits().setMaxCallDepth(Integer.parseInt(args[++i]));
+            } else if ("-image".equals(args[i]) && i + 1 < args.length) {
+                this.imageFile = new File(args[++i]);
+            } else if ("-compile".equals(args[i]) && i + 1 < args.length) {
+                this.imageFile = new File(args[++i]);
+                this.compileOnly = true;
+            } else {
+                throw new IllegalStateException("Invalid option : " + args[i]);
+            }
+        }
+        if (tapeFile != null) {
+            try {
+                this.setTape(MappedTape.open(tapeFile, tapeSize));
+            } catch (IOException e) {
+                throw new IllegalStateException("Invalid tape file : " + e.getMessage(), e);
+            }
+        }
+        final String [] rest = new String [args.length - i];
+        System.arraycopy(args, i, rest, 0, rest.length);
+        return rest;
+    }
+
+    /**
+     * @return the limits of the context, set first if there are none
+     */
+    private ExecutionLimits limits() {
+        if (this.context.limits == null) {
+            this.context.setLimits(new ExecutionLimits());
+        }
+        return this.context.limits;
+    }
+
     /**
      * Write a source file with example code.
      * 
@@ -1038,14 +7237,34 @@ public class OctaneLangOneSourceFile {
      * @param input the input to set
      */
     public void setInput(String input) {
+        this.setInput(input == null ? null : new StringReader(input));
         this.input = input;
     }   
+
+    /**
+     * Lex the source from a reader, the reader is not closed.
+     *
+     * @param reader
+     */
+    public void setInput(final Reader reader) {
+        this.input = null;
+        this.reader = reader;
+        this.bufferPos = 0;
+        this.bufferLimit = 0;
+    }
     
+    /**
+     * @return the words seen by the lexer
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
     /**
      * Return the code stack.  
      * @return the codeStack
      */
-    public Stack<Object> getCodeStack() {
+    public CodeStack getCodeStack() {
         return codeStack;
     }
 
@@ -1055,28 +7274,151 @@ public class OctaneLangOneSourceFile {
      * 
      * @return the dataStack
      */
-    public Stack<Object> getDataStack() {
-        return dataStack;
+    public DataStack getDataStack() {
+        return context.dataStack;
     }
 
     /**
-     * @return the functionCodeStack
+     * @return read only view of the functionCodeStack
      */
-    public Hashtable<String, Stack<Object>> getFunctionCodeStack() {
-        return functionCodeStack;
+    public Map<String, CodeStack> getFunctionCodeStack() {
+        return Collections.unmodifiableMap(functionCodeStack);
     }
 
     /**
-     * @return the functionCodeLookup
+     * @return read only view of the functionCodeLookup
      */
-    public Hashtable<String, String> getFunctionCodeLookup() {
-        return functionCodeLookup;
+    public Map<String, String> getFunctionCodeLookup() {
+        return Collections.unmodifiableMap(context.functionCodeLookup);
     }
 
     /**
      * @return the activeObject
      */
     public Object getActiveObject() {
-        return activeObjectArray;
+        return context.getMemory();
+    }
+
+    /**
+     * Replace the memory for the pointer words of this interpreter, e.g. a PagedTape or
+     * DirectTape with millions of cells.  The tape is kept by reset(), which clears it
+     * unless it is a MappedTape.
+     *
+     * @param tape
+     */
+    public void setTape(final Tape tape) {
+        this.context.setTape(tape);
+    }
+
+    /**
+     * @return the execution context used by interpret() and execute(CompiledProgram)
+     */
+    public ExecutionContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return the engine used by interpret()
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @param engine the engine used by interpret()
+     */
+    public void setEngine(final Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return the compiled program cache, null when there is no cache
+     */
+    public ProgramCache getProgramCache() {
+        return programCache;
+    }
+
+    /**
+     * Use a cache of compiled programs for string input with the compiled engine,
+     * run(String) with a source in the cache does not lex or compile the source.
+     * 
+     * @param programCache the cache, null for no cache
+     */
+    public void setProgramCache(final ProgramCache programCache) {
+        this.programCache = programCache;
+    }
+
+    /**
+     * @return the executor for the chunks of ploop, null when the chunks run on the calling thread
+     */
+    public ExecutorService getParallelExecutor() {
+        return parallelExecutor;
+    }
+
+    /**
+     * @param parallelExecutor runs the chunks of ploop, null to run the chunks on the calling thread
+     */
+    public void setParallelExecutor(final ExecutorService parallelExecutor) {
+        this.parallelExecutor = parallelExecutor;
+    }
+
+    /**
+     * @return true when compile() fuses the pointer idioms (the default)
+     */
+    public boolean isOptimize() {
+        return optimize;
+    }
+
+    /**
+     * @param optimize fuse pointer loops and runs of pointer words when compiling
+     */
+    public void setOptimize(final boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    /**
+     * @return the file for the trace of a failed run, null when the trace is not written
+     */
+    public File getTraceFile() {
+        return traceFile;
+    }
+
+    /**
+     * @param traceFile the TraceBuffer of the context is written to this file when
+     *     run() fails, see ExecutionContext.setTrace()
+     */
+    public void setTraceFile(final File traceFile) {
+        this.traceFile = traceFile;
+    }
+
+    /**
+     * @return the pairs of opcodes fused when compiling (all of them by default)
+     */
+    public Set<Superinstruction> getSuperinstructions() {
+        return Collections.unmodifiableSet(superinstructions);
+    }
+
+    /**
+     * @param superinstructions the pairs of opcodes fused when compiling, e.g. the hottest
+     *     pairs from DispatchProfile.hottest()
+     */
+    public void setSuperinstructions(final Set<Superinstruction> superinstructions) {
+        final Set<Superinstruction> copy = EnumSet.noneOf(Superinstruction.class);
+        copy.addAll(superinstructions);
+        this.superinstructions = copy;
+    }
+
+    /**
+     * @return true when interpret() runs each line as it is lexed
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental run each top level line as it is lexed
+     */
+    public void setIncremental(final boolean incremental) {
+        this.incremental = incremental;
     }
 }
@@ -59,6 +59,16 @@
  */
 package org.berlin.octane.lexer1;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
@@ -308,6 +318,1013 @@ public class OctaneLangOneSourceFileTest extends TestCase {
         TestCase.assertEquals("233168.0", lexer.toStringStackTop());        
     }
     
+    /**
+     * Programs from the tests above, used to compare the engines.
+     */
+    private static final String [] ENGINE_PROGRAMS = {
+        " + 1 1 ",
+        " + 100 11000 ",
+        " lambda ( + + 1 1 + 1 1)  ",
+        " - swap 5 10 ",
+        " * 10 5 ",
+        " myf call , myf func (- 5 10) , ",
+        " myfunc call , myfunc func ( - ) 5 10 ",
+        " ptr ptrval ptrplus , ptrval 'h' ptrset ",
+        " ptrval , ptr , ptrdec ptr ptrdec , ptr , ptrwhile ( 100 ptrinc ) , ptrdec ptrdec , ptrinc ptrplus , ptrinc ptrplus ",
+        " if ( false ) ( + 1 1 ) ( + 2 2 )   ",
+        " if (true) (+ 1 1) (+ 2 2)   ",
+        " ptrval ptrinc , ptrwhile ( ptrdec ptrplus ptrplus ptrinc, ptrminus ) , ptrval 1000 ptrset ",
+        " if ( or eql 0 , mod 88 3 eql 0 , mod 88 5 ) ( 1 ) ( 2 ) ",
+        " ifstk , or norem 5 2 norem 5 2 , 1 0",
+        " ptrval ptrsetstk * dup 2 ",
+        " lambdasav ( + ) 1 2 3 ",
+        " s callsav , s func ( * ) 2 3 ",
+        " x loop [ 1 2 3 4 5 ] , x func ( ifstk , or norem ptrval 3 norem ptrval 5 , ptrval 0 , ptrsetstk ) ",
+        " sumstk , x loop range 1000, x func ( ifstk , or norem ptrval 3 norem ptrval 5 , ptrval 0 , ptrsetstk ) ",
+        " PTRVAL PtrPlus ptrplus TRUE False ",
+        " 'c' \"str\" unknownword 7 ",
+        " eql 0 ptr , eql 0 0 , eql true true ",
+        " sumstk x ploop range 10000, x func ( ifstk , or norem ptrval 3 norem ptrval 5 , ptrval 0 , ptrsetstk ) ",
+        " minstk 4 , maxstk 3 9 1 , true ",
+        " sumstk sq map odd filter range 100 , maxstk [ 3 7 2 ] , odd func ( eql 1 mod swap 2 ) , sq func ( * dup ) ",
+        " x loop odd filter range 10 , x func ( * 10 ) , odd func ( eql 1 mod swap 2 ) ",
+        " len [ 1 2 3 ] , nth 1 [ 4 5 6 ] , nth 2 range 10 , len range 7 , nth 0 [ 'a' 2 ] , sumstk [ 1 2 ] ",
+        " [ 1 2 'c' 3 ] [ 1 2 3 ] , x loop [ 1 2 3 ] , x func ( * 2 ) ",
+        " vsum vadd [ 1 2 3 ] vscale 10 [ 4 5 6 ] , vdot [ 1 2 ] [ 3 4 ] , vmin range 5 , vmax [ 2 9 4 ] , ge vfilter 3 [ 5 1 3 2 ] ",
+        " - 5 + 1 * 3 2 , inc inc 5 , dec 0 , norem 3 9 , x loop range 5 , x func ( - 10 inc ) "
+    };
+
+    public void testStringEngineAgrees() {
+        for (final String src : ENGINE_PROGRAMS) {
+            final OctaneLangOneSourceFile compiled = new OctaneLangOneSourceFile();
+            compiled.setInput(src);
+            compiled.interpret();
+            final OctaneLangOneSourceFile string = new OctaneLangOneSourceFile();
+            string.setEngine(OctaneLangOneSourceFile.Engine.STRING);
+            string.setInput(src);
+            string.interpret();
+            TestCase.assertEquals(src, string.toStringStack(), compiled.toStringStack());
+            TestCase.assertTrue(src, Arrays.equals((int []) string.getActiveObject(), (int []) compiled.getActiveObject()));
+        }
+    }
+
+    public void testDataStack() {
+        final OctaneLangOneSourceFile.DataStack stack = new OctaneLangOneSourceFile.DataStack(2);
+        stack.push(2.0);
+        stack.pushInteger(0);
+        stack.pushBoolean(true);
+        stack.push("x");
+        TestCase.assertEquals("[2.0, 0, true, x]", stack.toString());
+        TestCase.assertEquals(Integer.valueOf(0), stack.get(1));
+        TestCase.assertEquals("x", stack.pop());
+        TestCase.assertTrue(stack.popBoolean());
+        try {
+            stack.popNumber();
+            TestCase.fail("Expected a class cast error for a pointer value");
+        } catch (ClassCastException e) {
+            // Pointer values are boxed as Integer //
+        }
+        stack.drop();
+        TestCase.assertEquals(2.0, stack.popNumber());
+        TestCase.assertTrue(stack.isEmpty());
+    }
+
+    public void testRuntimeStructures() {
+        final OctaneLangOneSourceFile.CodeStack code = new OctaneLangOneSourceFile.CodeStack(1);
+        for (int i = 0; i < 10; i++) {
+            code.push(Integer.valueOf(i));
+        }
+        TestCase.assertEquals(Integer.valueOf(9), code.pop());
+        TestCase.assertEquals(Integer.valueOf(8), code.peek());
+        TestCase.assertEquals(9, code.size());
+        final OctaneLangOneSourceFile.OpenHashMap<String, Integer> map = new OctaneLangOneSourceFile.OpenHashMap<String, Integer>(2);
+        for (int i = 0; i < 100; i++) {
+            map.put("k" + i, Integer.valueOf(i));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            TestCase.assertEquals(Integer.valueOf(i), map.remove("k" + i));
+        }
+        TestCase.assertEquals(50, map.size());
+        for (int i = 0; i < 100; i++) {
+            TestCase.assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), map.get("k" + i));
+        }
+        TestCase.assertEquals(50, map.keySet().size());
+    }
+
+    public void testSymbols() {
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(" myf call , myf func ( PtrVal ) ");
+        lexer.consume();
+        final Object name = lexer.nextToken();
+        final Object call = lexer.nextToken();
+        TestCase.assertSame(OctaneLangOneSourceFile.Opcode.SYMBOL_COMMA, lexer.nextToken());
+        TestCase.assertSame(call, lexer.getSymbols().intern("call"));
+        TestCase.assertSame(name, lexer.nextToken());
+        lexer.nextToken();
+        lexer.nextToken();
+        final OctaneLangOneSourceFile.Symbol ptrval = (OctaneLangOneSourceFile.Symbol) lexer.nextToken();
+        TestCase.assertEquals("PtrVal", ptrval.toString());
+        TestCase.assertEquals(OctaneLangOneSourceFile.Opcode.PTRVAL, ptrval.getOp());
+        TestCase.assertEquals(OctaneLangOneSourceFile.Opcode.NONE, ((OctaneLangOneSourceFile.Symbol) name).getOp());
+    }
+
+    public void testStreamingInput() throws Exception {
+        final StringBuilder buf = new StringBuilder(" ptrval ,");
+        for (int i = 0; i < 2000; i++) {
+            buf.append(" ptrsetstk + ptrval 1 ,");
+        }
+        buf.append(" ptrval 0 ptrset # comment at the end");
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(new java.io.StringReader(buf.toString()));
+        lexer.interpret();
+        TestCase.assertEquals("2000.0", lexer.toStringStackTop());
+
+        final java.io.File f = java.io.File.createTempFile("octane", ".octane");
+        f.deleteOnExit();
+        final java.io.FileOutputStream out = new java.io.FileOutputStream(f);
+        try {
+            out.write(buf.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        final java.io.FileInputStream in = new java.io.FileInputStream(f);
+        try {
+            final OctaneLangOneSourceFile mapped = new OctaneLangOneSourceFile();
+            mapped.setInput(new OctaneLangOneSourceFile.MappedFileReader(in.getChannel(), java.nio.charset.Charset.forName("UTF-8")));
+            mapped.interpret();
+            TestCase.assertEquals("2000.0", mapped.toStringStackTop());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testIncremental() {
+        final String src = "x func ( + 1 ) # defined first\n x call 5 \n y call 1 , y func (\n + 2 \n) \n";
+        for (final OctaneLangOneSourceFile.Engine engine : OctaneLangOneSourceFile.Engine.values()) {
+            final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+            lexer.setEngine(engine);
+            lexer.setIncremental(true);
+            lexer.setInput(src);
+            lexer.interpret();
+            TestCase.assertEquals("3.0 6.0", lexer.toStringStack());
+            TestCase.assertTrue(lexer.getCodeStack().isEmpty());
+        }
+    }
+
+    public void testProgramCache() {
+        final OctaneLangOneSourceFile.ProgramCache cache = new OctaneLangOneSourceFile.ProgramCache(2);
+        final String [] sources = { ENGINE_PROGRAMS[18], " + 1 1 ", ENGINE_PROGRAMS[18], " * 10 5 ", " + 1 1 " };
+        final String [] expected = { "233168.0", "2.0", "233168.0", "50.0", "2.0" };
+        for (int i = 0; i < sources.length; i++) {
+            final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+            lexer.setProgramCache(cache);
+            lexer.setInput(sources[i]);
+            lexer.interpret();
+            TestCase.assertEquals(expected[i], lexer.toStringStackTop());
+        }
+        TestCase.assertEquals(1, cache.getHits());
+        TestCase.assertEquals(4, cache.getMisses());
+        TestCase.assertEquals(2, cache.getEvictions());
+        TestCase.assertEquals(2, cache.size());
+
+        // A program is only shared with the same compile settings //
+        final String loop = bf("+++[-]");
+        final OctaneLangOneSourceFile optimized = new OctaneLangOneSourceFile();
+        final OctaneLangOneSourceFile plain = new OctaneLangOneSourceFile();
+        plain.setOptimize(false);
+        final OctaneLangOneSourceFile.CompiledProgram fused = cache.get(loop, optimized);
+        final OctaneLangOneSourceFile.CompiledProgram unfused = cache.get(loop, plain);
+        TestCase.assertNotSame(fused, unfused);
+        TestCase.assertEquals(Arrays.toString(plain.compile(loop).getMain().getCode()),
+            Arrays.toString(unfused.getMain().getCode()));
+        TestCase.assertSame(unfused, cache.get(loop, plain));
+
+        final OctaneLangOneSourceFile learn = new OctaneLangOneSourceFile();
+        learn.setSuperinstructions(EnumSet.noneOf(OctaneLangOneSourceFile.Superinstruction.class));
+        final OctaneLangOneSourceFile.CompiledProgram add = cache.get(" + 1 2 ", learn);
+        TestCase.assertNotSame(cache.get(" + 1 2 ", optimized), add);
+        TestCase.assertEquals(OctaneLangOneSourceFile.Opcode.ADD, add.getMain().getCode()[4]);
+        TestCase.assertSame(add, cache.get(" + 1 2 ", learn));
+    }
+
+    public void testSharedProgram() throws Exception {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        final OctaneLangOneSourceFile.CompiledProgram program = interp.compile(ENGINE_PROGRAMS[18]);
+        final String [] results = new String [8];
+        final Thread [] threads = new Thread [results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 20; j++) {
+                        final OctaneLangOneSourceFile.ExecutionContext ctx = new OctaneLangOneSourceFile.ExecutionContext();
+                        interp.execute(program, ctx);
+                        results[n] = String.valueOf(ctx.getDataStack().peek());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        for (final String result : results) {
+            TestCase.assertEquals("233168.0", result);
+        }
+        TestCase.assertTrue(interp.getDataStack().isEmpty());
+    }
+
+    public void testInterpreterPool() {
+        final OctaneLangOneSourceFile.InterpreterPool pool = new OctaneLangOneSourceFile.InterpreterPool(1);
+        final OctaneLangOneSourceFile first = pool.borrow();
+        first.setInput(" ptrval ptrinc , ptrwhile ( ptrdec ptrplus ptrplus ptrinc, ptrminus ) , ptrval 1000 ptrset , f func ( + 1 ) ");
+        first.interpret();
+        TestCase.assertEquals("2000.0", first.toStringStackTop());
+        final OctaneLangOneSourceFile second = pool.borrow();
+        pool.release(first);
+        pool.release(second);
+        TestCase.assertEquals(1, pool.getIdle());
+        TestCase.assertEquals(1, pool.getDiscarded());
+
+        final OctaneLangOneSourceFile reused = pool.borrow();
+        TestCase.assertSame(first, reused);
+        TestCase.assertTrue(reused.getDataStack().isEmpty());
+        TestCase.assertTrue(reused.getFunctionCodeLookup().isEmpty());
+        TestCase.assertEquals(0, ((int []) reused.getActiveObject())[1]);
+        reused.setInput(" ptrval ptrinc , ptrval ");
+        reused.interpret();
+        TestCase.assertEquals("0.0 0.0", reused.toStringStack());
+        TestCase.assertEquals(2, pool.getCreated());
+        TestCase.assertEquals(3, pool.getBorrowed());
+    }
+
+    public void testBatchRunner() throws Exception {
+        final java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(4);
+        try {
+            final OctaneLangOneSourceFile.BatchRunner runner = new OctaneLangOneSourceFile.BatchRunner(executor);
+            final List<OctaneLangOneSourceFile.BatchResult> results = runner.runAll(Arrays.asList(
+                ENGINE_PROGRAMS[18], " + 1 ", " * 10 5 "));
+            TestCase.assertEquals(3, results.size());
+            TestCase.assertEquals(233168.0, results.get(0).getTop());
+            TestCase.assertFalse(results.get(1).isOk());
+            TestCase.assertEquals(1, results.get(1).getIndex());
+            TestCase.assertEquals("[50.0]", String.valueOf(results.get(2).getDataStack()));
+
+            final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+            final List<List<Object>> inputs = new java.util.ArrayList<List<Object>>();
+            for (int i = 0; i < 100; i++) {
+                inputs.add(Arrays.<Object>asList((double) i));
+            }
+            final List<OctaneLangOneSourceFile.BatchResult> doubled = runner.runAll(interp, interp.compile(" * 2 "), inputs);
+            for (int i = 0; i < 100; i++) {
+                TestCase.assertEquals(2.0 * i, doubled.get(i).getTop());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testPloop() throws Exception {
+        final String euler = " sumstk x ploop range 1000, x func ( ifstk , or norem ptrval 3 norem ptrval 5 , ptrval 0 , ptrsetstk ) ";
+        final java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(4);
+        try {
+            for (final java.util.concurrent.ExecutorService parallel : Arrays.asList(executor, null)) {
+                final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+                lexer.setParallelExecutor(parallel);
+                lexer.setInput(euler);
+                lexer.interpret();
+                TestCase.assertEquals("233168.0", lexer.toStringStack());
+
+                lexer.reset();
+                lexer.setInput(" maxstk sq ploop range 10000 , minstk sq ploop range 10000 , sq func ( * dup ) ");
+                lexer.interpret();
+                TestCase.assertEquals("9.9980001E7 0.0", lexer.toStringStack());
+
+                lexer.reset();
+                lexer.setInput(" add id ploop range 10000 , add func ( + ) , id func () ");
+                lexer.interpret();
+                TestCase.assertEquals("4.9995E7", lexer.toStringStack());
+
+                lexer.reset();
+                lexer.setInput(" sumstk id ploop [ ] , maxstk id ploop [ ] , id func () ");
+                lexer.interpret();
+                TestCase.assertEquals("0.0", lexer.toStringStack());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testLazySequences() {
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(" range 5 ");
+        lexer.interpret();
+        TestCase.assertTrue(lexer.getDataStack().peek() instanceof OctaneLangOneSourceFile.LangTypeRange);
+        final OctaneLangOneSourceFile.LangTypeRange range = (OctaneLangOneSourceFile.LangTypeRange) lexer.getDataStack().peek();
+        TestCase.assertEquals(5, range.size());
+        final List<Object> elements = new java.util.ArrayList<Object>();
+        for (final Object o : range) {
+            elements.add(o);
+        }
+        TestCase.assertEquals("[0.0, 1.0, 2.0, 3.0, 4.0]", elements.toString());
+
+        // Ten million elements are summed without a list //
+        lexer.reset();
+        lexer.setInput(" sumstk range 10000000 ");
+        lexer.interpret();
+        TestCase.assertEquals("4.9999995E13", lexer.toStringStack());
+
+        lexer.reset();
+        lexer.setInput(" sumstk x map range 1000, x func ( ifstk , or norem ptrval 3 norem ptrval 5 , ptrval 0 , ptrsetstk ) ");
+        lexer.interpret();
+        TestCase.assertEquals("233168.0", lexer.toStringStack());
+
+        lexer.reset();
+        lexer.setInput(" maxstk sq map odd filter range 10 , minstk [ ] , odd func ( eql 1 mod swap 2 ) , sq func ( * dup ) ");
+        lexer.interpret();
+        TestCase.assertEquals("81.0", lexer.toStringStack());
+
+        lexer.reset();
+        lexer.setInput(" sumstk x ploop odd filter range 10000 , x func () , odd func ( eql 1 mod swap 2 ) ");
+        lexer.interpret();
+        TestCase.assertEquals("2.5E7", lexer.toStringStack());
+    }
+
+    public void testNumericList() {
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(" [ 'a' 2 ] [ 1 2 3 ] ");
+        lexer.interpret();
+        final OctaneLangOneSourceFile.LangTypeList numbers = (OctaneLangOneSourceFile.LangTypeList) lexer.getDataStack().get(0);
+        final OctaneLangOneSourceFile.LangTypeList mixed = (OctaneLangOneSourceFile.LangTypeList) lexer.getDataStack().get(1);
+        TestCase.assertTrue(numbers.isNumeric());
+        TestCase.assertEquals("#<[1.0, 2.0, 3.0]>", numbers.toString());
+        TestCase.assertEquals(3.0, numbers.getNumber(2));
+        TestCase.assertFalse(mixed.isNumeric());
+        TestCase.assertEquals("#<['a', 2.0]>", mixed.toString());
+
+        // The list changes to objects on the first element that is not a number //
+        for (int i = 0; i < 100; i++) {
+            numbers.addNumber(i);
+        }
+        numbers.add("x");
+        TestCase.assertFalse(numbers.isNumeric());
+        TestCase.assertEquals(104, numbers.size());
+        TestCase.assertEquals(99.0, numbers.getNumber(102));
+        TestCase.assertEquals("x", numbers.get(103));
+
+        lexer.reset();
+        lexer.setInput(" nth 2 [ 7 8 9 ] , len [ 7 8 9 ] , sumstk [ 7 8 9 ] ");
+        lexer.interpret();
+        TestCase.assertEquals("9.0 3.0 24.0", lexer.toStringStack());
+        lexer.reset();
+        lexer.setInput(" nth 3 [ 7 8 9 ] ");
+        try {
+            lexer.interpret();
+            TestCase.fail("Expected an index error");
+        } catch (IndexOutOfBoundsException e) {
+            // Index past the end of the list //
+        }
+    }
+
+    public void testVectorWords() {
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(" vmul [ 1 2 3 ] [ 4 5 6 ] , vadd [ 1 2 3 ] [ 4 5 6 ] , vscale 2 range 4 ");
+        lexer.interpret();
+        TestCase.assertEquals("#<[4.0, 10.0, 18.0]> #<[5.0, 7.0, 9.0]> #<[0.0, 2.0, 4.0, 6.0]>", lexer.toStringStack());
+
+        lexer.reset();
+        lexer.setInput(" vsum range 1000000 , vdot [ 1 2 3 ] [ 4 5 6 ] , vmin [ 3 0 2 ] , vmax [ ] , vmin [ ] ");
+        lexer.interpret();
+        TestCase.assertEquals("4.999995E11 32.0 0.0", lexer.toStringStack());
+
+        lexer.reset();
+        lexer.setInput(" len lt vfilter 0 [ 1 2 ] , ne vfilter 2 [ 1 2 3 2 ] , eq vfilter 2 [ 1 2 3 2 ] , le vfilter 2 [ 1 2 3 ] , gt vfilter 1 [ 1 2 3 ] ");
+        lexer.interpret();
+        TestCase.assertEquals("0.0 #<[1.0, 3.0]> #<[2.0, 2.0]> #<[1.0, 2.0]> #<[2.0, 3.0]>", lexer.toStringStack());
+
+        lexer.reset();
+        lexer.setInput(" vadd [ 1 2 ] [ 1 2 3 ] ");
+        try {
+            lexer.interpret();
+            TestCase.fail("Expected a length error");
+        } catch (IllegalStateException e) {
+            // Lists of different lengths //
+        }
+        lexer.reset();
+        lexer.setInput(" foo vfilter 1 [ 1 2 3 ] ");
+        try {
+            lexer.interpret();
+            TestCase.fail("Expected an invalid comparison");
+        } catch (IllegalStateException e) {
+            TestCase.assertTrue(e.getMessage().indexOf("foo") >= 0);
+        }
+    }
+
+    public void testTapes() {
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(" ptrval , ptrplus , 5000 ptrload ");
+        try {
+            lexer.interpret();
+            TestCase.fail("Expected an error past the end of the default tape");
+        } catch (IllegalStateException e) {
+            TestCase.assertEquals("Pointer out of range : 5000 (tape size 3000)", e.getMessage());
+        }
+        lexer.reset();
+        lexer.setInput(" ptrval ptrdec ");
+        try {
+            lexer.interpret();
+            TestCase.fail("Expected an error for a negative pointer");
+        } catch (IllegalStateException e) {
+            TestCase.assertTrue(e.getMessage().startsWith("Pointer out of range : -1"));
+        }
+
+        final OctaneLangOneSourceFile.Tape [] tapes = {
+            new OctaneLangOneSourceFile.PagedTape(10000000), new OctaneLangOneSourceFile.DirectTape(10000000)
+        };
+        for (final OctaneLangOneSourceFile.Tape tape : tapes) {
+            for (final OctaneLangOneSourceFile.Engine engine : OctaneLangOneSourceFile.Engine.values()) {
+                final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+                interp.setEngine(engine);
+                interp.setTape(tape);
+                interp.setInput(" ptrval , ptrplus ptrplus , 9999999 ptrload , ptrval , 7 ptrset , 5 ptrload ");
+                interp.interpret();
+                TestCase.assertEquals(tape + " " + engine, "2.0 7.0", interp.toStringStack());
+                TestCase.assertEquals(2, tape.get(9999999));
+                TestCase.assertEquals(7, tape.toArray(6)[5]);
+                final OctaneLangOneSourceFile.Tape copy = tape.copy(10);
+                TestCase.assertEquals(7, copy.get(5));
+                TestCase.assertEquals(0, copy.get(9999999));
+
+                interp.reset();
+                TestCase.assertEquals(0, tape.get(9999999));
+                TestCase.assertEquals(0, tape.get(5));
+                interp.setInput(" ptrval , 10000000 ptrload ");
+                try {
+                    interp.interpret();
+                    TestCase.fail("Expected an error past the end of the tape");
+                } catch (IllegalStateException e) {
+                    TestCase.assertEquals("Pointer out of range : 10000000 (tape size 10000000)", e.getMessage());
+                }
+                interp.reset();
+            }
+        }
+        TestCase.assertEquals(0, ((OctaneLangOneSourceFile.PagedTape) tapes[0]).getPages());
+    }
+
+    public void testMappedTape() throws Exception {
+        final java.io.File file = java.io.File.createTempFile("octane", ".tape");
+        final java.io.File source = java.io.File.createTempFile("octane", ".oct");
+        file.delete();
+        try {
+            final OctaneLangOneSourceFile first = new OctaneLangOneSourceFile();
+            final OctaneLangOneSourceFile.MappedTape tape = OctaneLangOneSourceFile.MappedTape.open(file, 100);
+            first.setTape(tape);
+            first.setInput(" ptrplus ptrplus , 10 ptrload ");
+            first.interpret();
+            TestCase.assertEquals(10, tape.getPointer());
+            tape.close();
+            TestCase.assertEquals(32 + 4 * 100, file.length());
+
+            // The size of an existing tape is kept, the run continues at the stored pointer //
+            final OctaneLangOneSourceFile second = new OctaneLangOneSourceFile();
+            final OctaneLangOneSourceFile.MappedTape resumed = OctaneLangOneSourceFile.MappedTape.open(file, 5);
+            second.setTape(resumed);
+            TestCase.assertEquals(100, resumed.size());
+            TestCase.assertEquals(10, second.getContext().getPointer());
+            second.setEngine(OctaneLangOneSourceFile.Engine.STRING);
+            second.setInput(" ptrval ptrinc ptrplus ");
+            second.interpret();
+            TestCase.assertEquals("0.0", second.toStringStack());
+            TestCase.assertEquals(3, resumed.get(10));
+            TestCase.assertEquals(11, resumed.getPointer());
+            resumed.close();
+
+            final java.io.FileOutputStream out = new java.io.FileOutputStream(source);
+            out.write(" ptrplus ".getBytes("UTF-8"));
+            out.close();
+            new OctaneLangOneSourceFile().run(new String [] { "-tape", file.getPath(), source.getPath() });
+            final OctaneLangOneSourceFile.MappedTape reopened = OctaneLangOneSourceFile.MappedTape.open(file, 100);
+            TestCase.assertEquals(1, reopened.get(11));
+            TestCase.assertEquals(3, reopened.get(10));
+            reopened.close();
+
+            // reset(), as in InterpreterPool.release(), keeps the cells and the pointer //
+            final OctaneLangOneSourceFile pooled = new OctaneLangOneSourceFile();
+            final OctaneLangOneSourceFile.MappedTape kept = OctaneLangOneSourceFile.MappedTape.open(file, 100);
+            pooled.setTape(kept);
+            pooled.setInput(" ptrplus ");
+            pooled.interpret();
+            pooled.reset();
+            TestCase.assertEquals(2, kept.get(11));
+            TestCase.assertEquals(3, kept.get(10));
+            TestCase.assertEquals(11, kept.getPointer());
+            TestCase.assertEquals(11, pooled.getContext().getPointer());
+            pooled.setInput(" ptrval ");
+            pooled.interpret();
+            TestCase.assertEquals("2.0", pooled.toStringStack().trim());
+            kept.close();
+
+            final java.io.FileOutputStream bad = new java.io.FileOutputStream(file);
+            bad.write(new byte [40]);
+            bad.close();
+            try {
+                OctaneLangOneSourceFile.MappedTape.open(file, 100);
+                TestCase.fail("Expected an invalid tape file");
+            } catch (IllegalStateException e) {
+                // Not a tape file //
+            }
+        } finally {
+            file.delete();
+            source.delete();
+        }
+    }
+
+    /**
+     * Brainfuck to pointer words.  The words of a line and of a block run right to left,
+     * so the order is reversed and a loop '[...]' becomes 'ptrwhile ( ... )'.  Blocks
+     * do not nest, the loops of the programs are not nested.
+     */
+    private static String bf(final String src) {
+        final int [] pos = { 0 };
+        return bf(src, pos) + " ";
+    }
+
+    private static String bf(final String src, final int [] pos) {
+        final LinkedList<String> words = new LinkedList<String>();
+        while (pos[0] < src.length()) {
+            final char c = src.charAt(pos[0]++);
+            switch (c) {
+            case '+': words.addFirst("ptrplus"); break;
+            case '-': words.addFirst("ptrminus"); break;
+            case '>': words.addFirst("ptrinc"); break;
+            case '<': words.addFirst("ptrdec"); break;
+            case '[': words.addFirst("ptrwhile (" + bf(src, pos) + " )"); break;
+            case ']': return join(words);
+            default: break;
+            }
+        }
+        return join(words);
+    }
+
+    private static String join(final List<String> words) {
+        final StringBuilder buf = new StringBuilder();
+        for (final String word : words) {
+            buf.append(' ').append(word);
+        }
+        return buf.toString();
+    }
+
+    private static final String [] POINTER_PROGRAMS = {
+        "+++++[-]>++",
+        "+++[->+<]",
+        "++++[->+>+++<<]>>",
+        "++++[>+++<-]>[<++>-]<",
+        "++[>++<-]>[>+<-]",
+        "---[+>++<]",
+        ">>>+<<-->>>+++[<]",
+        "+++[>>+<<-]>>[-<+>]+[-]",
+        "+++[>+++<-]>[>++<-]>>+++[->>+<<]>>>>+[-]",
+        ">+<<",
+        "++[->+>+<<]>>>+<<<[>>+<<-]"
+    };
+
+    public void testOptimizer() {
+        for (final String program : POINTER_PROGRAMS) {
+            final String src = " ptrval ptr ," + bf(program);
+            final OctaneLangOneSourceFile optimized = new OctaneLangOneSourceFile();
+            final OctaneLangOneSourceFile plain = new OctaneLangOneSourceFile();
+            plain.setOptimize(false);
+            final OctaneLangOneSourceFile string = new OctaneLangOneSourceFile();
+            string.setEngine(OctaneLangOneSourceFile.Engine.STRING);
+            String error = null;
+            for (final OctaneLangOneSourceFile interp : Arrays.asList(optimized, plain, string)) {
+                interp.setInput(src);
+                try {
+                    interp.interpret();
+                } catch (IllegalStateException e) {
+                    error = (error == null) ? e.getMessage() : error;
+                    TestCase.assertEquals(program, error, e.getMessage());
+                }
+            }
+            TestCase.assertEquals(program, plain.toStringStack(), optimized.toStringStack());
+            TestCase.assertEquals(program, string.toStringStack(), optimized.toStringStack());
+            TestCase.assertTrue(program, Arrays.equals((int []) plain.getActiveObject(), (int []) optimized.getActiveObject()));
+            TestCase.assertTrue(program, Arrays.equals((int []) string.getActiveObject(), (int []) optimized.getActiveObject()));
+            TestCase.assertEquals(program, plain.getContext().getPointer(), optimized.getContext().getPointer());
+        }
+
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        final String fused = Arrays.toString(interp.compile(bf("+++[-]>>[->+<<+>]<<")).getMain().getCode());
+        final String expected = Arrays.toString(new int [] {
+            OctaneLangOneSourceFile.Opcode.PTRADD, 3, OctaneLangOneSourceFile.Opcode.PTRCLEAR, 0,
+            OctaneLangOneSourceFile.Opcode.PTRMOVE, 2, 2, OctaneLangOneSourceFile.Opcode.PTRMULADD, 2, 1,
+            OctaneLangOneSourceFile.Opcode.PTRMOVE, -2, 0 });
+        TestCase.assertEquals(expected, fused);
+    }
+
+    public void testSuperinstructions() {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        final OctaneLangOneSourceFile.CompiledBlock add = interp.compile("+ 1 2").getMain();
+        TestCase.assertEquals(OctaneLangOneSourceFile.Opcode.ADD_NUMBER, add.getCode()[2]);
+        TestCase.assertEquals(1, add.getSaved());
+        final OctaneLangOneSourceFile.CompiledBlock folded = interp.compile("inc inc 5").getMain();
+        TestCase.assertEquals(1, folded.getInstructions());
+        TestCase.assertEquals(2, folded.getSaved());
+        interp.execute(interp.compile("+ 1 2 , inc inc 5"));
+        TestCase.assertEquals("3.0 7.0", interp.toStringStack().trim());
+
+        // Learn the hottest pair from a profile of the unfused code //
+        final String src = " sumstk , x loop range 10, x func ( ifstk , or norem ptrval 3 norem ptrval 5 , ptrval 0 , ptrsetstk ) ";
+        final OctaneLangOneSourceFile learn = new OctaneLangOneSourceFile();
+        learn.setSuperinstructions(EnumSet.noneOf(OctaneLangOneSourceFile.Superinstruction.class));
+        final OctaneLangOneSourceFile.DispatchProfile before = new OctaneLangOneSourceFile.DispatchProfile();
+        learn.getContext().setProfile(before);
+        learn.setInput(src);
+        learn.interpret();
+        TestCase.assertEquals(0, before.getSaved());
+        TestCase.assertEquals(Long.valueOf(20), before.getPairs().get("ptrval norem"));
+        TestCase.assertEquals(EnumSet.of(OctaneLangOneSourceFile.Superinstruction.PTRVAL_NOREM), before.hottest(1));
+        TestCase.assertEquals(EnumSet.of(OctaneLangOneSourceFile.Superinstruction.PTRVAL_NOREM,
+                OctaneLangOneSourceFile.Superinstruction.NOREM_OR), before.hottest(3));
+
+        final OctaneLangOneSourceFile fused = new OctaneLangOneSourceFile();
+        fused.setSuperinstructions(before.hottest(1));
+        final OctaneLangOneSourceFile.DispatchProfile after = new OctaneLangOneSourceFile.DispatchProfile();
+        fused.getContext().setProfile(after);
+        fused.setInput(src);
+        fused.interpret();
+        TestCase.assertEquals(learn.toStringStack(), fused.toStringStack());
+        TestCase.assertEquals(20, after.getSaved());
+        TestCase.assertEquals(before.getDispatches() - 20, after.getDispatches());
+        TestCase.assertTrue(after.report(), after.report().startsWith("dispatches : " + after.getDispatches()));
+    }
+
+    public void testProfiler() throws Exception {
+        final String src = " sumstk , x loop range 10, x func ( ifstk , or norem ptrval 3 norem ptrval 5 , ptrval 0 , ptrsetstk ) ";
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        // Time each run of a block //
+        final OctaneLangOneSourceFile.Profiler profiler = new OctaneLangOneSourceFile.Profiler(0);
+        interp.getContext().setProfile(profiler);
+        interp.setInput(src);
+        interp.interpret();
+        final OctaneLangOneSourceFile plain = new OctaneLangOneSourceFile();
+        plain.setInput(src);
+        plain.interpret();
+        TestCase.assertEquals(plain.toStringStack(), interp.toStringStack());
+
+        final OctaneLangOneSourceFile.ProfileSnapshot snapshot = profiler.snapshot();
+        TestCase.assertEquals(11, snapshot.getCalls());
+        TestCase.assertEquals(Long.valueOf(10), snapshot.getWords().get("ptrsetstk"));
+        long words = 0;
+        for (final Long n : snapshot.getWords().values()) {
+            words += n;
+        }
+        TestCase.assertEquals(snapshot.getDispatches(), words);
+        TestCase.assertTrue(snapshot.getMaxDepth() >= 1);
+
+        final OctaneLangOneSourceFile.FunctionProfile x = snapshot.getFunction("x");
+        TestCase.assertEquals(10, x.getCalls());
+        TestCase.assertTrue(x.getInclusiveNanos() >= x.getExclusiveNanos());
+        OctaneLangOneSourceFile.FunctionProfile main = null;
+        for (final OctaneLangOneSourceFile.FunctionProfile f : snapshot.getFunctions()) {
+            if (f.getId() == null) {
+                main = f;
+            }
+        }
+        TestCase.assertEquals(1, main.getCalls());
+        TestCase.assertEquals(main.getInclusiveNanos() - x.getInclusiveNanos(), main.getExclusiveNanos());
+
+        // Sampled time //
+        final OctaneLangOneSourceFile sampled = new OctaneLangOneSourceFile();
+        final OctaneLangOneSourceFile.Profiler sampler = new OctaneLangOneSourceFile.Profiler(100000L);
+        sampled.getContext().setProfile(sampler);
+        sampled.setInput(src.replace("range 10,", "range 20000,"));
+        sampled.interpret();
+        TestCase.assertEquals(20000, sampler.snapshot().getFunction("x").getCalls());
+        for (final OctaneLangOneSourceFile.FunctionProfile f : sampler.snapshot().getFunctions()) {
+            TestCase.assertTrue(f.toString(), f.getInclusiveNanos() >= f.getExclusiveNanos() && f.getExclusiveNanos() >= 0);
+        }
+
+        // The counts of the ploop chunks are added when each chunk ends //
+        final java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(4);
+        try {
+            final OctaneLangOneSourceFile parallel = new OctaneLangOneSourceFile();
+            parallel.setParallelExecutor(executor);
+            final OctaneLangOneSourceFile.Profiler chunks = new OctaneLangOneSourceFile.Profiler();
+            parallel.getContext().setProfile(chunks);
+            parallel.setInput(" sumstk x ploop range 20000 , x func ( * dup ) ");
+            parallel.interpret();
+            TestCase.assertEquals(20000, chunks.snapshot().getFunction("x").getCalls());
+            TestCase.assertEquals(20001, chunks.getCalls());
+        } finally {
+            executor.shutdown();
+        }
+
+        final ObjectName name = profiler.register("testProfiler");
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            TestCase.assertEquals(Long.valueOf(11), server.getAttribute(name, "Calls"));
+            server.invoke(name, "clear", new Object [0], new String [0]);
+            TestCase.assertEquals(Long.valueOf(0), server.getAttribute(name, "Calls"));
+        } finally {
+            OctaneLangOneSourceFile.Profiler.unregister(name);
+        }
+    }
+
+    public void testTrace() throws Exception {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        final OctaneLangOneSourceFile.TraceBuffer trace = new OctaneLangOneSourceFile.TraceBuffer(2);
+        interp.getContext().setTrace(trace);
+        interp.setInput(" inc 2 , ptrval ptrinc , 5 ");
+        interp.interpret();
+        TestCase.assertEquals("3.0 0.0 5.0", interp.toStringStack().trim());
+
+        // The oldest entries are overwritten //
+        TestCase.assertEquals(4, trace.getCount());
+        final List<OctaneLangOneSourceFile.TraceEntry> entries = trace.entries();
+        TestCase.assertEquals(2, entries.size());
+        TestCase.assertEquals("ptrval ptr=1 depth=1 top=5.0", entries.get(0).toString());
+        TestCase.assertEquals("number ptr=1 depth=2 top=0.0", entries.get(1).toString());
+
+        final java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        trace.write(out);
+        TestCase.assertEquals(24 + 2 * 16, out.size());
+        TestCase.assertEquals(entries.toString(),
+            OctaneLangOneSourceFile.TraceBuffer.read(new java.io.ByteArrayInputStream(out.toByteArray())).toString());
+
+        // Written when the run fails //
+        final java.io.File file = java.io.File.createTempFile("octane", ".trace");
+        try {
+            final OctaneLangOneSourceFile failed = new OctaneLangOneSourceFile();
+            failed.getContext().setTrace(new OctaneLangOneSourceFile.TraceBuffer());
+            failed.setTraceFile(file);
+            failed.run(" + 1 'c' ");
+            final java.io.FileInputStream in = new java.io.FileInputStream(file);
+            final List<OctaneLangOneSourceFile.TraceEntry> read = OctaneLangOneSourceFile.TraceBuffer.read(in);
+            in.close();
+            TestCase.assertEquals(2, read.size());
+            TestCase.assertEquals(OctaneLangOneSourceFile.Opcode.ADD_NUMBER, read.get(1).getOp());
+            TestCase.assertEquals(OctaneLangOneSourceFile.DataStack.OBJECT, read.get(1).getTag());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testLimits() {
+        for (final OctaneLangOneSourceFile.Engine engine : OctaneLangOneSourceFile.Engine.values()) {
+            final OctaneLangOneSourceFile.ExecutionLimits limits = new OctaneLangOneSourceFile.ExecutionLimits();
+            limits.setMaxInstructions(100000);
+            TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.INSTRUCTIONS,
+                limit(engine, limits, " ptrwhile ( ptrdec ptrplus ptrinc ) ptrplus ").getLimit());
+
+            final OctaneLangOneSourceFile.ExecutionLimits timeout = new OctaneLangOneSourceFile.ExecutionLimits();
+            timeout.setTimeoutMillis(50);
+            TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.TIME,
+                limit(engine, timeout, " ptrwhile ( ptrdec ptrplus ptrinc ) ptrplus ").getLimit());
+
+            final OctaneLangOneSourceFile.ExecutionLimits stack = new OctaneLangOneSourceFile.ExecutionLimits();
+            stack.setMaxStackDepth(100);
+            final OctaneLangOneSourceFile.LimitExceededException e =
+                limit(engine, stack, " x loop range 1000 , x func ( ptrval ptrplus ) ");
+            TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.STACK_DEPTH, e.getLimit());
+            TestCase.assertTrue(e.getMessage(), e.getStackSize() > 100);
+            TestCase.assertEquals(OctaneLangOneSourceFile.LimitExceededException.MAX_SNAPSHOT, e.getStack().size());
+            TestCase.assertEquals(Double.valueOf(e.getStackSize()), e.getStack().get(e.getStack().size() - 1));
+
+            final OctaneLangOneSourceFile.ExecutionLimits depth = new OctaneLangOneSourceFile.ExecutionLimits();
+            depth.setMaxCallDepth(20);
+            TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.CALL_DEPTH,
+                limit(engine, depth, " f call , f func ( 1 f call ) ").getLimit());
+
+            // Within the limits and the counts start again for each run //
+            final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+            interp.setEngine(engine);
+            interp.getContext().setLimits(limits);
+            for (int i = 0; i < 3; i++) {
+                interp.reset();
+                interp.setInput(" x loop range 1000 , x func ( ptrplus ) ");
+                interp.interpret();
+                TestCase.assertTrue(interp.getContext().getInstructions() > 1000);
+                TestCase.assertTrue(interp.getContext().getInstructions() < limits.getMaxInstructions());
+            }
+
+            // The lines of an incremental run share the limits //
+            final OctaneLangOneSourceFile lines = new OctaneLangOneSourceFile();
+            lines.setEngine(engine);
+            lines.setIncremental(true);
+            final OctaneLangOneSourceFile.ExecutionLimits total = new OctaneLangOneSourceFile.ExecutionLimits();
+            total.setMaxInstructions(50000);
+            lines.getContext().setLimits(total);
+            final StringBuilder script = new StringBuilder();
+            for (int i = 0; i < 5; i++) {
+                script.append(" x loop range 10000 , x func ( ptrplus ) \n");
+            }
+            lines.setInput(script.toString());
+            try {
+                lines.interpret();
+                TestCase.fail(engine + " incremental run within the limits");
+            } catch (OctaneLangOneSourceFile.LimitExceededException le) {
+                TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.INSTRUCTIONS, le.getLimit());
+            }
+
+            // Exit returns to the caller //
+            final OctaneLangOneSourceFile halted = new OctaneLangOneSourceFile();
+            halted.setEngine(engine);
+            halted.setInput(" + 2 2 , exit , + 1 1 ");
+            halted.interpret();
+            TestCase.assertTrue(halted.getContext().isHalted());
+            TestCase.assertEquals("2.0", halted.toStringStack().trim());
+            halted.setInput(" + 2 2 ");
+            halted.interpret();
+            TestCase.assertFalse(halted.getContext().isHalted());
+        }
+
+        // Exit ends an incremental run //
+        final OctaneLangOneSourceFile incremental = new OctaneLangOneSourceFile();
+        incremental.setIncremental(true);
+        incremental.setInput(" + 1 1 \n exit \n + 2 2 \n");
+        incremental.interpret();
+        TestCase.assertTrue(incremental.getContext().isHalted());
+        TestCase.assertEquals("2.0", incremental.toStringStack().trim());
+
+        // The chunks of ploop share the instructions of the run //
+        final java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(4);
+        try {
+            for (final java.util.concurrent.ExecutorService parallel : Arrays.asList(executor, null)) {
+                final OctaneLangOneSourceFile.ExecutionLimits limits = new OctaneLangOneSourceFile.ExecutionLimits();
+                limits.setMaxInstructions(50000);
+                final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+                interp.setParallelExecutor(parallel);
+                interp.getContext().setLimits(limits);
+                interp.setInput(" sumstk x ploop range 200000 , x func ( * dup ) ");
+                try {
+                    interp.interpret();
+                    TestCase.fail("ploop ran within the limits");
+                } catch (OctaneLangOneSourceFile.LimitExceededException e) {
+                    TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.INSTRUCTIONS, e.getLimit());
+                }
+
+                limits.setMaxInstructions(1000000);
+                interp.reset();
+                interp.setInput(" sumstk x ploop range 20000 , x func ( * dup ) ");
+                interp.interpret();
+                TestCase.assertEquals("2.66646667E12", interp.toStringStack());
+                TestCase.assertTrue(interp.getContext().getInstructions() > 20000);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static OctaneLangOneSourceFile.LimitExceededException limit(final OctaneLangOneSourceFile.Engine engine,
+        final OctaneLangOneSourceFile.ExecutionLimits limits, final String src) {
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        interp.setEngine(engine);
+        interp.getContext().setLimits(limits);
+        interp.setInput(src);
+        try {
+            interp.interpret();
+        } catch (OctaneLangOneSourceFile.LimitExceededException e) {
+            return e;
+        }
+        throw new AssertionFailedError(engine + " ran within the limits : " + src);
+    }
+
+    public void testFrames() {
+        // Recursion is not limited by the Java stack //
+        final OctaneLangOneSourceFile.ExecutionLimits limits = new OctaneLangOneSourceFile.ExecutionLimits();
+        limits.setMaxInstructions(1000000);
+        final OctaneLangOneSourceFile.LimitExceededException deep =
+            limit(OctaneLangOneSourceFile.Engine.COMPILED, limits, " f call , f func ( 1 f call ) ");
+        TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.INSTRUCTIONS, deep.getLimit());
+        TestCase.assertEquals(0, deep.getStackSize());
+
+        // A block ending in call runs in the frame of the block //
+        limits.setMaxCallDepth(3);
+        TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.INSTRUCTIONS,
+            limit(OctaneLangOneSourceFile.Engine.COMPILED, limits, " f call , f func ( g call ptrplus ) , g func ( f call ptrplus ) ").getLimit());
+        TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.INSTRUCTIONS,
+            limit(OctaneLangOneSourceFile.Engine.COMPILED, limits, " lambda ( f call ) , f func ( f call ) ").getLimit());
+        TestCase.assertSame(OctaneLangOneSourceFile.LimitExceededException.Limit.CALL_DEPTH,
+            limit(OctaneLangOneSourceFile.Engine.COMPILED, limits, " f call , f func ( ptrplus f call ) ").getLimit());
+
+        // The frames are kept in order after an error //
+        final OctaneLangOneSourceFile interp = new OctaneLangOneSourceFile();
+        interp.setInput(" f call , f func ( + 1 'c' ) ");
+        try {
+            interp.interpret();
+            TestCase.fail();
+        } catch (RuntimeException e) {
+            // Expected //
+        }
+        interp.reset();
+        interp.setInput(" sumstk , x loop range 5 , x func ( inc ) , if ( true ) ( 1 ) ( 2 ) ");
+        interp.interpret();
+        TestCase.assertEquals("16.0", interp.toStringStack().trim());
+    }
+
+    public void testImage() throws Exception {
+        for (final String src : ENGINE_PROGRAMS) {
+            final OctaneLangOneSourceFile compiled = new OctaneLangOneSourceFile();
+            compiled.setInput(src);
+            compiled.interpret();
+            final java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            OctaneLangOneSourceFile.ProgramImage.write(new OctaneLangOneSourceFile().compile(src), "", out);
+            final OctaneLangOneSourceFile loaded = new OctaneLangOneSourceFile();
+            final OctaneLangOneSourceFile.ProgramImage image =
+                OctaneLangOneSourceFile.ProgramImage.read(java.nio.ByteBuffer.wrap(out.toByteArray()), loaded);
+            loaded.execute(image.getProgram());
+            TestCase.assertEquals(src, compiled.toStringStack(), loaded.toStringStack());
+        }
+
+        // A changed byte or another version is not read //
+        final java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        OctaneLangOneSourceFile.ProgramImage.write(new OctaneLangOneSourceFile().compile(ENGINE_PROGRAMS[18]), "", out);
+        final byte [] bytes = out.toByteArray();
+        bytes[bytes.length - 3] ^= 1;
+        try {
+            OctaneLangOneSourceFile.ProgramImage.read(java.nio.ByteBuffer.wrap(bytes), new OctaneLangOneSourceFile());
+            TestCase.fail("Expected an invalid checksum");
+        } catch (java.io.IOException e) {
+            TestCase.assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+        bytes[bytes.length - 3] ^= 1;
+        bytes[7] = 99;
+        try {
+            OctaneLangOneSourceFile.ProgramImage.read(java.nio.ByteBuffer.wrap(bytes), new OctaneLangOneSourceFile());
+            TestCase.fail("Expected an invalid version");
+        } catch (java.io.IOException e) {
+            TestCase.assertTrue(e.getMessage(), e.getMessage().contains("version"));
+        }
+
+        // The source is compiled when the image is missing, stale or not valid //
+        final java.io.File source = java.io.File.createTempFile("octane", ".oct");
+        final java.io.File file = java.io.File.createTempFile("octane", ".ocim");
+        file.delete();
+        try {
+            java.io.FileOutputStream src = new java.io.FileOutputStream(source);
+            src.write(" sq call 7 , sq func ( * dup ) ".getBytes("UTF-8"));
+            src.close();
+            final OctaneLangOneSourceFile first = new OctaneLangOneSourceFile();
+            first.execute(first.loadProgram(file, source));
+            TestCase.assertEquals("49.0", first.toStringStack().trim());
+            TestCase.assertTrue(file.exists());
+            final OctaneLangOneSourceFile.ProgramImage image = OctaneLangOneSourceFile.ProgramImage.load(file, first);
+            TestCase.assertEquals(OctaneLangOneSourceFile.ProgramCache.hash(" sq call 7 , sq func ( * dup ) "), image.getSourceHash());
+            final OctaneLangOneSourceFile second = new OctaneLangOneSourceFile();
+            second.execute(second.loadProgram(file, null));
+            TestCase.assertEquals("49.0", second.toStringStack().trim());
+
+            src = new java.io.FileOutputStream(source);
+            src.write(" sq call 8 , sq func ( * dup ) ".getBytes("UTF-8"));
+            src.close();
+            final OctaneLangOneSourceFile changed = new OctaneLangOneSourceFile();
+            changed.execute(changed.loadProgram(file, source));
+            TestCase.assertEquals("64.0", changed.toStringStack().trim());
+            final OctaneLangOneSourceFile rewritten = new OctaneLangOneSourceFile();
+            rewritten.execute(rewritten.loadProgram(file, null));
+            TestCase.assertEquals("64.0", rewritten.toStringStack().trim());
+
+            final java.io.FileOutputStream bad = new java.io.FileOutputStream(file);
+            bad.write(new byte [40]);
+            bad.close();
+            try {
+                new OctaneLangOneSourceFile().loadProgram(file, null);
+                TestCase.fail("Expected an invalid image");
+            } catch (java.io.IOException e) {
+                // Not a program image //
+            }
+            new OctaneLangOneSourceFile().run(new String [] { "-compile", file.getPath(), source.getPath() });
+            final OctaneLangOneSourceFile cli = new OctaneLangOneSourceFile();
+            cli.execute(OctaneLangOneSourceFile.ProgramImage.load(file, cli).getProgram());
+            TestCase.assertEquals("64.0", cli.toStringStack().trim());
+            new OctaneLangOneSourceFile().run(new String [] { "-image", file.getPath(), source.getPath() });
+        } finally {
+            source.delete();
+            file.delete();
+        }
+    }
+
+    public void testEqlTypes() {
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(" eql 0 ptr , eql 0 0 ");
+        lexer.interpret();
+        TestCase.assertEquals("false true", lexer.toStringStack());
+    }
+
+    public void testCompileBlocks() {
+        final OctaneLangOneSourceFile lexer = new OctaneLangOneSourceFile();
+        lexer.setInput(" if (true) (+ 1 1) (+ 2 2) ");
+        lexer.consume();
+        do {
+            lexer.getCodeStack().push(lexer.nextToken());
+        } while (lexer.c() != OctaneLangOneSourceFile.EOF);
+        final OctaneLangOneSourceFile.CompiledProgram program = lexer.compile(lexer.getCodeStack());
+        TestCase.assertEquals(3, program.getBlocks().size());
+        final int [] code = program.getMain().getCode();
+        TestCase.assertEquals(OctaneLangOneSourceFile.Opcode.IF, code[code.length - 1]);
+    }
+
     public static void main(final String [] args) {
         System.out.println("Running tests");
         if (args.length == 0) {